@@ -0,0 +1,50 @@
+package com.solidbrain.benchmarks;
+
+import com.getbase.models.Contact;
+import com.solidbrain.services.ContactService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contact event decision path: contact with an active deal (no write) and contact needing a new deal
+ * (deal name formatting and inline write to the stubbed client)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ContactServiceBenchmark extends ServiceBenchmarkState {
+
+    @Param({"true", "false"})
+    public boolean contactHasActiveDeal;
+
+    private ContactService contactService;
+
+    private final Contact contact = StubbedCrm.contact();
+
+    @Override
+    protected StubbedCrm createCrm() {
+        return new StubbedCrm(contactHasActiveDeal);
+    }
+
+    @Override
+    protected void useServices(final StubbedCrm crm, final AnnotationConfigApplicationContext context) {
+        contactService = context != null ? context.getBean(ContactService.class) : crm.getContactService();
+    }
+
+    @Benchmark
+    public boolean processContact() {
+        return contactService.processContactAsync("updated", contact)
+                .join();
+    }
+}
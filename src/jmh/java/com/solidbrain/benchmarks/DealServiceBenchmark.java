@@ -0,0 +1,51 @@
+package com.solidbrain.benchmarks;
+
+import com.getbase.models.Deal;
+import com.solidbrain.services.DealService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deal event decision path: deal in a not won stage (stage check only) and won deal
+ * (contact fetch, owner check and inline contact update on the stubbed client)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DealServiceBenchmark extends ServiceBenchmarkState {
+
+    @Param({"true", "false"})
+    public boolean dealWon;
+
+    private DealService dealService;
+
+    private Deal deal;
+
+    @Override
+    protected StubbedCrm createCrm() {
+        deal = StubbedCrm.deal(100L, dealWon ? StubbedCrm.WON_STAGE_ID : StubbedCrm.ACTIVE_STAGE_ID);
+        return new StubbedCrm(true);
+    }
+
+    @Override
+    protected void useServices(final StubbedCrm crm, final AnnotationConfigApplicationContext context) {
+        dealService = context != null ? context.getBean(DealService.class) : crm.getDealService();
+    }
+
+    @Benchmark
+    public boolean processDeal() {
+        return dealService.processDealAsync("updated", deal)
+                .join();
+    }
+}
@@ -0,0 +1,65 @@
+package com.solidbrain.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Isolated costs of the per-event constructs used by the services: MDC handling,
+ * deal name date formatting and disabled debug logging
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HotPathOverheadBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger("com.solidbrain.benchmarks.disabled");
+
+    private static final DateTimeFormatter CACHED_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    private final LocalDate date = LocalDate.of(2016, 10, 17);
+
+    private final Long contactId = 1000L;
+
+    @Benchmark
+    public void mdcPutAndClear() {
+        MDC.put("contactId", contactId.toString());
+        MDC.clear();
+    }
+
+    @Benchmark
+    public String dealNameFormatterPerCall() {
+        return "Benchmark Company " + date.format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
+    }
+
+    @Benchmark
+    public String dealNameFormatterCached() {
+        return "Benchmark Company " + date.format(CACHED_FORMATTER);
+    }
+
+    @Benchmark
+    public void disabledDebugParameterized() {
+        log.debug("Contact's id={}", contactId);
+    }
+
+    @Benchmark
+    public void disabledDebugConcatenated() {
+        log.debug("Contact's id=" + contactId);
+    }
+}
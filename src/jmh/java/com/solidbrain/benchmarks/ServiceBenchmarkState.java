@@ -0,0 +1,48 @@
+package com.solidbrain.benchmarks;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Common benchmark parameters: log level of the application loggers and plain vs {@code @Timed} proxied services
+ */
+@State(Scope.Benchmark)
+public abstract class ServiceBenchmarkState {
+
+    @Param({"INFO", "DEBUG"})
+    public String logLevel;
+
+    @Param({"false", "true"})
+    public boolean timedProxy;
+
+    private AnnotationConfigApplicationContext context;
+
+    protected abstract StubbedCrm createCrm();
+
+    protected abstract void useServices(StubbedCrm crm, AnnotationConfigApplicationContext context);
+
+    @Setup
+    public void setUp() {
+        ((Logger) LoggerFactory.getLogger("com.solidbrain")).setLevel(Level.toLevel(logLevel));
+
+        StubbedCrm crm = createCrm();
+        if (timedProxy) {
+            context = TimedServicesConfig.createContext(crm);
+        }
+        useServices(crm, context);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+}
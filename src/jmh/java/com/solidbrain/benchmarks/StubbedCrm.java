@@ -0,0 +1,156 @@
+package com.solidbrain.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.getbase.Client;
+import com.getbase.models.Contact;
+import com.getbase.models.Deal;
+import com.getbase.models.Stage;
+import com.getbase.models.User;
+import com.getbase.services.ContactsService;
+import com.getbase.services.DealsService;
+import com.getbase.services.StagesService;
+import com.getbase.services.UsersService;
+import com.solidbrain.services.AsyncBaseClient;
+import com.solidbrain.services.BaseApiCalls;
+import com.solidbrain.services.ChangeDetector;
+import com.solidbrain.services.ContactDealIndex;
+import com.solidbrain.services.ContactService;
+import com.solidbrain.services.CrmWriter;
+import com.solidbrain.services.DealService;
+import com.solidbrain.services.MutationJournal;
+import com.solidbrain.services.OwnerRules;
+import com.solidbrain.services.StageCatalog;
+import com.solidbrain.services.TrafficRecorder;
+import com.solidbrain.services.UserService;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * In-process Base CRM fixture: Mockito stubbed {@link Client} and the services wired the way the application does
+ * (writes executed inline, journal and change detection disabled), so that benchmarks measure the decision paths only.
+ */
+class StubbedCrm {
+
+    static final String SALES_REP_EMAIL = "sales.rep@benchmark.local";
+    static final String ACCOUNT_MANAGER_EMAIL = "account.manager@benchmark.local";
+
+    static final long SALES_REP_ID = 1L;
+    static final long ACCOUNT_MANAGER_ID = 2L;
+
+    static final long ACTIVE_STAGE_ID = 10L;
+    static final long WON_STAGE_ID = 20L;
+
+    private final Client client = mock(Client.class);
+
+    private final ContactService contactService;
+    private final DealService dealService;
+
+    /**
+     * @param contactHasActiveDeal whether contacts already have a deal in an active stage
+     */
+    @SuppressWarnings("unchecked")
+    StubbedCrm(final boolean contactHasActiveDeal) {
+        UsersService usersService = mock(UsersService.class);
+        when(usersService.get(SALES_REP_ID)).thenReturn(user(SALES_REP_ID, SALES_REP_EMAIL));
+        when(usersService.get(ACCOUNT_MANAGER_ID)).thenReturn(user(ACCOUNT_MANAGER_ID, ACCOUNT_MANAGER_EMAIL));
+        when(usersService.list(any(UsersService.SearchCriteria.class))).thenAnswer(invocation -> {
+            UsersService.SearchCriteria criteria = (UsersService.SearchCriteria) invocation.getArguments()[0];
+            return SALES_REP_EMAIL.equals(criteria.toQueryParams().get("email"))
+                    ? Collections.singletonList(user(SALES_REP_ID, SALES_REP_EMAIL))
+                    : Collections.singletonList(user(ACCOUNT_MANAGER_ID, ACCOUNT_MANAGER_EMAIL));
+        });
+        when(client.users()).thenReturn(usersService);
+
+        StagesService stagesService = mock(StagesService.class);
+        when(stagesService.list(any(StagesService.SearchCriteria.class))).thenAnswer(invocation -> {
+            StagesService.SearchCriteria criteria = (StagesService.SearchCriteria) invocation.getArguments()[0];
+            return Boolean.valueOf(String.valueOf(criteria.toQueryParams().get("active")))
+                    ? Collections.singletonList(stage(ACTIVE_STAGE_ID, "incoming"))
+                    : Collections.singletonList(stage(WON_STAGE_ID, "won"));
+        });
+        when(client.stages()).thenReturn(stagesService);
+
+        DealsService dealsService = mock(DealsService.class);
+        List<Deal> existingDeals = contactHasActiveDeal
+                ? Collections.singletonList(deal(100L, ACTIVE_STAGE_ID))
+                : Collections.emptyList();
+        when(dealsService.list(any(DealsService.SearchCriteria.class))).thenReturn(existingDeals);
+        when(dealsService.create(any(Deal.class))).thenReturn(deal(101L, null));
+        when(client.deals()).thenReturn(dealsService);
+
+        ContactsService contactsService = mock(ContactsService.class);
+        when(contactsService.get(anyLong())).thenReturn(contact());
+        when(contactsService.update(anyLong(), (Map<String, Object>) anyMapOf(String.class, Object.class)))
+                .thenReturn(contact());
+        when(client.contacts()).thenReturn(contactsService);
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        BaseApiCalls apiCalls = new BaseApiCalls(metricRegistry, new TrafficRecorder(metricRegistry, false, ""), 10);
+        AsyncBaseClient asyncClient = new AsyncBaseClient(client, apiCalls, metricRegistry, 4, 100);
+        UserService userService = new UserService(asyncClient, metricRegistry, 100L, 3_600_000L);
+        OwnerRules ownerRules = new OwnerRules(userService, metricRegistry, Collections.singletonList(SALES_REP_EMAIL),
+                Collections.singletonList(ACCOUNT_MANAGER_EMAIL), ACCOUNT_MANAGER_EMAIL);
+        StageCatalog stageCatalog = new StageCatalog(client, apiCalls, metricRegistry, 60_000L);
+        ContactDealIndex contactDealIndex = new ContactDealIndex(stageCatalog, metricRegistry);
+        MutationJournal mutationJournal = new MutationJournal(metricRegistry, false, "", 0, 0L, 0);
+        CrmWriter crmWriter = new CrmWriter(client, apiCalls, mutationJournal, contactDealIndex, metricRegistry,
+                1, 0L, 1, 0, 0L);
+
+        ChangeDetector changeDetector = new ChangeDetector(metricRegistry, false, 0);
+
+        this.contactService = new ContactService(asyncClient, "yyyy-MM-dd", ownerRules, stageCatalog,
+                contactDealIndex, crmWriter, changeDetector, metricRegistry);
+        this.dealService = new DealService(asyncClient, ownerRules, stageCatalog, contactDealIndex, crmWriter,
+                changeDetector, metricRegistry);
+    }
+
+    ContactService getContactService() {
+        return contactService;
+    }
+
+    DealService getDealService() {
+        return dealService;
+    }
+
+    static Contact contact() {
+        Contact contact = new Contact();
+        contact.setId(1000L);
+        contact.setName("Benchmark Company");
+        contact.setIsOrganization(true);
+        contact.setOwnerId(SALES_REP_ID);
+        return contact;
+    }
+
+    static Deal deal(final long id, final Long stageId) {
+        Deal deal = new Deal();
+        deal.setId(id);
+        deal.setName("Benchmark Deal");
+        deal.setContactId(1000L);
+        deal.setOwnerId(SALES_REP_ID);
+        deal.setStageId(stageId);
+        return deal;
+    }
+
+    private static User user(final long id, final String email) {
+        User user = new User();
+        user.setId(id);
+        user.setEmail(email);
+        return user;
+    }
+
+    private static Stage stage(final long id, final String category) {
+        Stage stage = new Stage();
+        stage.setId(id);
+        stage.setCategory(category);
+        stage.setActive("incoming".equals(category));
+        return stage;
+    }
+}
@@ -0,0 +1,35 @@
+package com.solidbrain.benchmarks;
+
+import com.ryantenney.metrics.spring.config.annotation.EnableMetrics;
+import com.ryantenney.metrics.spring.config.annotation.MetricsConfigurerAdapter;
+import com.solidbrain.services.ContactService;
+import com.solidbrain.services.DealService;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Exposes services of a {@link StubbedCrm} through the same {@code @Timed} AOP proxies the application uses
+ */
+@Configuration
+@EnableMetrics(proxyTargetClass = true)
+public class TimedServicesConfig extends MetricsConfigurerAdapter {
+
+    // fixture of the context being created
+    private static StubbedCrm crm;
+
+    static synchronized AnnotationConfigApplicationContext createContext(final StubbedCrm stubbedCrm) {
+        crm = stubbedCrm;
+        return new AnnotationConfigApplicationContext(TimedServicesConfig.class);
+    }
+
+    @Bean
+    public ContactService contactService() {
+        return crm.getContactService();
+    }
+
+    @Bean
+    public DealService dealService() {
+        return crm.getDealService();
+    }
+}
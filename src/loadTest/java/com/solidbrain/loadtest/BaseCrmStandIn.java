@@ -0,0 +1,540 @@
+package com.solidbrain.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Embedded, in-memory stand-in of the Base CRM API v2 endpoints used by the workflow
+ * (sync, stages, users, contacts and deals) with configurable latency and rate limit.
+ *
+ * Records delivery and acknowledgement time of every sync event and counts API calls per endpoint.
+ */
+@Slf4j
+class BaseCrmStandIn {
+
+    private static final Pattern SYNC_QUEUE = Pattern.compile("/v2/sync/([^/]+)/queues/main");
+    private static final Pattern USER = Pattern.compile("/v2/users/(\\d+)");
+    private static final Pattern CONTACT = Pattern.compile("/v2/contacts/(\\d+)");
+
+    private static final int SYNC_PAGE_SIZE = 100;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final long latency;
+    private final int rateLimit;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final Map<Long, Map<String, Object>> users = new ConcurrentHashMap<>();
+    private final Map<Long, Map<String, Object>> stages = new ConcurrentHashMap<>();
+    private final Map<Long, Map<String, Object>> contacts = new ConcurrentHashMap<>();
+    private final Map<Long, Map<String, Object>> deals = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1_000_000L);
+
+    // sync queue, guarded by itself
+    private final Map<String, SyncEvent> syncEvents = new LinkedHashMap<>();
+    private final Map<String, List<SyncEvent>> sessions = new HashMap<>();
+    private final AtomicInteger acknowledged = new AtomicInteger();
+
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    // requests in the current second, guarded by this
+    private long rateWindow;
+    private int rateWindowCalls;
+
+    /**
+     * @param latency delay of every response (ms)
+     * @param rateLimit maximum requests per second (0 - unlimited), exceeding requests get 429
+     */
+    BaseCrmStandIn(final long latency, final int rateLimit) {
+        this.latency = latency;
+        this.rateLimit = rateLimit;
+    }
+
+    void start(final int threads) throws IOException {
+        executor = Executors.newFixedThreadPool(threads);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/v2/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+
+        log.info("Base CRM stand-in listening url={}", getUrl());
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    long addUser(final String name, final String email) {
+        long id = nextId.incrementAndGet();
+        Map<String, Object> user = new HashMap<>();
+        user.put("id", id);
+        user.put("name", name);
+        user.put("email", email);
+        user.put("status", "active");
+        user.put("confirmed", true);
+        user.put("role", "user");
+        users.put(id, user);
+        return id;
+    }
+
+    long addStage(final String name, final String category, final boolean active) {
+        long id = nextId.incrementAndGet();
+        Map<String, Object> stage = new HashMap<>();
+        stage.put("id", id);
+        stage.put("name", name);
+        stage.put("category", category);
+        stage.put("active", active);
+        stage.put("pipeline_id", 1L);
+        stage.put("position", stages.size() + 1);
+        stages.put(id, stage);
+        return id;
+    }
+
+    Map<String, Object> addContact(final String name, final long ownerId) {
+        long id = nextId.incrementAndGet();
+        Map<String, Object> contact = new HashMap<>();
+        contact.put("id", id);
+        contact.put("name", name);
+        contact.put("is_organization", true);
+        contact.put("owner_id", ownerId);
+        touch(contact);
+        contacts.put(id, contact);
+        return contact;
+    }
+
+    Map<String, Object> addDeal(final String name, final long contactId, final long ownerId, final long stageId) {
+        long id = nextId.incrementAndGet();
+        Map<String, Object> deal = new HashMap<>();
+        deal.put("id", id);
+        deal.put("name", name);
+        deal.put("contact_id", contactId);
+        deal.put("owner_id", ownerId);
+        deal.put("stage_id", stageId);
+        touch(deal);
+        deals.put(id, deal);
+        return deal;
+    }
+
+    /**
+     * Adds the entity as it was recorded (unless an entity of the same type and id is already known)
+     * @param type sync type of the entity (user, stage, contact or deal)
+     * @return false for entities of other types
+     */
+    boolean importEntity(final String type, final Map<String, Object> entity) {
+        Map<Long, Map<String, Object>> entities = entitiesOf(type);
+        Object id = entity.get("id");
+        if (entities == null || !(id instanceof Number)) {
+            return false;
+        }
+
+        long entityId = ((Number) id).longValue();
+        Map<String, Object> imported = new HashMap<>(entity);
+        imported.put("id", entityId);
+        entities.putIfAbsent(entityId, imported);
+        nextId.accumulateAndGet(entityId, Math::max);
+        return true;
+    }
+
+    private Map<Long, Map<String, Object>> entitiesOf(final String type) {
+        switch (type) {
+            case "user":
+                return users;
+            case "stage":
+                return stages;
+            case "contact":
+                return contacts;
+            case "deal":
+                return deals;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Queues sync event of the entity (its current state)
+     * @param type sync type of the entity (e.g. contact, deal)
+     * @param eventType created, updated or deleted
+     */
+    void publish(final String type, final String eventType, final Map<String, Object> entity) {
+        SyncEvent event = new SyncEvent(type + "-" + entity.get("id") + "-" + UUID.randomUUID(),
+                type,
+                eventType,
+                new HashMap<>(entity));
+        synchronized (syncEvents) {
+            syncEvents.put(event.ackKey, event);
+        }
+    }
+
+    int getAcknowledgedCount() {
+        return acknowledged.get();
+    }
+
+    /**
+     * @return latencies (ns) between first delivery and acknowledgement of the acknowledged events
+     */
+    long[] getEventLatencies() {
+        synchronized (syncEvents) {
+            return syncEvents.values()
+                    .stream()
+                    .filter(e -> e.ackedAt != 0L)
+                    .mapToLong(e -> e.ackedAt - e.deliveredAt)
+                    .toArray();
+        }
+    }
+
+    Map<String, Long> getCalls() {
+        return calls.entrySet()
+                .stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().sum()));
+    }
+
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            if (latency > 0) {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            }
+
+            if (!isWithinRateLimit()) {
+                rejected.incrementAndGet();
+                respondError(exchange, 429, "rate_limit_exceeded", "429 Too Many Requests");
+                return;
+            }
+
+            route(exchange, method, path, query);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respondError(exchange, 503, "unavailable", "503 Service Unavailable");
+        } catch (RuntimeException e) {
+            log.error("Stand-in request failed. Message={}", e.getMessage(), e);
+            respondError(exchange, 500, "server_error", "500 Internal Server Error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @SuppressWarnings("squid:S3776")
+    private void route(final HttpExchange exchange,
+                       final String method,
+                       final String path,
+                       final Map<String, String> query) throws IOException {
+        Matcher matcher;
+
+        if ("POST".equals(method) && "/v2/sync/start".equals(path)) {
+            count("sync.start");
+            startSession(exchange);
+        } else if ("GET".equals(method) && (matcher = SYNC_QUEUE.matcher(path)).matches()) {
+            count("sync.fetch");
+            fetchQueue(exchange, matcher.group(1));
+        } else if ("POST".equals(method) && "/v2/sync/ack".equals(path)) {
+            count("sync.ack");
+            acknowledge(exchange);
+        } else if ("GET".equals(method) && "/v2/stages".equals(path)) {
+            count("stages.list");
+            respondItems(exchange, "stage", filter(stages.values(), query, "active"));
+        } else if ("GET".equals(method) && "/v2/users".equals(path)) {
+            count("users.list");
+            respondItems(exchange, "user", filter(users.values(), query, "email"));
+        } else if ("GET".equals(method) && (matcher = USER.matcher(path)).matches()) {
+            count("users.get");
+            respondEntity(exchange, "user", users.get(Long.valueOf(matcher.group(1))));
+        } else if ("GET".equals(method) && (matcher = CONTACT.matcher(path)).matches()) {
+            count("contacts.get");
+            respondEntity(exchange, "contact", contacts.get(Long.valueOf(matcher.group(1))));
+        } else if ("PUT".equals(method) && (matcher = CONTACT.matcher(path)).matches()) {
+            count("contacts.update");
+            updateContact(exchange, Long.valueOf(matcher.group(1)));
+        } else if ("GET".equals(method) && "/v2/deals".equals(path)) {
+            count("deals.list");
+            respondItems(exchange, "deal", filter(deals.values(), query, "contact_id"));
+        } else if ("POST".equals(method) && "/v2/deals".equals(path)) {
+            count("deals.create");
+            createDeal(exchange);
+        } else {
+            count("unknown");
+            respondError(exchange, 404, "not_found", "404 Not Found");
+        }
+    }
+
+    private void startSession(final HttpExchange exchange) throws IOException {
+        List<SyncEvent> pending;
+        synchronized (syncEvents) {
+            pending = syncEvents.values()
+                    .stream()
+                    .filter(e -> e.ackedAt == 0L)
+                    .collect(Collectors.toList());
+            if (pending.isEmpty()) {
+                respond(exchange, 204, null);
+                return;
+            }
+        }
+
+        String sessionId = UUID.randomUUID().toString();
+        synchronized (sessions) {
+            sessions.put(sessionId, new ArrayList<>(pending));
+        }
+
+        Map<String, Object> queue = new HashMap<>();
+        queue.put("data", map("name", "main", "pages", (pending.size() - 1) / SYNC_PAGE_SIZE + 1, "total_count", pending.size()));
+        queue.put("meta", map("type", "sync_queue"));
+
+        respond(exchange, 201, map("data", map("id", sessionId, "queues", Collections.singletonList(queue)),
+                "meta", map("type", "sync_session")));
+    }
+
+    private void fetchQueue(final HttpExchange exchange, final String sessionId) throws IOException {
+        List<SyncEvent> page = new ArrayList<>();
+        synchronized (sessions) {
+            List<SyncEvent> remaining = sessions.getOrDefault(sessionId, Collections.emptyList());
+            while (page.size() < SYNC_PAGE_SIZE && !remaining.isEmpty()) {
+                page.add(remaining.remove(0));
+            }
+            if (remaining.isEmpty()) {
+                sessions.remove(sessionId);
+            }
+        }
+
+        if (page.isEmpty()) {
+            respond(exchange, 204, null);
+            return;
+        }
+
+        long now = System.nanoTime();
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (SyncEvent event : page) {
+            synchronized (syncEvents) {
+                if (event.deliveredAt == 0L) {
+                    event.deliveredAt = now;
+                }
+            }
+            items.add(map("data", event.data,
+                    "meta", map("type", event.type,
+                            "sync", map("event_type", event.eventType, "ack_key", event.ackKey, "revision", 1))));
+        }
+
+        respond(exchange, 200, map("items", items, "meta", map("type", "collection", "count", items.size())));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void acknowledge(final HttpExchange exchange) throws IOException {
+        Map<String, Object> data = readData(exchange);
+        List<String> ackKeys = (List<String>) data.getOrDefault("ack_keys", Collections.emptyList());
+
+        long now = System.nanoTime();
+        synchronized (syncEvents) {
+            for (String ackKey : ackKeys) {
+                SyncEvent event = syncEvents.get(ackKey);
+                if (event != null && event.ackedAt == 0L) {
+                    event.ackedAt = now;
+                    acknowledged.incrementAndGet();
+                }
+            }
+        }
+
+        respond(exchange, 202, null);
+    }
+
+    private void updateContact(final HttpExchange exchange, final long contactId) throws IOException {
+        Map<String, Object> contact = contacts.get(contactId);
+        if (contact == null) {
+            respondError(exchange, 404, "not_found", "404 Not Found");
+            return;
+        }
+
+        Map<String, Object> data = readData(exchange);
+        synchronized (contact) {
+            contact.putAll(data);
+            touch(contact);
+        }
+        respondEntity(exchange, "contact", contact);
+    }
+
+    private void createDeal(final HttpExchange exchange) throws IOException {
+        Map<String, Object> data = readData(exchange);
+        long contactId = ((Number) data.get("contact_id")).longValue();
+        Number ownerId = (Number) data.get("owner_id");
+
+        long incomingStageId = stages.values()
+                .stream()
+                .filter(s -> "incoming".equals(s.get("category")))
+                .mapToLong(s -> (Long) s.get("id"))
+                .findFirst()
+                .orElse(0L);
+
+        Map<String, Object> deal = addDeal((String) data.get("name"),
+                contactId,
+                ownerId != null ? ownerId.longValue() : 0L,
+                incomingStageId);
+        respond(exchange, 200, map("data", deal, "meta", map("type", "deal")));
+    }
+
+    private synchronized boolean isWithinRateLimit() {
+        if (rateLimit <= 0) {
+            return true;
+        }
+
+        long second = System.currentTimeMillis() / 1000;
+        if (second != rateWindow) {
+            rateWindow = second;
+            rateWindowCalls = 0;
+        }
+        return ++rateWindowCalls <= rateLimit;
+    }
+
+    private void count(final String endpoint) {
+        calls.computeIfAbsent(endpoint, e -> new LongAdder()).increment();
+    }
+
+    private static void touch(final Map<String, Object> entity) {
+        String now = Instant.now().toString();
+        entity.putIfAbsent("created_at", now);
+        entity.put("updated_at", now);
+    }
+
+    private static List<Map<String, Object>> filter(final Collection<Map<String, Object>> entities,
+                                                    final Map<String, String> query,
+                                                    final String attribute) {
+        String expected = query.get(attribute);
+        return entities.stream()
+                .filter(e -> expected == null || Objects.equals(String.valueOf(e.get(attribute)), expected))
+                .collect(Collectors.toList());
+    }
+
+    private static Map<String, String> parseQuery(final String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                query.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readData(final HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            Map<String, Object> envelope = objectMapper.readValue(body, Map.class);
+            return (Map<String, Object>) envelope.getOrDefault("data", Collections.emptyMap());
+        }
+    }
+
+    private void respondEntity(final HttpExchange exchange, final String type, final Map<String, Object> entity)
+            throws IOException {
+        if (entity == null) {
+            respondError(exchange, 404, "not_found", "404 Not Found");
+            return;
+        }
+        Map<String, Object> snapshot;
+        synchronized (entity) {
+            snapshot = new HashMap<>(entity);
+        }
+        respond(exchange, 200, map("data", snapshot, "meta", map("type", type)));
+    }
+
+    private void respondItems(final HttpExchange exchange, final String type, final List<Map<String, Object>> entities)
+            throws IOException {
+        List<Map<String, Object>> items = entities.stream()
+                .map(e -> map("data", e, "meta", map("type", type)))
+                .collect(Collectors.toList());
+        respond(exchange, 200, map("items", items, "meta", map("type", "collection", "count", items.size())));
+    }
+
+    private void respondError(final HttpExchange exchange, final int status, final String code, final String httpStatus)
+            throws IOException {
+        Map<String, Object> error = map("error", map("code", code, "message", httpStatus, "details", httpStatus),
+                "meta", map("type", "error"));
+        respond(exchange, status, map("errors", Collections.singletonList(error),
+                "meta", map("type", "errors", "http_status", httpStatus, "logref", UUID.randomUUID().toString())));
+    }
+
+    private void respond(final HttpExchange exchange, final int status, final Object body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+
+        byte[] bytes = objectMapper.writeValueAsString(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private static Map<String, Object> map(final Object... keysAndValues) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    private static final class SyncEvent {
+        private final String ackKey;
+        private final String type;
+        private final String eventType;
+        private final Map<String, Object> data;
+
+        // System.nanoTime() of the first delivery and acknowledgement (0 - not yet), guarded by syncEvents
+        private long deliveredAt;
+        private long ackedAt;
+
+        private SyncEvent(final String ackKey, final String type, final String eventType, final Map<String, Object> data) {
+            this.ackKey = ackKey;
+            this.type = type;
+            this.eventType = eventType;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.solidbrain.loadtest;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summarises the workflow events of a Flight Recorder recording into a latency breakdown per phase:
+ * workflow runs, processing of contact and deal events, and Base CRM API calls per endpoint
+ * (the call itself and the wait for a free slot of the concurrency limit).
+ *
+ * Arguments: recording file (.jfr), report file (optional, printed to the log otherwise).
+ */
+@Slf4j
+public class FlightRecordingSummary {
+
+    private FlightRecordingSummary() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Usage: FlightRecordingSummary <recording.jfr> [report]");
+        }
+
+        Map<String, Durations> phases = summarise(Paths.get(args[0]));
+        String report = report(phases);
+        log.info("Flight recording summary:\n{}", report);
+
+        if (args.length > 1) {
+            LoadGenerator.writeReport(Paths.get(args[1]), report);
+        }
+    }
+
+    static Map<String, Durations> summarise(final Path recording) throws IOException {
+        Map<String, Durations> phases = new TreeMap<>();
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                long duration = event.getDuration().toNanos();
+
+                switch (event.getEventType().getName()) {
+                    case "com.solidbrain.WorkflowRun":
+                        phases.computeIfAbsent("run", Durations::new).add(duration);
+                        break;
+                    case "com.solidbrain.ProcessEvent":
+                        phases.computeIfAbsent("process." + event.getString("entityType"), Durations::new)
+                                .add(duration);
+                        break;
+                    case "com.solidbrain.ApiCall":
+                        String endpoint = event.getString("endpoint");
+                        phases.computeIfAbsent("api." + endpoint, Durations::new).add(duration);
+                        phases.computeIfAbsent("wait." + endpoint, Durations::new).add(event.getLong("queueWait"));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return phases;
+    }
+
+    private static String report(final Map<String, Durations> phases) {
+        StringWriter report = new StringWriter();
+        PrintWriter out = new PrintWriter(report);
+        out.printf("%-28s %8s %12s %10s %10s %10s %10s%n", "phase", "count", "total ms", "mean ms", "p50 ms", "p99 ms", "max ms");
+        phases.values().forEach(durations -> durations.print(out));
+        out.flush();
+        return report.toString();
+    }
+
+    /**
+     * Durations (ns) of the events of a phase
+     */
+    static final class Durations {
+        private final String phase;
+        private long[] values = new long[64];
+        private int count;
+
+        Durations(final String phase) {
+            this.phase = phase;
+        }
+
+        void add(final long duration) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = duration;
+        }
+
+        void print(final PrintWriter out) {
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            long total = Arrays.stream(sorted).sum();
+
+            out.printf("%-28s %8d %12.1f %10.2f %10.2f %10.2f %10.2f%n",
+                    phase,
+                    count,
+                    total / 1e6,
+                    count > 0 ? total / 1e6 / count : 0.0,
+                    percentile(sorted, 0.50) / 1e6,
+                    percentile(sorted, 0.99) / 1e6,
+                    count > 0 ? sorted[count - 1] / 1e6 : 0.0);
+        }
+
+        private static long percentile(final long[] sorted, final double quantile) {
+            if (sorted.length == 0) {
+                return 0L;
+            }
+            int index = (int) Math.ceil(quantile * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+}
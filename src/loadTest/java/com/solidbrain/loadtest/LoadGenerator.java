@@ -0,0 +1,184 @@
+package com.solidbrain.loadtest;
+
+import com.solidbrain.config.SelfTrainingApplication;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes synthetic contact and deal sync events through the workflow running against {@link BaseCrmStandIn}
+ * and reports events/sec, per-event latency (first delivery to acknowledgement) and API calls per event.
+ *
+ * Options (--name=value): events, contactShare, latency (ms), rateLimit (requests/sec), serverThreads,
+ * timeout (s), report (file). Remaining options are passed to the application (e.g. --workflow.concurrency.lanes=8).
+ */
+@Slf4j
+public class LoadGenerator {
+
+    private static final String SALES_REP_EMAIL = "sales.rep@loadtest.local";
+    private static final String ACCOUNT_MANAGER_EMAIL = "account.manager@loadtest.local";
+
+    private LoadGenerator() {
+    }
+
+    @SuppressWarnings("squid:S2095")
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        String[] applicationArgs = Arrays.stream(args)
+                .filter(arg -> !parseOption(arg, options))
+                .toArray(String[]::new);
+
+        int events = Integer.parseInt(options.getOrDefault("events", "1000"));
+        double contactShare = Double.parseDouble(options.getOrDefault("contactShare", "0.5"));
+        long latency = Long.parseLong(options.getOrDefault("latency", "20"));
+        int rateLimit = Integer.parseInt(options.getOrDefault("rateLimit", "0"));
+        int serverThreads = Integer.parseInt(options.getOrDefault("serverThreads", "64"));
+        long timeout = Long.parseLong(options.getOrDefault("timeout", "600"));
+        Path reportFile = Paths.get(options.getOrDefault("report", "build/reports/loadTest/report.txt"));
+
+        BaseCrmStandIn standIn = new BaseCrmStandIn(latency, rateLimit);
+        standIn.start(serverThreads);
+
+        long salesRepId = standIn.addUser("Sales Rep", SALES_REP_EMAIL);
+        standIn.addUser("Account Manager", ACCOUNT_MANAGER_EMAIL);
+        standIn.addStage("Incoming", "incoming", true);
+        long wonStageId = standIn.addStage("Won", "won", false);
+        standIn.addStage("Lost", "lost", false);
+
+        generateEvents(standIn, events, contactShare, salesRepId, wonStageId);
+
+        Path journal = Files.createTempFile("loadtest", ".journal");
+        configure(standIn, journal);
+        System.setProperty("workflow.sales.representatives.emails", SALES_REP_EMAIL);
+        System.setProperty("workflow.account.managers.emails", ACCOUNT_MANAGER_EMAIL);
+        System.setProperty("workflow.account.manager.on.duty.email", ACCOUNT_MANAGER_EMAIL);
+
+        long start = System.nanoTime();
+        ConfigurableApplicationContext context = SpringApplication.run(SelfTrainingApplication.class, applicationArgs);
+        try {
+            long deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+            while (standIn.getAcknowledgedCount() < events && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            String report = report(standIn, events, elapsed, options, applicationArgs);
+            log.info("Load test report:\n{}", report);
+
+            writeReport(reportFile, report);
+        } finally {
+            context.close();
+            standIn.stop();
+            Files.deleteIfExists(journal);
+        }
+    }
+
+    private static boolean parseOption(final String arg, final Map<String, String> options) {
+        return parseOption(arg, options, "events", "contactShare", "latency", "rateLimit", "serverThreads",
+                "timeout", "report");
+    }
+
+    static boolean parseOption(final String arg, final Map<String, String> options, final String... names) {
+        for (String option : names) {
+            String prefix = "--" + option + "=";
+            if (arg.startsWith(prefix)) {
+                options.put(option, arg.substring(prefix.length()));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Contact events: new companies owned by the sales representative (each gets a new deal).
+     * Deal events: deals won for contacts of the sales representative (each contact gets reassigned).
+     */
+    private static void generateEvents(final BaseCrmStandIn standIn,
+                                       final int events,
+                                       final double contactShare,
+                                       final long salesRepId,
+                                       final long wonStageId) {
+        Random random = new Random(events);
+        for (int i = 0; i < events; i++) {
+            Map<String, Object> contact = standIn.addContact("Company " + i, salesRepId);
+
+            if (random.nextDouble() < contactShare) {
+                standIn.publish("contact", "created", contact);
+            } else {
+                Map<String, Object> deal = standIn.addDeal("Deal " + i, (Long) contact.get("id"), salesRepId, wonStageId);
+                standIn.publish("deal", "updated", deal);
+            }
+        }
+    }
+
+    /**
+     * Points the application at the stand-in
+     */
+    static void configure(final BaseCrmStandIn standIn, final Path journal) {
+        System.setProperty("BASE_CRM_URL", standIn.getUrl());
+        System.setProperty("BASE_CRM_TOKEN", "loadtest");
+        System.setProperty("DEVICE_UUID", UUID.randomUUID().toString());
+        System.setProperty("workflow.journal.file", journal.toString());
+        // every run starts cold and records nothing
+        System.setProperty("workflow.snapshot.enabled", "false");
+        System.setProperty("workflow.recording.enabled", "false");
+        System.setProperty("workflow.polling.max.interval", System.getProperty("workflow.polling.max.interval", "100"));
+    }
+
+    static String report(final BaseCrmStandIn standIn,
+                         final int events,
+                         final long elapsed,
+                         final Map<String, String> options,
+                         final String[] applicationArgs) {
+        long[] latencies = standIn.getEventLatencies();
+        Arrays.sort(latencies);
+        int processed = standIn.getAcknowledgedCount();
+
+        Map<String, Long> calls = new TreeMap<>(standIn.getCalls());
+        long totalCalls = calls.values().stream().mapToLong(Long::longValue).sum();
+
+        StringWriter report = new StringWriter();
+        PrintWriter out = new PrintWriter(report);
+        out.printf("options: %s %s%n", options, Arrays.toString(applicationArgs));
+        out.printf("events: %d processed: %d%n", events, processed);
+        out.printf("elapsed: %.3f s%n", elapsed / 1e9);
+        out.printf("events/sec: %.1f%n", processed / (elapsed / 1e9));
+        out.printf("latency p50: %.1f ms%n", percentile(latencies, 0.50) / 1e6);
+        out.printf("latency p99: %.1f ms%n", percentile(latencies, 0.99) / 1e6);
+        out.printf("api calls/event: %.2f%n", processed > 0 ? (double) totalCalls / processed : 0.0);
+        out.printf("rate limited calls: %d%n", standIn.getRejectedCount());
+        calls.forEach((endpoint, count) -> out.printf("  %s: %d%n", endpoint, count));
+        out.flush();
+        return report.toString();
+    }
+
+    static void writeReport(final Path reportFile, final String report) throws IOException {
+        if (reportFile.getParent() != null) {
+            Files.createDirectories(reportFile.getParent());
+        }
+        Files.write(reportFile, report.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long percentile(final long[] sorted, final double quantile) {
+        if (sorted.length == 0) {
+            return 0L;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,208 @@
+package com.solidbrain.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.solidbrain.config.SelfTrainingApplication;
+import com.solidbrain.services.TrafficRecorder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a recording made with workflow.recording.enabled (see {@link TrafficRecorder}) through the workflow
+ * running against {@link BaseCrmStandIn} and reports events/sec, per-event latency and API calls per event
+ * in the same format as {@link LoadGenerator}, so reports of two builds can be diffed.
+ *
+ * Entities returned by the recorded reads (users, stages, contacts and deals, as first seen) are loaded into
+ * the stand-in, which serves all lookups of the replay; deals created during the recorded run are left out,
+ * so they are created again. Recorded sync events are published at the recorded pace scaled by speed
+ * (0 - all at once, as fast as possible).
+ *
+ * Options (--name=value): recording (file of a run, the latest one by default), speed, latency (ms),
+ * rateLimit (requests/sec), serverThreads, timeout (s), report (file). Remaining options are passed
+ * to the application, including the emails of the recorded run (e.g. --workflow.sales.representatives.emails=...).
+ */
+@Slf4j
+public class TrafficReplay {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private TrafficReplay() {
+    }
+
+    @SuppressWarnings("squid:S2095")
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        String[] applicationArgs = Arrays.stream(args)
+                .filter(arg -> !LoadGenerator.parseOption(arg, options, "recording", "speed", "latency", "rateLimit",
+                        "serverThreads", "timeout", "report"))
+                .toArray(String[]::new);
+
+        Path recording = Paths.get(options.getOrDefault("recording", "data/traffic.recording.gz"));
+        double speed = Double.parseDouble(options.getOrDefault("speed", "1"));
+        long latency = Long.parseLong(options.getOrDefault("latency", "0"));
+        int rateLimit = Integer.parseInt(options.getOrDefault("rateLimit", "0"));
+        int serverThreads = Integer.parseInt(options.getOrDefault("serverThreads", "64"));
+        long timeout = Long.parseLong(options.getOrDefault("timeout", "600"));
+        Path reportFile = Paths.get(options.getOrDefault("report", "build/reports/loadTest/replay.txt"));
+
+        Recording recorded = read(recording);
+        log.info("Read recording file={} events={} entities={}", recording, recorded.events.size(), recorded.entities.size());
+
+        BaseCrmStandIn standIn = new BaseCrmStandIn(latency, rateLimit);
+        standIn.start(serverThreads);
+        recorded.entities.forEach(entity -> standIn.importEntity(entity.type, entity.data));
+
+        Path journal = Files.createTempFile("replay", ".journal");
+        LoadGenerator.configure(standIn, journal);
+
+        long start = System.nanoTime();
+        ConfigurableApplicationContext context = SpringApplication.run(SelfTrainingApplication.class, applicationArgs);
+        try {
+            long deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+            publish(standIn, recorded.events, speed, deadline);
+            while (standIn.getAcknowledgedCount() < recorded.events.size() && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            String report = LoadGenerator.report(standIn, recorded.events.size(), elapsed, options, applicationArgs);
+            log.info("Replay report:\n{}", report);
+            LoadGenerator.writeReport(reportFile, report);
+        } finally {
+            context.close();
+            standIn.stop();
+            Files.deleteIfExists(journal);
+        }
+    }
+
+    /**
+     * Publishes events at their recorded offsets from the first event (divided by speed)
+     */
+    private static void publish(final BaseCrmStandIn standIn,
+                                final List<Event> events,
+                                final double speed,
+                                final long deadline) throws InterruptedException {
+        if (events.isEmpty()) {
+            return;
+        }
+
+        long firstRecordedAt = events.get(0).recordedAt;
+        long start = System.nanoTime();
+        for (Event event : events) {
+            if (speed > 0) {
+                long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(event.recordedAt - firstRecordedAt) / speed);
+                long wait = Math.min(due, deadline) - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            standIn.publish(event.type, event.eventType, event.data);
+        }
+    }
+
+    private static Recording read(final Path file) throws IOException {
+        Recording recording = new Recording();
+        List<Entity> reads = new ArrayList<>();
+        Set<Object> createdDealIds = new HashSet<>();
+
+        TrafficRecorder.read(file, record -> {
+            try {
+                JsonNode payload = OBJECT_MAPPER.readTree(record.payload);
+                String type = typeOf(record.endpoint);
+
+                if ("sync.fetch".equals(record.endpoint)) {
+                    for (JsonNode item : payload.path("items")) {
+                        Event event = new Event(record.recordedAt,
+                                item.path("meta").path("type").asText(),
+                                item.path("meta").path("sync").path("event_type").asText(),
+                                toMap(item.path("data")));
+                        recording.events.add(event);
+                        reads.add(new Entity(event.type, event.data));
+                    }
+                } else if ("deals.create".equals(record.endpoint)) {
+                    createdDealIds.add(toMap(payload).get("id"));
+                } else if (type != null && payload.isArray()) {
+                    payload.forEach(entity -> reads.add(new Entity(type, toMap(entity))));
+                } else if (type != null && !record.endpoint.endsWith(".update")) {
+                    reads.add(new Entity(type, toMap(payload)));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        reads.stream()
+                .filter(entity -> !("deal".equals(entity.type) && createdDealIds.contains(entity.data.get("id"))))
+                .forEach(recording.entities::add);
+        return recording;
+    }
+
+    /**
+     * Entity type of the endpoint (e.g. contacts.get - contact)
+     */
+    private static String typeOf(final String endpoint) {
+        int separator = endpoint.indexOf('.');
+        String resource = separator > 0 ? endpoint.substring(0, separator) : endpoint;
+        switch (resource) {
+            case "users":
+                return "user";
+            case "stages":
+                return "stage";
+            case "contacts":
+                return "contact";
+            case "deals":
+                return "deal";
+            default:
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> toMap(final JsonNode node) {
+        return OBJECT_MAPPER.convertValue(node, Map.class);
+    }
+
+    private static final class Recording {
+        private final List<Event> events = new ArrayList<>();
+        private final List<Entity> entities = new ArrayList<>();
+    }
+
+    private static final class Event {
+        private final long recordedAt;
+        private final String type;
+        private final String eventType;
+        private final Map<String, Object> data;
+
+        private Event(final long recordedAt, final String type, final String eventType, final Map<String, Object> data) {
+            this.recordedAt = recordedAt;
+            this.type = type;
+            this.eventType = eventType;
+            this.data = data;
+        }
+    }
+
+    private static final class Entity {
+        private final String type;
+        private final Map<String, Object> data;
+
+        private Entity(final String type, final Map<String, Object> data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.solidbrain.config;
+
+/**
+ * Base CRM account the application works on: API address, OAuth2 token and sync device
+ */
+public class BaseAccount {
+
+    public static final String DEFAULT_BASE_URL = "https://api.getbase.com";
+
+    private final String baseUrl;
+    private final String accessToken;
+    private final String deviceUuid;
+
+    public BaseAccount(String baseUrl, String accessToken, String deviceUuid) {
+        this.baseUrl = baseUrl.replaceAll("/+$", "");
+        this.accessToken = accessToken;
+        this.deviceUuid = deviceUuid;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public String getDeviceUuid() {
+        return deviceUuid;
+    }
+}
@@ -2,6 +2,7 @@ package com.solidbrain.config;
 
 import com.getbase.Client;
 import com.getbase.sync.Sync;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -17,9 +18,18 @@ public class BaseConfig {
 
     @Bean
     @Scope(ConfigurableBeanFactory.SCOPE_SINGLETON)
-    public Client getClient() {
+    public BaseAccount getBaseAccount() {
+        return new BaseAccount(getBaseUrl(), getAccessToken(), getDeviceUuid());
+    }
+
+    @Bean
+    @Scope(ConfigurableBeanFactory.SCOPE_SINGLETON)
+    public Client getClient(BaseAccount account, @Value("${workflow.http.read.timeout}") int readTimeout) {
+        // the client has a single timeout (connect and read), the read timeout covers slow responses
         return new Client(new com.getbase.Configuration.Builder()
-                .accessToken(getAccessToken())
+                .accessToken(account.getAccessToken())
+                .baseUrl(account.getBaseUrl())
+                .timeout(readTimeout)
                 .build());
     }
 
@@ -28,10 +38,16 @@ public class BaseConfig {
                 orElseThrow(() -> new IllegalStateException("Missing Base CRM OAuth2 token"));
     }
 
+    // overrides Base CRM API address (e.g. local stand-in used by load tests)
+    private String getBaseUrl() {
+        return Optional.ofNullable(System.getProperty("BASE_CRM_URL", System.getenv("BASE_CRM_URL"))).
+                orElse(BaseAccount.DEFAULT_BASE_URL);
+    }
+
     @Bean
     @Scope(ConfigurableBeanFactory.SCOPE_SINGLETON)
-    public Sync getSync(Client client){
-        return new Sync(client, getDeviceUuid());
+    public Sync getSync(Client client, BaseAccount account){
+        return new Sync(client, account.getDeviceUuid());
     }
 
     private String getDeviceUuid() {
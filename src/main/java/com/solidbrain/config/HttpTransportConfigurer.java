@@ -0,0 +1,33 @@
+package com.solidbrain.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
+import org.springframework.context.ApplicationListener;
+
+/**
+ * Sizes the keep-alive pool of HttpURLConnection, through which the Base client and the sync send requests.
+ *
+ * The pool keeps up to http.maxConnections idle connections per host. The property is JVM-wide and read once,
+ * when the first connection is made, so it is set as soon as the environment of the application is prepared,
+ * before any bean exists. It is taken from workflow.http.max.connections (application.properties, command line
+ * or environment), the same property which limits the number of concurrent calls (see BaseApiCalls),
+ * so the pool and the limit cannot disagree.
+ *
+ * Registered in META-INF/spring.factories.
+ */
+@Slf4j
+public class HttpTransportConfigurer implements ApplicationListener<ApplicationEnvironmentPreparedEvent> {
+
+    @Override
+    public void onApplicationEvent(final ApplicationEnvironmentPreparedEvent event) {
+        String maxConnections = event.getEnvironment().getRequiredProperty("workflow.http.max.connections");
+
+        String configured = System.getProperty("http.maxConnections");
+        if (configured != null && !configured.equals(maxConnections)) {
+            log.warn("Ignoring http.maxConnections={}, the pool is sized by workflow.http.max.connections={}",
+                    configured, maxConnections);
+        }
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", maxConnections);
+    }
+}
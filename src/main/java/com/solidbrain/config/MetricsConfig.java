@@ -14,9 +14,12 @@ import com.codahale.metrics.jvm.MemoryUsageGaugeSet;
 import com.codahale.metrics.jvm.ThreadStatesGaugeSet;
 import com.codahale.metrics.logback.InstrumentedAppender;
 import com.ryantenney.metrics.spring.config.annotation.MetricsConfigurerAdapter;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.dropwizard.DropwizardExports;
 import org.apache.http.client.HttpClient;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.ConfigurableBeanFactory;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -35,6 +38,15 @@ import java.util.concurrent.TimeUnit;
 @EnableMetrics
 public class MetricsConfig extends MetricsConfigurerAdapter {
 
+    @Value("${workflow.metrics.reporters.console.enabled}")
+    private boolean consoleReporterEnabled;
+
+    @Value("${workflow.metrics.reporters.slf4j.enabled}")
+    private boolean slf4jReporterEnabled;
+
+    @Value("${workflow.metrics.reporters.interval}")
+    private long reportersInterval;
+
     @Bean
     @Autowired
     public HttpClient getHttpClient(MetricRegistry registry) {
@@ -69,6 +81,20 @@ public class MetricsConfig extends MetricsConfigurerAdapter {
         return registry;
     }
 
+    @Bean
+    @Autowired
+    public CollectorRegistry getCollectorRegistry(MetricRegistry registry) {
+        CollectorRegistry collectorRegistry = new CollectorRegistry();
+        new DropwizardExports(registry).register(collectorRegistry);
+        return collectorRegistry;
+    }
+
+    @Bean
+    @Autowired
+    public PrometheusEndpoint getPrometheusEndpoint(CollectorRegistry collectorRegistry) {
+        return new PrometheusEndpoint(collectorRegistry);
+    }
+
     @Override
     public HealthCheckRegistry getHealthCheckRegistry() {
         return new HealthCheckRegistry();
@@ -78,15 +104,20 @@ public class MetricsConfig extends MetricsConfigurerAdapter {
     public void configureReporters(MetricRegistry metricRegistry) {
         // registerReporter allows the MetricsConfigurerAdapter to
         // shut down the reporter when the Spring context is closed
-        registerReporter(ConsoleReporter
-                .forRegistry(metricRegistry)
-                .build())
-                .start(1, TimeUnit.MINUTES);
-
-        registerReporter(Slf4jReporter
-                .forRegistry(metricRegistry)
-                .build())
-                .start(1, TimeUnit.MINUTES);
+        // bulk reporters are opt-in, metrics are scraped from /prometheus
+        if (consoleReporterEnabled) {
+            registerReporter(ConsoleReporter
+                    .forRegistry(metricRegistry)
+                    .build())
+                    .start(reportersInterval, TimeUnit.SECONDS);
+        }
+
+        if (slf4jReporterEnabled) {
+            registerReporter(Slf4jReporter
+                    .forRegistry(metricRegistry)
+                    .build())
+                    .start(reportersInterval, TimeUnit.SECONDS);
+        }
 
         JmxReporter.forRegistry(metricRegistry).build().start();
     }
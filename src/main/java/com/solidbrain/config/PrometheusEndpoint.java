@@ -0,0 +1,34 @@
+package com.solidbrain.config;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.springframework.boot.actuate.endpoint.mvc.AbstractMvcEndpoint;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Actuator endpoint (/prometheus) exposing all metrics in the Prometheus text format.
+ *
+ * Metrics are read only when scraped, so nothing is written periodically.
+ */
+public class PrometheusEndpoint extends AbstractMvcEndpoint {
+
+    private CollectorRegistry collectorRegistry;
+
+    public PrometheusEndpoint(CollectorRegistry collectorRegistry) {
+        super("/prometheus", true);
+        this.collectorRegistry = collectorRegistry;
+    }
+
+    @RequestMapping(method = RequestMethod.GET, produces = TextFormat.CONTENT_TYPE_004)
+    @ResponseBody
+    public String scrape() throws IOException {
+        StringWriter writer = new StringWriter();
+        TextFormat.write004(writer, collectorRegistry.metricFamilySamples());
+        return writer.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package com.solidbrain.services;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit of Base CRM API calls sized with AIMD (additive increase, multiplicative decrease).
+ *
+ * The limit grows by one call per limit's worth of fast successful calls and is cut when Base CRM throttles
+ * (halved), the remaining quota runs low or a call is much slower than usual for its endpoint (cut by 10%).
+ * It never exceeds the size of the connection pool nor drops below one call. Writes waiting for a free slot
+ * are let in before any waiting read.
+ */
+final class AdaptiveLimiter {
+
+    private static final double THROTTLED_BACKOFF = 0.5;
+    private static final double CONGESTION_BACKOFF = 0.9;
+    private static final double MIN_LIMIT = 1.0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition writeSlots = lock.newCondition();
+    private final Condition readSlots = lock.newCondition();
+
+    private final double maxLimit;
+
+    private volatile double limit;
+    private int inFlight;
+    private int waitingWrites;
+    private int waitingReads;
+
+    AdaptiveLimiter(final int maxLimit) {
+        this.maxLimit = Math.max(maxLimit, MIN_LIMIT);
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Blocks until the call may start
+     * @param write true for calls modifying data (let in before reads)
+     */
+    void acquire(final boolean write) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (write) {
+                waitingWrites++;
+                try {
+                    while (inFlight >= getLimit()) {
+                        writeSlots.await();
+                    }
+                } finally {
+                    waitingWrites--;
+                }
+                if (waitingWrites == 0) {
+                    readSlots.signalAll();
+                }
+            } else {
+                waitingReads++;
+                try {
+                    while (inFlight >= getLimit() || waitingWrites > 0) {
+                        readSlots.await();
+                    }
+                } finally {
+                    waitingReads--;
+                }
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends the call and adjusts the limit
+     * @param throttled true if Base CRM rejected the call with its rate limit
+     * @param congested true if the call was much slower than usual
+     */
+    void release(final boolean throttled, final boolean congested) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (throttled) {
+                limit = Math.max(MIN_LIMIT, limit * THROTTLED_BACKOFF);
+            } else if (congested) {
+                limit = Math.max(MIN_LIMIT, limit * CONGESTION_BACKOFF);
+            } else {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            signalNext();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cuts the limit when the remaining quota of requests is low
+     * @param remaining requests left in the current rate limit window
+     */
+    void onQuota(final long remaining) {
+        lock.lock();
+        try {
+            if (remaining < limit * 2) {
+                limit = Math.max(MIN_LIMIT, Math.min(limit, remaining / 2.0));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalNext() {
+        if (waitingWrites > 0) {
+            writeSlots.signal();
+        } else {
+            readSlots.signalAll();
+        }
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWaiting() {
+        lock.lock();
+        try {
+            return waitingWrites + waitingReads;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.solidbrain.services;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event of a Base CRM API call (duration of the call itself, without waiting for a free slot)
+ */
+@Name("com.solidbrain.ApiCall")
+@Label("Base CRM API Call")
+@Category({ "Self Training", "Base CRM" })
+@StackTrace(false)
+class ApiCallEvent extends Event {
+
+    @Label("Endpoint")
+    @Description("Name of the called endpoint (e.g. deals.list)")
+    String endpoint;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("Write")
+    boolean write;
+
+    @Label("Queue Wait")
+    @Description("Time spent waiting for a free slot of the concurrency limit")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueWait;
+
+    @Label("Payload Size")
+    @Description("Size of the raw response, -1 if decoded by the Base CRM client")
+    @DataAmount
+    long payloadSize;
+
+    @Label("Items")
+    @Description("Number of returned items, -1 if not a list")
+    int items;
+}
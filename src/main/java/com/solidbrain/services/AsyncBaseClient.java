@@ -0,0 +1,95 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.getbase.Client;
+import com.getbase.models.Contact;
+import com.getbase.models.Deal;
+import com.getbase.models.User;
+import com.getbase.services.DealsService;
+import com.getbase.services.UsersService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Non-blocking facade of the Base CRM client used for lookups, so that independent lookups
+ * of a single event run concurrently.
+ *
+ * Calls are executed on a dedicated, bounded executor. When its queue is full the calling thread
+ * executes the call itself (backpressure instead of unbounded queueing).
+ */
+@Service
+public class AsyncBaseClient {
+
+    private Client baseClient;
+
+    private BaseApiCalls apiCalls;
+
+    private ThreadPoolExecutor executor;
+
+    @Autowired
+    public AsyncBaseClient(Client client,
+                           BaseApiCalls apiCalls,
+                           MetricRegistry metricRegistry,
+                           @Value("${workflow.client.async.threads}") int threads,
+                           @Value("${workflow.client.async.queue.capacity}") int queueCapacity) {
+        this.baseClient = client;
+        this.apiCalls = apiCalls;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "base-client-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        metricRegistry.register(name(AsyncBaseClient.class, "queueDepth"), (Gauge<Integer>) () -> executor.getQueue().size());
+        metricRegistry.register(name(AsyncBaseClient.class, "active"), (Gauge<Integer>) executor::getActiveCount);
+    }
+
+    public CompletableFuture<User> getUser(final long userId) {
+        return supplyAsync("users.get", () -> baseClient.users()
+                .get(userId));
+    }
+
+    public CompletableFuture<Optional<User>> findUserByEmail(final String email) {
+        return supplyAsync("users.list", () -> baseClient.users()
+                .list(new UsersService.SearchCriteria().email(email)))
+                .thenApply(users -> users.stream().findFirst());
+    }
+
+    public CompletableFuture<Contact> getContact(final long contactId) {
+        return supplyAsync("contacts.get", () -> baseClient.contacts()
+                .get(contactId));
+    }
+
+    public CompletableFuture<List<Deal>> listDealsOfContact(final long contactId) {
+        return supplyAsync("deals.list", () -> baseClient.deals()
+                .list(new DealsService.SearchCriteria().contactId(contactId)));
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(final String endpoint, final Supplier<T> call) {
+        return CompletableFuture.supplyAsync(() -> apiCalls.execute(endpoint, call), executor);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,209 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.getbase.exceptions.ConnectionException;
+import com.getbase.exceptions.RateLimitException;
+import com.getbase.exceptions.ServerException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Single point through which Base CRM API calls are made.
+ *
+ * Every call takes a slot of the concurrency limit and records its latency in a timer per endpoint
+ * and outcome (e.g. BaseApiCalls.deals.list.success, BaseApiCalls.contacts.update.rateLimited).
+ * The number of concurrent calls is limited by {@link AdaptiveLimiter}: up to workflow.http.max.connections,
+ * lowered when Base CRM throttles, the remaining quota runs low or calls get much slower than usual
+ * for their endpoint. Waiting writes (create, update, delete) are let in before waiting reads.
+ * Every call in flight holds a connection of the keep-alive pool, which has workflow.http.max.connections
+ * connections as well (see HttpTransportConfigurer): BaseApiCalls.pool.leases times how long calls hold
+ * a connection, BaseApiCalls.pool.utilisation is the share of the pool in use.
+ * Results of successful calls are passed to {@link TrafficRecorder} (when recording is enabled).
+ */
+@Service
+public class BaseApiCalls {
+
+    static final String SUCCESS = "success";
+    static final String RATE_LIMITED = "rateLimited";
+    static final String SERVER_ERROR = "serverError";
+    static final String CONNECTION_ERROR = "connectionError";
+    static final String ERROR = "error";
+
+    private static final double LATENCY_TOLERANCE = 3.0;
+    private static final double LATENCY_SMOOTHING = 0.05;
+    private static final long MIN_CONGESTED_LATENCY = MILLISECONDS.toNanos(50);
+
+    private MetricRegistry metricRegistry;
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, double[]> usualLatencies = new ConcurrentHashMap<>();
+
+    private TrafficRecorder trafficRecorder;
+
+    private AdaptiveLimiter limiter;
+
+    private Timer leases;
+    private Timer poolLeases;
+    private Timer readWaits;
+    private Timer writeWaits;
+    private Meter rejections;
+
+    @Autowired
+    public BaseApiCalls(MetricRegistry metricRegistry,
+                        TrafficRecorder trafficRecorder,
+                        @Value("${workflow.http.max.connections}") int maxConnections) {
+        this.metricRegistry = metricRegistry;
+        this.trafficRecorder = trafficRecorder;
+        this.limiter = new AdaptiveLimiter(maxConnections);
+        int poolSize = Math.max(maxConnections, 1);
+
+        this.leases = metricRegistry.timer(name(BaseApiCalls.class, "limiter", "leases"));
+        this.readWaits = metricRegistry.timer(name(BaseApiCalls.class, "limiter", "waits", "reads"));
+        this.writeWaits = metricRegistry.timer(name(BaseApiCalls.class, "limiter", "waits", "writes"));
+        this.rejections = metricRegistry.meter(name(BaseApiCalls.class, "limiter", "rejections"));
+        metricRegistry.register(name(BaseApiCalls.class, "limiter", "limit"), (Gauge<Integer>) limiter::getLimit);
+        metricRegistry.register(name(BaseApiCalls.class, "limiter", "leased"), (Gauge<Integer>) limiter::getInFlight);
+        metricRegistry.register(name(BaseApiCalls.class, "limiter", "utilisation"),
+                (Gauge<Double>) () -> (double) limiter.getInFlight() / limiter.getLimit());
+        metricRegistry.register(name(BaseApiCalls.class, "limiter", "waiting"),
+                (Gauge<Integer>) limiter::getWaiting);
+
+        this.poolLeases = metricRegistry.timer(name(BaseApiCalls.class, "pool", "leases"));
+        metricRegistry.register(name(BaseApiCalls.class, "pool", "size"), (Gauge<Integer>) () -> poolSize);
+        metricRegistry.register(name(BaseApiCalls.class, "pool", "utilisation"),
+                (Gauge<Double>) () -> (double) limiter.getInFlight() / poolSize);
+    }
+
+    /**
+     * Executes the call and records its latency (also as {@link ApiCallEvent} when Flight Recorder is on)
+     * @param endpoint name of the called endpoint (e.g. deals.list)
+     * @param call Base CRM client call
+     * @return result of the call
+     */
+    public <T> T execute(final String endpoint, final Supplier<T> call) {
+        boolean write = isWrite(endpoint);
+        long queueWait = lease(write);
+
+        ApiCallEvent event = new ApiCallEvent();
+        event.begin();
+
+        long start = System.nanoTime();
+        String outcome = ERROR;
+        T result = null;
+        try {
+            result = call.get();
+            outcome = SUCCESS;
+            return result;
+        } catch (RuntimeException e) {
+            outcome = getOutcome(e);
+            throw e;
+        } finally {
+            long latency = System.nanoTime() - start;
+            getTimer(endpoint, outcome).update(latency, NANOSECONDS);
+            poolLeases.update(latency, NANOSECONDS);
+
+            boolean throttled = RATE_LIMITED.equals(outcome);
+            if (throttled) {
+                rejections.mark();
+            }
+            limiter.release(throttled, SUCCESS.equals(outcome) && isCongested(endpoint, latency));
+
+            if (SUCCESS.equals(outcome)) {
+                trafficRecorder.record(endpoint, result);
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.endpoint = endpoint;
+                event.outcome = outcome;
+                event.write = write;
+                event.queueWait = queueWait;
+                event.payloadSize = result instanceof byte[] ? ((byte[]) result).length : -1L;
+                event.items = result instanceof Collection ? ((Collection<?>) result).size() : -1;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Executes the call not returning any result and records its latency
+     */
+    public void run(final String endpoint, final Runnable call) {
+        execute(endpoint, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /**
+     * Reports the remaining quota of requests read from the rate limit headers of a response
+     * (only responses of raw HTTP calls expose them)
+     * @param remaining requests left in the current rate limit window
+     */
+    public void reportQuota(final long remaining) {
+        limiter.onQuota(remaining);
+    }
+
+    /**
+     * @return time spent waiting (ns)
+     */
+    private long lease(final boolean write) {
+        long start = System.nanoTime();
+        try {
+            limiter.acquire(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a slot of the concurrency limit", e);
+        }
+
+        long wait = System.nanoTime() - start;
+        leases.update(wait, NANOSECONDS);
+        (write ? writeWaits : readWaits).update(wait, NANOSECONDS);
+        return wait;
+    }
+
+    private static boolean isWrite(final String endpoint) {
+        return endpoint.endsWith(".create") || endpoint.endsWith(".update") || endpoint.endsWith(".delete");
+    }
+
+    /**
+     * Compares the latency with the smoothed usual latency of successful calls of the endpoint
+     */
+    private boolean isCongested(final String endpoint, final long latency) {
+        double[] usual = usualLatencies.computeIfAbsent(endpoint, key -> new double[] { latency });
+        synchronized (usual) {
+            boolean congested = latency > MIN_CONGESTED_LATENCY && latency > usual[0] * LATENCY_TOLERANCE;
+            usual[0] += (latency - usual[0]) * LATENCY_SMOOTHING;
+            return congested;
+        }
+    }
+
+    private static String getOutcome(final RuntimeException e) {
+        if (e instanceof RateLimitException) {
+            return RATE_LIMITED;
+        } else if (e instanceof ServerException) {
+            return SERVER_ERROR;
+        } else if (e instanceof ConnectionException) {
+            return CONNECTION_ERROR;
+        }
+        return ERROR;
+    }
+
+    private Timer getTimer(final String endpoint, final String outcome) {
+        return timers.computeIfAbsent(endpoint + "." + outcome,
+                key -> metricRegistry.timer(name(BaseApiCalls.class, endpoint, outcome)));
+    }
+}
@@ -0,0 +1,168 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.getbase.models.Contact;
+import com.getbase.models.Deal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.solidbrain.services.Hashing.mix;
+
+/**
+ * Detects updates of contacts and deals which change no field the rules look at.
+ *
+ * After a successful evaluation a fingerprint of the rule-relevant fields (is_organization and owner_id
+ * of contacts, contact_id and stage_id of deals) is stored per entity id. An "updated" event with the same
+ * fingerprint needs no evaluation (and no lookups). Fingerprints are kept in fixed-size direct-mapped tables
+ * of primitives (workflow.fingerprints.capacity entries per entity type), a colliding entity simply evicts
+ * the previous one. The deal-based decision of a contact is forgotten whenever a deal of the contact changes,
+ * all fingerprints are forgotten when the users or stages (the rules themselves) change.
+ */
+@Slf4j
+@Service
+public class ChangeDetector {
+
+    private static final long EMPTY = 0L;
+
+    private boolean enabled;
+
+    private Table contacts;
+    private Table deals;
+
+    @Autowired
+    public ChangeDetector(MetricRegistry metricRegistry,
+                          @Value("${workflow.fingerprints.enabled}") boolean enabled,
+                          @Value("${workflow.fingerprints.capacity}") int capacity) {
+        this.enabled = enabled && capacity > 0;
+        this.contacts = new Table(metricRegistry, "contacts", capacity);
+        this.deals = new Table(metricRegistry, "deals", capacity);
+    }
+
+    /**
+     * Checks whether the update of the contact changes none of its rule-relevant fields
+     * @param contact contact delivered by the sync
+     * @return true if the contact was already evaluated with the same fields
+     */
+    public boolean isUnchanged(final Contact contact) {
+        return enabled && contacts.isUnchanged(contact.getId(), fingerprintOf(contact));
+    }
+
+    /**
+     * Remembers the fields of a successfully evaluated contact
+     */
+    public void recordEvaluated(final Contact contact) {
+        if (enabled) {
+            contacts.record(contact.getId(), fingerprintOf(contact));
+        }
+    }
+
+    public boolean isUnchanged(final Deal deal) {
+        return enabled && deals.isUnchanged(deal.getId(), fingerprintOf(deal));
+    }
+
+    public void recordEvaluated(final Deal deal) {
+        if (enabled) {
+            deals.record(deal.getId(), fingerprintOf(deal));
+        }
+    }
+
+    /**
+     * Forgets the evaluation of the contact (e.g. after its deals changed)
+     * @param contactId contact's id (may be null)
+     */
+    public void forgetContact(final Long contactId) {
+        if (enabled && contactId != null) {
+            contacts.forget(contactId);
+        }
+    }
+
+    /**
+     * Forgets all evaluations (after a change of users or stages)
+     */
+    public void forgetAll() {
+        if (enabled) {
+            contacts.clear();
+            deals.clear();
+            log.debug("Forgotten all fingerprints");
+        }
+    }
+
+    static long fingerprintOf(final Contact contact) {
+        return mix(mix(Boolean.TRUE.equals(contact.getIsOrganization()) ? 1L : 2L) ^ valueOf(contact.getOwnerId()));
+    }
+
+    static long fingerprintOf(final Deal deal) {
+        return mix(mix(valueOf(deal.getContactId())) ^ valueOf(deal.getStageId()));
+    }
+
+    private static long valueOf(final Long value) {
+        return value != null ? value : -1L;
+    }
+
+    /**
+     * Direct-mapped table of (entity id, fingerprint) pairs
+     */
+    private static final class Table {
+        private final long[] ids;
+        private final long[] fingerprints;
+        private final int mask;
+
+        private final Meter skipped;
+        private final Meter evaluated;
+
+        Table(final MetricRegistry metricRegistry, final String entityType, final int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 1));
+            this.ids = new long[size];
+            this.fingerprints = new long[size];
+            this.mask = size - 1;
+
+            this.skipped = metricRegistry.meter(name(ChangeDetector.class, entityType, "skipped"));
+            this.evaluated = metricRegistry.meter(name(ChangeDetector.class, entityType, "evaluated"));
+            metricRegistry.register(name(ChangeDetector.class, entityType, "skipRatio"), new RatioGauge() {
+                @Override
+                protected Ratio getRatio() {
+                    return Ratio.of(skipped.getFiveMinuteRate(), skipped.getFiveMinuteRate() + evaluated.getFiveMinuteRate());
+                }
+            });
+        }
+
+        private int slotOf(final long id) {
+            return (int) mix(id) & mask;
+        }
+
+        synchronized boolean isUnchanged(final long id, final long fingerprint) {
+            int slot = slotOf(id);
+            boolean unchanged = ids[slot] == id && fingerprints[slot] == fingerprint;
+            if (unchanged) {
+                skipped.mark();
+            } else {
+                evaluated.mark();
+            }
+            return unchanged;
+        }
+
+        synchronized void record(final long id, final long fingerprint) {
+            int slot = slotOf(id);
+            ids[slot] = id;
+            fingerprints[slot] = fingerprint;
+        }
+
+        synchronized void forget(final long id) {
+            int slot = slotOf(id);
+            if (ids[slot] == id) {
+                ids[slot] = EMPTY;
+            }
+        }
+
+        synchronized void clear() {
+            Arrays.fill(ids, EMPTY);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.getbase.models.Deal;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Local index of active deals by contact, maintained from Deal sync events.
+ *
+ * A contact becomes "warm" once its deals have been loaded from Base CRM; from then on
+ * the sync stream keeps its entry current and no remote deal search is needed.
+ * Only deals in an active stage of warm contacts are kept (won/lost deals and deals of contacts
+ * never looked up are dropped), so the index grows with the open pipeline only.
+ * Deals are stored as packed (deal id, stage id) pairs under primitive contact id keys.
+ * Warm contacts are saved in the warm cache snapshot and restored on first use after a clean restart.
+ */
+@Slf4j
+@Service
+public class ContactDealIndex implements SnapshotSection {
+
+    private static final long[] NO_DEALS = new long[0];
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Long2ObjectOpenHashMap<long[]> dealsByContact = new Long2ObjectOpenHashMap<>();
+    private final Long2LongOpenHashMap contactsByDeal = new Long2LongOpenHashMap();
+    private final LongOpenHashSet warmContacts = new LongOpenHashSet();
+
+    private StageCatalog stageCatalog;
+
+    private Counter hits;
+    private Counter misses;
+
+    private volatile ByteBuffer snapshot;
+
+    @Autowired
+    public ContactDealIndex(StageCatalog stageCatalog,
+                            MetricRegistry metricRegistry) {
+        this.stageCatalog = stageCatalog;
+
+        this.hits = metricRegistry.counter(name(ContactDealIndex.class, "hits"));
+        this.misses = metricRegistry.counter(name(ContactDealIndex.class, "misses"));
+        metricRegistry.register(name(ContactDealIndex.class, "contacts"), (Gauge<Integer>) this::getWarmContactsCount);
+        metricRegistry.register(name(ContactDealIndex.class, "deals"), (Gauge<Integer>) this::getDealsCount);
+    }
+
+    /**
+     * Checks whether all deals of the contact are known locally
+     * @param contactId contact's id
+     * @return true if the contact's deals have been loaded from Base CRM
+     */
+    public boolean isWarm(final long contactId) {
+        restorePendingSnapshot();
+
+        lock.readLock().lock();
+        try {
+            boolean warm = warmContacts.contains(contactId);
+            if (warm) {
+                hits.inc();
+            } else {
+                misses.inc();
+            }
+            return warm;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns stage ids of locally known (active) deals of the contact
+     * @param contactId contact's id
+     * @return stage ids
+     */
+    public long[] getStageIds(final long contactId) {
+        restorePendingSnapshot();
+
+        lock.readLock().lock();
+        try {
+            long[] pairs = dealsByContact.get(contactId);
+            if (pairs == null) {
+                return NO_DEALS;
+            }
+
+            long[] stageIds = new long[pairs.length / 2];
+            for (int i = 0; i < stageIds.length; i++) {
+                stageIds[i] = pairs[2 * i + 1];
+            }
+            return stageIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the contact as warm with the deals fetched from Base CRM
+     * @param contactId contact's id
+     * @param deals all deals of the contact (only the active ones are kept)
+     */
+    public void load(final long contactId, final List<Deal> deals) {
+        restorePendingSnapshot();
+
+        // stages are looked up before taking the lock, a stage catalog reload must not block the index
+        List<Deal> activeDeals = deals.stream()
+                .filter(this::isActive)
+                .collect(Collectors.toList());
+
+        lock.writeLock().lock();
+        try {
+            activeDeals.forEach(d -> putDeal(contactId, d.getId(), d.getStageId()));
+            warmContacts.add(contactId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies Deal sync event (or a locally created deal) to the index.
+     * A deal leaving the active stages or belonging to a contact that is not warm is removed.
+     * @param eventType sync event type (created, updated, deleted)
+     * @param deal deal delivered by the sync
+     * @return contact the deal was indexed under before the event if it no longer belongs to it (moved or deleted
+     * deal), null otherwise
+     */
+    public Long onDealEvent(final String eventType, final Deal deal) {
+        log.debug("Deal sync eventType={} dealId={}", eventType, deal.getId());
+        restorePendingSnapshot();
+
+        boolean deleted = eventType.contentEquals("deleted") || deal.getContactId() == null;
+        boolean active = !deleted && isActive(deal);
+
+        lock.writeLock().lock();
+        try {
+            Long previousContactId = contactsByDeal.containsKey(deal.getId()) ? contactsByDeal.get(deal.getId()) : null;
+            if (deleted) {
+                removeDeal(deal.getId());
+                return previousContactId;
+            }
+
+            if (active && warmContacts.contains(deal.getContactId())) {
+                putDeal(deal.getContactId(), deal.getId(), deal.getStageId());
+            } else {
+                removeDeal(deal.getId());
+            }
+            return deal.getContactId().equals(previousContactId) ? null : previousContactId;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a move of the deal to another contact processed elsewhere (by another node of the cluster)
+     * @param dealId deal's id
+     * @param contactId contact the deal belongs to now, null if none
+     * @return contact the deal was indexed under if it was another one, null otherwise
+     */
+    public Long onDealMoved(final long dealId, final Long contactId) {
+        restorePendingSnapshot();
+
+        lock.writeLock().lock();
+        try {
+            if (!contactsByDeal.containsKey(dealId) || Long.valueOf(contactsByDeal.get(dealId)).equals(contactId)) {
+                return null;
+            }
+
+            long previousContactId = contactsByDeal.get(dealId);
+            removeDeal(dealId);
+            return previousContactId;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets all contacts (e.g. when they may have been handled by another node of the cluster),
+     * their deals are loaded from Base CRM again on next use
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            snapshot = null;
+            dealsByContact.clear();
+            contactsByDeal.clear();
+            warmContacts.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String getSectionName() {
+        return "contactDeals";
+    }
+
+    @Override
+    public int getSectionVersion() {
+        // version 1 held deals in any stage
+        return 2;
+    }
+
+    /**
+     * Saves the warm contacts with their (deal id, stage id) pairs of active deals
+     */
+    @Override
+    public void writeSection(final DataOutputStream out) throws IOException {
+        restorePendingSnapshot();
+
+        lock.readLock().lock();
+        try {
+            out.writeInt(warmContacts.size());
+            for (long contactId : warmContacts) {
+                long[] pairs = dealsByContact.get(contactId);
+                int length = pairs != null ? pairs.length : 0;
+                out.writeLong(contactId);
+                out.writeInt(length);
+                for (int i = 0; i < length; i++) {
+                    out.writeLong(pairs[i]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void restoreSection(final ByteBuffer section) {
+        snapshot = section;
+    }
+
+    /**
+     * A warm contact is never reloaded, so deal events missed by a periodic snapshot would be lost for good;
+     * after a crash the contacts start cold and their deals are loaded from Base CRM again
+     */
+    @Override
+    public boolean isRestoredOnlyAfterCleanShutdown() {
+        return true;
+    }
+
+    private void restorePendingSnapshot() {
+        if (snapshot != null) {
+            restoreSnapshot();
+        }
+    }
+
+    private void restoreSnapshot() {
+        lock.writeLock().lock();
+        try {
+            ByteBuffer section = snapshot;
+            if (section == null) {
+                return;
+            }
+            snapshot = null;
+
+            int count = section.getInt();
+            for (int i = 0; i < count; i++) {
+                long contactId = section.getLong();
+                int length = section.getInt();
+                for (int j = 0; j < length; j += 2) {
+                    putDeal(contactId, section.getLong(), section.getLong());
+                }
+                warmContacts.add(contactId);
+            }
+            log.debug("Restored deals of contacts count={}", count);
+        } catch (RuntimeException e) {
+            log.warn("Discarding snapshot of deals of contacts. Message={}", e.getMessage(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean isActive(final Deal deal) {
+        return deal.getStageId() != null && stageCatalog.isActive(deal.getStageId());
+    }
+
+    private void putDeal(final long contactId, final long dealId, final long stageId) {
+        if (contactsByDeal.containsKey(dealId) && contactsByDeal.get(dealId) != contactId) {
+            removeDeal(dealId);
+        }
+
+        long[] pairs = dealsByContact.get(contactId);
+        int position = indexOf(pairs, dealId);
+        if (position < 0) {
+            pairs = pairs == null ? new long[2] : Arrays.copyOf(pairs, pairs.length + 2);
+            position = pairs.length - 2;
+        } else {
+            pairs = pairs.clone();
+        }
+
+        pairs[position] = dealId;
+        pairs[position + 1] = stageId;
+
+        dealsByContact.put(contactId, pairs);
+        contactsByDeal.put(dealId, contactId);
+    }
+
+    private void removeDeal(final long dealId) {
+        if (!contactsByDeal.containsKey(dealId)) {
+            return;
+        }
+
+        long contactId = contactsByDeal.remove(dealId);
+        long[] pairs = dealsByContact.get(contactId);
+        int position = indexOf(pairs, dealId);
+        if (position < 0) {
+            return;
+        }
+
+        long[] remaining = new long[pairs.length - 2];
+        System.arraycopy(pairs, 0, remaining, 0, position);
+        System.arraycopy(pairs, position + 2, remaining, position, pairs.length - position - 2);
+
+        if (remaining.length == 0 && !warmContacts.contains(contactId)) {
+            dealsByContact.remove(contactId);
+        } else {
+            dealsByContact.put(contactId, remaining);
+        }
+    }
+
+    private static int indexOf(final long[] pairs, final long dealId) {
+        if (pairs != null) {
+            for (int i = 0; i < pairs.length; i += 2) {
+                if (pairs[i] == dealId) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int getWarmContactsCount() {
+        lock.readLock().lock();
+        try {
+            return warmContacts.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int getDealsCount() {
+        lock.readLock().lock();
+        try {
+            return contactsByDeal.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -1,25 +1,21 @@
 package com.solidbrain.services;
 
-import com.codahale.metrics.annotation.Timed;
-import com.getbase.Client;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.getbase.models.Contact;
 import com.getbase.models.Deal;
-import com.getbase.models.Stage;
-import com.getbase.models.User;
-import com.getbase.services.DealsService;
-import com.getbase.services.StagesService;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
-import static java.util.stream.Collectors.toList;
+import static com.codahale.metrics.MetricRegistry.name;
 
 /**
  * Created by Krzysztof Wilk on 17/10/2016.
@@ -29,43 +25,102 @@ import static java.util.stream.Collectors.toList;
 @Service
 public class ContactService {
 
-    private Client baseClient;
+    private AsyncBaseClient asyncClient;
 
     private String dealNameDateFormat;
 
-    private List<String> salesRepresentativesEmails;
+    private OwnerRules ownerRules;
 
-    private UserService userService;
+    private StageCatalog stageCatalog;
+
+    private ContactDealIndex contactDealIndex;
+
+    private CrmWriter crmWriter;
+
+    private ChangeDetector changeDetector;
+
+    private Timer processing;
 
     @Autowired
-    public ContactService(Client client,
+    public ContactService(AsyncBaseClient asyncClient,
                           @Value("${workflow.deal.name.date.format}") String dealNameFormat,
-                          @Qualifier("salesReps") List<String> salesRepresentativesEmails,
-                          UserService userService) {
-
-        this.baseClient = client;
+                          OwnerRules ownerRules,
+                          StageCatalog stageCatalog,
+                          ContactDealIndex contactDealIndex,
+                          CrmWriter crmWriter,
+                          ChangeDetector changeDetector,
+                          MetricRegistry metricRegistry) {
+
+        this.asyncClient = asyncClient;
         this.dealNameDateFormat = dealNameFormat;
-        this.salesRepresentativesEmails = salesRepresentativesEmails;
-        this.userService = userService;
+        this.ownerRules = ownerRules;
+        this.stageCatalog = stageCatalog;
+        this.contactDealIndex = contactDealIndex;
+        this.crmWriter = crmWriter;
+        this.changeDetector = changeDetector;
+        this.processing = metricRegistry.timer(name(ContactService.class, "processContact"));
     }
 
-    @SuppressWarnings("squid:S1192")
-    @Timed(name = "processContact")
     public boolean processContact(final String eventType, final Contact contact) {
+        return processContactAsync(eventType, contact).join();
+    }
+
+    public CompletableFuture<Boolean> processContactAsync(final String eventType, final Contact contact) {
+        return processContactAsync(eventType, contact, false);
+    }
+
+    /**
+     * Evaluates the contact and queues creation of a new deal if needed.
+     * Updates which change none of the rule-relevant fields since the last evaluation are skipped (unless forced).
+     * @param eventType sync event type
+     * @param contact contact delivered by the sync
+     * @param force evaluate the contact even if it is unchanged since the last evaluation (e.g. backfill)
+     * @return processing status, completed once the new deal (if any) has been written
+     */
+    public CompletableFuture<Boolean> processContactAsync(final String eventType,
+                                                          final Contact contact,
+                                                          final boolean force) {
+        // timed until the returned processing completes, lookups and writes included
+        Timer.Context timing = processing.time();
+        return evaluateContact(eventType, contact, force)
+                .whenComplete((status, e) -> timing.stop());
+    }
+
+    @SuppressWarnings("squid:S1192")
+    private CompletableFuture<Boolean> evaluateContact(final String eventType,
+                                                       final Contact contact,
+                                                       final boolean force) {
         MDC.put("contactId", contact.getId().toString());
         log.debug("Processing current contact");
 
-        boolean processingStatus = true;
+        CompletableFuture<Boolean> processingStatus = CompletableFuture.completedFuture(true);
         if (eventType.contentEquals("created") || eventType.contentEquals("updated")) {
             log.debug("Contact sync eventType={}", eventType);
 
             MDC.clear();
+            if (!force && eventType.contentEquals("updated") && changeDetector.isUnchanged(contact)) {
+                log.debug("Contact (id={}) rule-relevant fields unchanged", contact.getId());
+                return processingStatus;
+            }
+
             try {
-                if (shouldNewDealBeCreated(contact)) {
-                    createNewDeal(contact);
-                }
+                processingStatus = shouldNewDealBeCreated(contact)
+                        .thenCompose(shouldBeCreated -> shouldBeCreated
+                                ? createNewDealOf(contact)
+                                : CompletableFuture.completedFuture(true))
+                        .thenApply(status -> {
+                            if (status) {
+                                changeDetector.recordEvaluated(contact);
+                            }
+                            return status;
+                        })
+                        .exceptionally(e -> {
+                            log.error("Cannot process contact (id={}). Message={})",
+                                    contact.getId(), e.getMessage(), e);
+                            return false;
+                        });
             } catch (Exception e) {
-                processingStatus = false;
+                processingStatus = CompletableFuture.completedFuture(false);
                 log.error("Cannot process contact (id={}). Message={})", contact.getId(), e.getMessage(), e);
             }
 
@@ -73,43 +128,75 @@ public class ContactService {
         return processingStatus;
     }
 
-    private boolean shouldNewDealBeCreated(final Contact contact) {
+    /**
+     * The owner is checked by its id, with no lookup. Deals are looked up only for companies
+     * owned by a sales representative.
+     */
+    private CompletableFuture<Boolean> shouldNewDealBeCreated(final Contact contact) {
         boolean isContactACompany = contact.getIsOrganization();
         log.debug("Is current contact a company={}", isContactACompany);
 
-        User owner = userService.getContactOwner(contact);
-        log.debug("Contact's owner={}", owner);
+        if (!isContactACompany) {
+            log.debug("Should new deal be created=false");
+            return CompletableFuture.completedFuture(false);
+        }
 
         long contactId = contact.getId();
         log.debug("Contact's id={}", contactId);
 
-        boolean isUserSalesRepresentative = salesRepresentativesEmails.contains(owner.getEmail());
-        log.debug("Is contact's owner a sales representative={}", isUserSalesRepresentative);
+        boolean isUserSalesRepresentative = ownerRules.isSalesRepresentative(contact.getOwnerId());
+        log.debug("Is contact's owner (id={}) a sales representative={}",
+                contact.getOwnerId(), isUserSalesRepresentative);
 
-        boolean activeDealsMissing = areNoActiveDealsFound(contactId);
-        log.debug("No deals found={}", activeDealsMissing);
+        if (!isUserSalesRepresentative) {
+            log.debug("Should new deal be created=false");
+            return CompletableFuture.completedFuture(false);
+        }
 
-        boolean result = isContactACompany && isUserSalesRepresentative && activeDealsMissing;
-        log.debug("Should new deal be created={}", result);
+        return areNoActiveDealsFound(contactId)
+                .thenApply(result -> {
+                    log.debug("No deals found={}", result);
+                    log.debug("Should new deal be created={}", result);
+                    return result;
+                });
+    }
+
+    private CompletableFuture<Boolean> areNoActiveDealsFound(final Long contactId) {
+        boolean activeDealIndexed = Arrays.stream(contactDealIndex.getStageIds(contactId))
+                .anyMatch(stageCatalog::isActive);
 
-        return result;
+        if (activeDealIndexed) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        CompletableFuture<Void> indexed = CompletableFuture.completedFuture(null);
+        if (!contactDealIndex.isWarm(contactId)) {
+            log.debug("Contact's deals not indexed yet");
+
+            indexed = asyncClient.listDealsOfContact(contactId)
+                    .thenAccept(deals -> contactDealIndex.load(contactId, deals));
+        }
+
+        return indexed.thenApply(ignored -> Arrays.stream(contactDealIndex.getStageIds(contactId))
+                .noneMatch(stageCatalog::isActive));
     }
 
-    private boolean areNoActiveDealsFound(final Long contactId) {
-        List<Long> activeStageIds = baseClient.stages()
-                .list(new StagesService.SearchCriteria().active(true))
-                .stream()
-                .map(Stage::getId)
-                .collect(toList());
-
-        return baseClient.deals()
-                .list(new DealsService.SearchCriteria().contactId(contactId))
-                .stream()
-                .noneMatch(d -> activeStageIds.contains(d.getStageId()));
+    private CompletableFuture<Boolean> createNewDealOf(final Contact contact) {
+        return createNewDeal(contact)
+                .handle((deal, e) -> {
+                    if (e != null) {
+                        log.error("Cannot create deal for contact (id={}). Message={})",
+                                contact.getId(),
+                                e.getMessage(),
+                                e);
+                        return false;
+                    }
+                    return true;
+                });
     }
 
     @SuppressWarnings("squid:S1192")
-    private void createNewDeal(final Contact newContact) {
+    private CompletableFuture<Deal> createNewDeal(final Contact newContact) {
         MDC.put("contactId", newContact.getId().toString());
         log.info("Creating new deal");
 
@@ -138,10 +225,12 @@ public class ContactService {
         newDeal.setOwnerId(newContact.getOwnerId());
 
         log.info("New deal={}", newDeal);
-        Deal newlyCreatedDeal = baseClient.deals()
-                .create(newDeal);
-
         MDC.clear();
-        log.debug("Created new deal={}", newlyCreatedDeal);
+
+        return crmWriter.createDeal(newDeal, CrmWriter.versionOf(newContact.getUpdatedAt()))
+                .thenApply(newlyCreatedDeal -> {
+                    log.debug("Created new deal={}", newlyCreatedDeal);
+                    return newlyCreatedDeal;
+                });
     }
 }
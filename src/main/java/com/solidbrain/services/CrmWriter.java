@@ -0,0 +1,549 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.getbase.Client;
+import com.getbase.exceptions.ConnectionException;
+import com.getbase.exceptions.RateLimitException;
+import com.getbase.exceptions.ServerException;
+import com.getbase.models.Contact;
+import com.getbase.models.Deal;
+import com.getbase.services.DealsService;
+import lombok.extern.slf4j.Slf4j;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Asynchronous write stage for Base CRM mutations (deal creation, contact updates).
+ *
+ * A mutation is written right away when no other write is queued or in flight, so a caller waiting
+ * for its result (the serial workflow) is not delayed. Mutations arriving while writes are in flight
+ * are queued and flushed in groups once the batch size is reached, the oldest one has waited for
+ * the flush interval or the writes in flight have finished. Writes of the same entity are deduplicated
+ * while queued and never run concurrently. Transient failures are retried with exponential backoff;
+ * a deal creation which may have reached Base CRM (e.g. read timeout) is retried only if the deal
+ * is not found by its contact and name.
+ * With batch size of 1 every mutation is written immediately by the calling thread.
+ * Every write is journaled (see {@link MutationJournal}) so that it is neither lost nor repeated after restart.
+ */
+@Slf4j
+@Service
+public class CrmWriter implements ApplicationListener<ApplicationReadyEvent> {
+
+    private Client baseClient;
+
+    private BaseApiCalls apiCalls;
+
+    private MutationJournal mutationJournal;
+
+    private ContactDealIndex contactDealIndex;
+
+    private int batchSize;
+    private long flushInterval;
+    private int maxRetries;
+    private long retryBackoff;
+
+    private final Object lock = new Object();
+    private final Map<String, Mutation<?>> pending = new LinkedHashMap<>();
+    private final Map<String, Mutation<?>> inFlight = new HashMap<>();
+
+    private ScheduledExecutorService executor;
+    private Thread flusher;
+
+    private Timer writes;
+    private Histogram batches;
+    private Meter deduplicated;
+    private Meter skipped;
+    private Meter retries;
+    private Meter failures;
+
+    @Autowired
+    public CrmWriter(Client client,
+                     BaseApiCalls apiCalls,
+                     MutationJournal mutationJournal,
+                     ContactDealIndex contactDealIndex,
+                     MetricRegistry metricRegistry,
+                     @Value("${workflow.writes.batch.size}") int batchSize,
+                     @Value("${workflow.writes.flush.interval}") long flushInterval,
+                     @Value("${workflow.writes.threads}") int threads,
+                     @Value("${workflow.writes.retries}") int maxRetries,
+                     @Value("${workflow.writes.retry.backoff}") long retryBackoff) {
+        this.baseClient = client;
+        this.apiCalls = apiCalls;
+        this.mutationJournal = mutationJournal;
+        this.contactDealIndex = contactDealIndex;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.maxRetries = maxRetries;
+        this.retryBackoff = retryBackoff;
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(Math.max(threads, 1), r -> {
+            Thread thread = new Thread(r, "crm-writer-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.writes = metricRegistry.timer(name(CrmWriter.class, "writes"));
+        this.batches = metricRegistry.histogram(name(CrmWriter.class, "batchSize"));
+        this.deduplicated = metricRegistry.meter(name(CrmWriter.class, "deduplicated"));
+        this.skipped = metricRegistry.meter(name(CrmWriter.class, "skipped"));
+        this.retries = metricRegistry.meter(name(CrmWriter.class, "retries"));
+        this.failures = metricRegistry.meter(name(CrmWriter.class, "failures"));
+        metricRegistry.register(name(CrmWriter.class, "pending"), (Gauge<Integer>) this::getPendingCount);
+
+        if (batchSize > 1) {
+            this.flusher = new Thread(this::flushLoop, "crm-writer-flusher");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+    }
+
+    /**
+     * Queues creation of the deal (one per contact while queued or being written)
+     * @param deal new deal
+     * @return created deal
+     */
+    public CompletableFuture<Deal> createDeal(final Deal deal, final long version) {
+        return enqueue(new DealCreation(deal, version));
+    }
+
+    /**
+     * Queues update of the contact (attributes of queued updates of the same contact are merged)
+     * @param contactId contact's id
+     * @param attributes attributes to be updated
+     * @return updated contact
+     */
+    public CompletableFuture<Contact> updateContact(final long contactId,
+                                                    final Map<String, Object> attributes,
+                                                    final long version) {
+        return enqueue(new ContactUpdate(contactId, attributes, version));
+    }
+
+    /**
+     * @param updatedAt last modification time of the entity delivered by the sync
+     * @return version of the sync event identifying its mutations in the journal
+     */
+    public static long versionOf(final DateTime updatedAt) {
+        return updatedAt != null ? updatedAt.getMillis() : 0L;
+    }
+
+    /**
+     * Finishes writes journaled but not confirmed before the last shutdown, in the background
+     * once the application has started, so a slow or unreachable Base CRM does not hold up the startup
+     */
+    @Override
+    public void onApplicationEvent(final ApplicationReadyEvent event) {
+        executor.execute(this::recoverPending);
+    }
+
+    void recoverPending() {
+        for (MutationJournal.Intent intent : mutationJournal.getPendingIntents()) {
+            log.info("Recovering write kind={} entityId={}", intent.getKind(), intent.getEntityId());
+
+            try {
+                if (intent.getKind() == MutationJournal.Kind.CREATE_DEAL) {
+                    recoverDealCreation(intent);
+                } else {
+                    updateContact(intent.getEntityId(), intent.getPayload(), intent.getVersion());
+                }
+            } catch (RuntimeException e) {
+                // the intent stays pending in the journal and is recovered on next start
+                log.error("Cannot recover write kind={} entityId={}. Message={}",
+                        intent.getKind(), intent.getEntityId(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private void recoverDealCreation(final MutationJournal.Intent intent) {
+        Map<String, Object> payload = intent.getPayload();
+
+        Optional<Deal> existingDeal = findDeal(intent.getEntityId(), (String) payload.get("name"));
+
+        if (existingDeal.isPresent()) {
+            Deal deal = existingDeal.get();
+            mutationJournal.recordCompleted(intent.getKind(), intent.getEntityId(), intent.getVersion(),
+                    deal.getId(), deal.getStageId() != null ? deal.getStageId() : 0L);
+            contactDealIndex.onDealEvent("created", deal);
+        } else {
+            Deal deal = new Deal();
+            deal.setName((String) payload.get("name"));
+            deal.setContactId(intent.getEntityId());
+            deal.setOwnerId((Long) payload.get("owner_id"));
+
+            createDeal(deal, intent.getVersion());
+        }
+    }
+
+    private Optional<Deal> findDeal(final long contactId, final String name) {
+        return apiCalls.execute("deals.list", () -> baseClient.deals()
+                .list(new DealsService.SearchCriteria().contactId(contactId)))
+                .stream()
+                .filter(d -> Objects.equals(d.getName(), name))
+                .findFirst();
+    }
+
+    private static Deal toDeal(final MutationJournal.Completed completion) {
+        Deal deal = new Deal();
+        deal.setId(completion.getResultId());
+        deal.setContactId(completion.getEntityId());
+        deal.setStageId(completion.getResultStageId() != 0L ? completion.getResultStageId() : null);
+        return deal;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> enqueue(final Mutation<T> mutation) {
+        if (flusher == null) {
+            attempt(mutation, 0);
+            return mutation.result;
+        }
+
+        synchronized (lock) {
+            Mutation<T> written = (Mutation<T>) inFlight.get(mutation.key);
+            if (written != null && written.supersedes(mutation)) {
+                deduplicated.mark();
+                return written.result;
+            }
+
+            Mutation<T> queued = (Mutation<T>) pending.get(mutation.key);
+            if (queued != null && queued.merge(mutation)) {
+                deduplicated.mark();
+                return queued.result;
+            }
+
+            pending.put(mutation.key, mutation);
+            lock.notifyAll();
+        }
+        return mutation.result;
+    }
+
+    private void flushLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Mutation<?>> batch = nextBatch();
+                batches.update(batch.size());
+                log.debug("Flushing writes count={}", batch.size());
+
+                batch.forEach(m -> executor.execute(() -> attempt(m, 0)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<Mutation<?>> nextBatch() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                long waitTime = getFlushWaitTime();
+                if (waitTime <= 0) {
+                    List<Mutation<?>> batch = drainReady();
+                    if (!batch.isEmpty()) {
+                        return batch;
+                    }
+                    waitTime = flushInterval;
+                }
+                lock.wait(Math.max(waitTime, 1));
+            }
+        }
+    }
+
+    private long getFlushWaitTime() {
+        if (pending.isEmpty()) {
+            return flushInterval;
+        }
+        if (pending.size() >= batchSize || inFlight.isEmpty()) {
+            return 0;
+        }
+
+        long oldest = pending.values().iterator().next().createdAt;
+        return oldest + flushInterval - System.currentTimeMillis();
+    }
+
+    private List<Mutation<?>> drainReady() {
+        List<Mutation<?>> batch = new ArrayList<>();
+        Iterator<Mutation<?>> iterator = pending.values().iterator();
+        while (iterator.hasNext() && batch.size() < batchSize) {
+            Mutation<?> mutation = iterator.next();
+            if (!inFlight.containsKey(mutation.key)) {
+                inFlight.put(mutation.key, mutation);
+                iterator.remove();
+                batch.add(mutation);
+            }
+        }
+        return batch;
+    }
+
+    private <T> void attempt(final Mutation<T> mutation, final int attempt) {
+        try (Timer.Context ignored = writes.time()) {
+            if (attempt == 0) {
+                Optional<MutationJournal.Completed> completion = mutation.version != 0L
+                        ? mutationJournal.getCompleted(mutation.kind, mutation.entityId, mutation.version)
+                        : Optional.empty();
+                if (completion.isPresent()) {
+                    log.info("Skipping write of {} completed before", mutation.key);
+
+                    skipped.mark();
+                    mutation.result.complete(mutation.fromJournal(completion.get()));
+                    finish(mutation);
+                    return;
+                }
+
+                mutationJournal.recordIntent(mutation.kind, mutation.entityId, mutation.version, mutation.getPayload())
+                        .join();
+            }
+
+            T written = mutation.execute();
+            mutation.onWritten(written);
+            mutation.result.complete(written);
+            finish(mutation);
+        } catch (RuntimeException e) {
+            mutation.onFailedAttempt(e);
+            if (isTransient(e) && attempt < maxRetries) {
+                long delay = retryBackoff << attempt;
+                log.warn("Retrying write of {} in {} ms. Message={}", mutation.key, delay, e.getMessage());
+
+                retries.mark();
+                executor.schedule(() -> attempt(mutation, attempt + 1), delay, MILLISECONDS);
+            } else {
+                log.error("Cannot write {}. Message={}", mutation.key, e.getMessage(), e);
+
+                failures.mark();
+                mutation.result.completeExceptionally(e);
+                finish(mutation);
+            }
+        }
+    }
+
+    private void finish(final Mutation<?> mutation) {
+        if (flusher != null) {
+            synchronized (lock) {
+                inFlight.remove(mutation.key);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static boolean isTransient(final RuntimeException e) {
+        return e instanceof RateLimitException
+                || e instanceof ServerException
+                || e instanceof ConnectionException;
+    }
+
+    /**
+     * @return true if the request was rejected before it reached Base CRM (refused connection, rate limit)
+     */
+    private static boolean isRejectedBeforeSending(final RuntimeException e) {
+        if (e instanceof RateLimitException) {
+            return true;
+        }
+        if (e instanceof ConnectionException) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof ConnectException || cause instanceof UnknownHostException) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int getPendingCount() {
+        synchronized (lock) {
+            return pending.size() + inFlight.size();
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        executor.shutdown();
+    }
+
+    private abstract static class Mutation<T> {
+        final String key;
+        final MutationJournal.Kind kind;
+        final long entityId;
+        long version;
+        final long createdAt = System.currentTimeMillis();
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Mutation(final String key, final MutationJournal.Kind kind, final long entityId, final long version) {
+            this.key = key;
+            this.kind = kind;
+            this.entityId = entityId;
+            this.version = version;
+        }
+
+        /**
+         * Merges a later mutation of the same entity into this (queued) one
+         * @return true if the later mutation does not need to be written separately
+         */
+        abstract boolean merge(Mutation<T> later);
+
+        /**
+         * @return true if this (already being written) mutation makes the later one redundant
+         */
+        abstract boolean supersedes(Mutation<T> later);
+
+        abstract Map<String, Object> getPayload();
+
+        abstract T execute();
+
+        /**
+         * Called when a write attempt failed (before it is retried or reported)
+         */
+        void onFailedAttempt(final RuntimeException e) {
+        }
+
+        /**
+         * Records the successful write (journal, local state)
+         */
+        abstract void onWritten(T written);
+
+        /**
+         * @return result of the write completed before (e.g. before restart)
+         */
+        abstract T fromJournal(MutationJournal.Completed completion);
+    }
+
+    private final class DealCreation extends Mutation<Deal> {
+        private final Deal deal;
+
+        // creation is not idempotent: a failed attempt may still have created the deal
+        private volatile boolean mayHaveBeenCreated;
+
+        DealCreation(final Deal deal, final long version) {
+            super("deal:contact:" + deal.getContactId(), MutationJournal.Kind.CREATE_DEAL, deal.getContactId(), version);
+            this.deal = deal;
+        }
+
+        @Override
+        boolean merge(final Mutation<Deal> later) {
+            return true;
+        }
+
+        @Override
+        boolean supersedes(final Mutation<Deal> later) {
+            return true;
+        }
+
+        @Override
+        Map<String, Object> getPayload() {
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("name", deal.getName());
+            payload.put("contact_id", deal.getContactId());
+            if (deal.getOwnerId() != null) {
+                payload.put("owner_id", deal.getOwnerId());
+            }
+            return payload;
+        }
+
+        @Override
+        Deal execute() {
+            if (mayHaveBeenCreated) {
+                Optional<Deal> created = findDeal(deal.getContactId(), deal.getName());
+                if (created.isPresent()) {
+                    log.info("Deal of {} created by a failed attempt", key);
+                    return created.get();
+                }
+            }
+
+            return apiCalls.execute("deals.create", () -> baseClient.deals()
+                    .create(deal));
+        }
+
+        @Override
+        void onFailedAttempt(final RuntimeException e) {
+            if (!isRejectedBeforeSending(e)) {
+                mayHaveBeenCreated = true;
+            }
+        }
+
+        @Override
+        void onWritten(final Deal written) {
+            if (written == null) {
+                return;
+            }
+
+            mutationJournal.recordCompleted(kind, entityId, version, written.getId(),
+                    written.getStageId() != null ? written.getStageId() : 0L);
+            contactDealIndex.onDealEvent("created", written);
+        }
+
+        @Override
+        Deal fromJournal(final MutationJournal.Completed completion) {
+            return toDeal(completion);
+        }
+    }
+
+    private final class ContactUpdate extends Mutation<Contact> {
+        private final Map<String, Object> attributes;
+
+        ContactUpdate(final long contactId, final Map<String, Object> attributes, final long version) {
+            super("contact:" + contactId, MutationJournal.Kind.UPDATE_CONTACT, contactId, version);
+            this.attributes = new HashMap<>(attributes);
+        }
+
+        @Override
+        boolean merge(final Mutation<Contact> later) {
+            attributes.putAll(((ContactUpdate) later).attributes);
+            version = later.version;
+            return true;
+        }
+
+        @Override
+        boolean supersedes(final Mutation<Contact> later) {
+            return false;
+        }
+
+        @Override
+        Map<String, Object> getPayload() {
+            return attributes;
+        }
+
+        @Override
+        Contact execute() {
+            return apiCalls.execute("contacts.update", () -> baseClient.contacts()
+                    .update(entityId, attributes));
+        }
+
+        @Override
+        void onWritten(final Contact written) {
+            mutationJournal.recordCompleted(kind, entityId, version, entityId, 0L);
+        }
+
+        @Override
+        Contact fromJournal(final MutationJournal.Completed completion) {
+            Contact contact = new Contact();
+            contact.setId(entityId);
+            return contact;
+        }
+    }
+}
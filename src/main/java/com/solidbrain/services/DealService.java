@@ -1,20 +1,19 @@
 package com.solidbrain.services;
 
-import com.codahale.metrics.annotation.Timed;
-import com.getbase.Client;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.getbase.models.Contact;
 import com.getbase.models.Deal;
-import com.getbase.models.User;
-import com.getbase.services.StagesService;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.MissingResourceException;
+import java.util.concurrent.CompletableFuture;
+
+import static com.codahale.metrics.MetricRegistry.name;
 
 /**
  * Created by Krzysztof Wilk on 17/10/2016.
@@ -23,39 +22,111 @@ import java.util.MissingResourceException;
 @Service
 public class DealService {
 
-    private Client baseClient;
+    private AsyncBaseClient asyncClient;
 
-    private List<String> accountManagersEmails;
-    private String accountManagerOnDutyEmail;
+    private OwnerRules ownerRules;
 
-    private UserService userService;
+    private StageCatalog stageCatalog;
 
-    @Autowired
-    public DealService(Client client,
-                       List<String> accountManagersEmails,
-                       String accountManagerOnDutyEmail,
-                       UserService userService) {
-        this.baseClient = client;
+    private CrmWriter crmWriter;
+
+    private ContactDealIndex contactDealIndex;
+
+    private ChangeDetector changeDetector;
 
-        this.accountManagersEmails = accountManagersEmails;
-        this.accountManagerOnDutyEmail = accountManagerOnDutyEmail;
+    private Timer processing;
 
-        this.userService = userService;
+    @Autowired
+    public DealService(AsyncBaseClient asyncClient,
+                       OwnerRules ownerRules,
+                       StageCatalog stageCatalog,
+                       ContactDealIndex contactDealIndex,
+                       CrmWriter crmWriter,
+                       ChangeDetector changeDetector,
+                       MetricRegistry metricRegistry) {
+        this.asyncClient = asyncClient;
+        this.ownerRules = ownerRules;
+        this.stageCatalog = stageCatalog;
+        this.contactDealIndex = contactDealIndex;
+        this.crmWriter = crmWriter;
+        this.changeDetector = changeDetector;
+        this.processing = metricRegistry.timer(name(DealService.class, "processDeal"));
     }
 
-    @Timed(name = "processDeal")
     public boolean processDeal(final String eventType, final Deal deal) {
+        return processDealAsync(eventType, deal).join();
+    }
+
+    public CompletableFuture<Boolean> processDealAsync(final String eventType, final Deal deal) {
+        return processDealAsync(eventType, deal, false);
+    }
+
+    /**
+     * Applies the deal to the local index of deals by contact, evaluates it and queues update
+     * of its contact's owner if needed. Updates which change neither the stage nor the contact since
+     * the last evaluation are skipped (unless forced), any other event invalidates the last evaluation
+     * of the deal's contact and of the contact it was moved from.
+     * @param eventType sync event type
+     * @param deal deal delivered by the sync
+     * @param force evaluate the deal even if it is unchanged since the last evaluation (e.g. backfill)
+     * @return processing status, completed once the contact (if needed) has been updated
+     */
+    public CompletableFuture<Boolean> processDealAsync(final String eventType, final Deal deal, final boolean force) {
+        // timed until the returned processing completes, lookups and writes included
+        Timer.Context timing = processing.time();
+        return evaluateDeal(eventType, deal, force)
+                .whenComplete((status, e) -> timing.stop());
+    }
+
+    /**
+     * Forgets the contact a deal was moved from, when the deal itself is processed elsewhere
+     * (the owner of its new contact in a cluster)
+     * @param deal deal delivered by the sync
+     * @return processing status
+     */
+    public boolean onDealMoved(final Deal deal) {
+        Long previousContactId = contactDealIndex.onDealMoved(deal.getId(), deal.getContactId());
+        if (previousContactId != null) {
+            log.debug("Deal (id={}) moved from contact (id={})", deal.getId(), previousContactId);
+            changeDetector.forgetContact(previousContactId);
+        }
+        return true;
+    }
+
+    private CompletableFuture<Boolean> evaluateDeal(final String eventType, final Deal deal, final boolean force) {
         MDC.put("dealId", deal.getId().toString());
         log.debug("Processing current deal");
 
-        boolean processingStatus = true;
+        Long previousContactId = contactDealIndex.onDealEvent(eventType, deal);
+        changeDetector.forgetContact(previousContactId);
+
+        CompletableFuture<Boolean> processingStatus = CompletableFuture.completedFuture(true);
+        if (!force && eventType.contentEquals("updated") && changeDetector.isUnchanged(deal)) {
+            log.debug("Deal (id={}) rule-relevant fields unchanged", deal.getId());
+            return processingStatus;
+        }
+        changeDetector.forgetContact(deal.getContactId());
+
         if (eventType.contentEquals("created") || eventType.contentEquals("updated")) {
             log.debug("Deal sync event type={}", eventType);
 
             try {
-                processRecentlyModifiedDeal(deal);
+                processingStatus = processRecentlyModifiedDeal(deal)
+                        .handle((status, e) -> {
+                            if (e != null) {
+                                log.error("Cannot update contact of deal (id={}). Message={})",
+                                        deal.getId(),
+                                        e.getMessage(),
+                                        e);
+                                return false;
+                            }
+                            if (status) {
+                                changeDetector.recordEvaluated(deal);
+                            }
+                            return status;
+                        });
             } catch (Exception e) {
-                processingStatus = false;
+                processingStatus = CompletableFuture.completedFuture(false);
                 log.error("Cannot process deal (id={}). Message={})", deal.getId(), e.getMessage(), e);
             }
         }
@@ -63,61 +134,56 @@ public class DealService {
         return processingStatus;
     }
 
-    private void processRecentlyModifiedDeal(final Deal deal) {
+    /**
+     * Deals not in Won stage need no lookups. For won deals only the contact is looked up,
+     * its owner is checked by id.
+     */
+    private CompletableFuture<Boolean> processRecentlyModifiedDeal(final Deal deal) {
         log.debug("Processing recently modified deal={}", deal);
 
-        if (isDealStageWon(deal)) {
-            log.info("Verifying deal in Won stage");
-
-            MDC.clear();
-            Contact dealsContact = fetchExistingContact(deal.getContactId());
-            log.debug("Deal's contact={}", dealsContact);
+        if (!isDealStageWon(deal)) {
+            return CompletableFuture.completedFuture(true);
+        }
 
-            User contactOwner = userService.getContactOwner(dealsContact);
-            log.debug("Contact's owner={}", contactOwner);
+        log.info("Verifying deal in Won stage");
+        MDC.clear();
 
-            if (!isContactOwnerAnAccountManager(contactOwner)) {
-                updateExistingContact(dealsContact);
-            }
-        }
-    }
+        return asyncClient.getContact(deal.getContactId())
+                .thenCompose(dealsContact -> {
+                    log.debug("Deal's contact={}", dealsContact);
 
-    private Contact fetchExistingContact(final Long contactId) {
-        return baseClient.contacts()
-                .get(contactId);
-    }
+                    boolean isContactOwnerAnAccountManager = ownerRules.isAccountManager(dealsContact.getOwnerId());
+                    log.debug("Is contact's owner (id={}) an account manager={}",
+                            dealsContact.getOwnerId(),
+                            isContactOwnerAnAccountManager);
 
-    private boolean isContactOwnerAnAccountManager(final User user) {
-        return accountManagersEmails.contains(user.getEmail());
+                    if (isContactOwnerAnAccountManager) {
+                        return CompletableFuture.completedFuture(true);
+                    }
+                    return updateExistingContact(dealsContact, CrmWriter.versionOf(deal.getUpdatedAt()));
+                });
     }
 
     private boolean isDealStageWon(final Deal deal) {
-        return baseClient.stages()
-                .list(new StagesService.SearchCriteria().active(false))
-                .stream()
-                .anyMatch(s -> s.getCategory().contentEquals("won") && deal.getStageId().equals(s.getId()));
+        return deal.getStageId() != null && stageCatalog.isWon(deal.getStageId());
     }
 
     @SuppressWarnings("squid:S1192")
-    private boolean updateExistingContact(final Contact dealsContact) {
+    private CompletableFuture<Boolean> updateExistingContact(final Contact dealsContact, final long version) {
         MDC.put("contactId", dealsContact.getId().toString());
         log.info("Updating contact's owner");
         MDC.clear();
 
-        User accountManager = userService.getUserByEmail(accountManagerOnDutyEmail)
-                .orElseThrow(() -> new MissingResourceException("User not found",
-                        "com.getbase.models.User",
-                        accountManagerOnDutyEmail));
-
-        log.debug("Account Manager's Id={}", accountManager.getId());
+        long accountManagerId = ownerRules.getAccountManagerOnDutyId();
+        log.debug("Account Manager's Id={}", accountManagerId);
 
         Map<String, Object> contactAttributes = new HashMap<>();
-        contactAttributes.put("owner_id", accountManager.getId());
-        Contact updatedContact = baseClient.contacts()
-                .update(dealsContact.getId(), contactAttributes);
-
-        log.debug("Updated contact={}", updatedContact);
+        contactAttributes.put("owner_id", accountManagerId);
 
-        return true;
+        return crmWriter.updateContact(dealsContact.getId(), contactAttributes, version)
+                .thenApply(updatedContact -> {
+                    log.debug("Updated contact={}", updatedContact);
+                    return true;
+                });
     }
 }
@@ -0,0 +1,23 @@
+package com.solidbrain.services;
+
+/**
+ * Hash functions shared by the fingerprint tables and the cluster hash ring
+ */
+public final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3
+     */
+    public static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
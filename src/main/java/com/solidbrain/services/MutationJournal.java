@@ -0,0 +1,550 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only, memory-mapped journal of intended and completed CRM mutations.
+ *
+ * Every mutation is keyed by its kind, entity id and event version. An intent is made durable
+ * (group-committed fsync) before the mutation is sent to Base CRM and a completion record is appended
+ * once it succeeded. The committer forces the file as soon as an intent is waiting; intents appended
+ * during a commit are committed together by the next one. Completion records, which nobody waits for,
+ * are committed at least every workflow.journal.commit.interval. On startup the journal is replayed:
+ * pending intents are written again and events whose mutation already completed are not acted on twice.
+ * When the file is full it is compacted down to pending intents and most recently completed mutations.
+ */
+@Slf4j
+@Service
+public class MutationJournal {
+
+    public enum Kind {
+        CREATE_DEAL,
+        UPDATE_CONTACT
+    }
+
+    private static final byte INTENT_RECORD = 1;
+    private static final byte COMPLETED_RECORD = 2;
+
+    private static final byte LONG_VALUE = 1;
+    private static final byte STRING_VALUE = 2;
+    private static final byte BOOLEAN_VALUE = 3;
+
+    private boolean enabled;
+
+    private Path path;
+    private int size;
+    private long commitInterval;
+    private int maxCompleted;
+
+    private final Map<String, Intent> pending = new LinkedHashMap<>();
+    private final Map<String, Completed> completed = new LinkedHashMap<>();
+
+    private final List<CommitWaiter> commitWaiters = new ArrayList<>();
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    // position in the current file and total bytes appended since startup (survives compactions)
+    private int writePosition;
+    private long appended;
+    private long committed;
+
+    private Thread committer;
+
+    private Meter appends;
+    private Timer commits;
+    private Histogram groupSizes;
+
+    @Autowired
+    public MutationJournal(MetricRegistry metricRegistry,
+                           @Value("${workflow.journal.enabled}") boolean enabled,
+                           @Value("${workflow.journal.file}") String file,
+                           @Value("${workflow.journal.size}") int size,
+                           @Value("${workflow.journal.commit.interval}") long commitInterval,
+                           @Value("${workflow.journal.completed.max}") int maxCompleted) {
+        this.enabled = enabled;
+        this.size = size;
+        this.commitInterval = commitInterval;
+        this.maxCompleted = maxCompleted;
+
+        this.appends = metricRegistry.meter(name(MutationJournal.class, "appends"));
+        this.commits = metricRegistry.timer(name(MutationJournal.class, "commits"));
+        this.groupSizes = metricRegistry.histogram(name(MutationJournal.class, "groupSize"));
+        metricRegistry.register(name(MutationJournal.class, "pending"), (Gauge<Integer>) this::getPendingCount);
+
+        if (enabled) {
+            this.path = Paths.get(file);
+            open();
+
+            this.committer = new Thread(this::commitLoop, "mutation-journal-committer");
+            this.committer.setDaemon(true);
+            this.committer.start();
+        }
+    }
+
+    /**
+     * Appends intent of the mutation
+     * @param kind mutation kind
+     * @param entityId id of the mutated (or related) entity
+     * @param version version of the event that triggered the mutation
+     * @param payload mutation attributes (Long, String or Boolean values)
+     * @return completed once the intent is durable
+     */
+    public CompletableFuture<Void> recordIntent(final Kind kind,
+                                                final long entityId,
+                                                final long version,
+                                                final Map<String, Object> payload) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Intent intent = new Intent(kind, entityId, version, payload);
+        synchronized (this) {
+            long position = append(encode(intent));
+            pending.put(intent.getKey(), intent);
+
+            CommitWaiter waiter = new CommitWaiter(position);
+            commitWaiters.add(waiter);
+            notifyAll();
+            return waiter.future;
+        }
+    }
+
+    /**
+     * Appends completion of the mutation (not waiting for commit)
+     * @param resultId id of the created or updated entity
+     * @param resultStageId stage id of the created deal (0 if not applicable)
+     */
+    public void recordCompleted(final Kind kind,
+                                final long entityId,
+                                final long version,
+                                final long resultId,
+                                final long resultStageId) {
+        if (!enabled) {
+            return;
+        }
+
+        Completed completion = new Completed(kind, entityId, version, resultId, resultStageId);
+        synchronized (this) {
+            append(encode(completion));
+            pending.remove(completion.getKey());
+            remember(completion);
+        }
+    }
+
+    public synchronized Optional<Completed> getCompleted(final Kind kind, final long entityId, final long version) {
+        return Optional.ofNullable(completed.get(key(kind, entityId, version)));
+    }
+
+    public synchronized List<Intent> getPendingIntents() {
+        return new ArrayList<>(pending.values());
+    }
+
+    private void open() {
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            channel = FileChannel.open(path, CREATE, READ, WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open mutation journal " + path, e);
+        }
+
+        writePosition = replay();
+        log.info("Opened mutation journal file={} pending={} completed={}", path, pending.size(), completed.size());
+    }
+
+    private int replay() {
+        ByteBuffer view = buffer.duplicate();
+        int position = 0;
+        while (position + Integer.BYTES <= size) {
+            int length = view.getInt(position);
+            if (length <= Integer.BYTES || position + Integer.BYTES + length > size) {
+                break;
+            }
+
+            byte[] body = new byte[length - Integer.BYTES];
+            view.position(position + Integer.BYTES);
+            view.get(body);
+            if (view.getInt() != checksum(body)) {
+                log.warn("Torn mutation journal record at position={}", position);
+                break;
+            }
+
+            apply(body);
+            position += Integer.BYTES + length;
+        }
+        return position;
+    }
+
+    private void apply(final byte[] body) {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(body))) {
+            byte type = input.readByte();
+            Kind kind = Kind.values()[input.readByte()];
+            long entityId = input.readLong();
+            long version = input.readLong();
+
+            if (type == INTENT_RECORD) {
+                Intent intent = new Intent(kind, entityId, version, readPayload(input));
+                pending.put(intent.getKey(), intent);
+            } else {
+                Completed completion = new Completed(kind, entityId, version, input.readLong(), input.readLong());
+                pending.remove(completion.getKey());
+                remember(completion);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void remember(final Completed completion) {
+        completed.remove(completion.getKey());
+        completed.put(completion.getKey(), completion);
+
+        Iterator<String> eldest = completed.keySet().iterator();
+        while (completed.size() > maxCompleted && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    private long append(final byte[] record) {
+        if (writePosition + record.length + Integer.BYTES > size) {
+            compact();
+            if (writePosition + record.length + Integer.BYTES > size) {
+                throw new IllegalStateException("Mutation journal is too small. Size=" + size);
+            }
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(writePosition);
+        view.put(record);
+        // terminator, overwritten by the next record
+        view.putInt(0);
+
+        writePosition += record.length;
+        appended += record.length;
+        appends.mark();
+
+        return appended;
+    }
+
+    private void compact() {
+        log.info("Compacting mutation journal pending={} completed={}", pending.size(), completed.size());
+
+        Path compacted = path.resolveSibling(path.getFileName() + ".compacted");
+        try (FileChannel target = FileChannel.open(compacted, CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+            MappedByteBuffer targetBuffer = target.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            for (Completed completion : completed.values()) {
+                targetBuffer.put(encode(completion));
+            }
+            for (Intent intent : pending.values()) {
+                targetBuffer.put(encode(intent));
+            }
+            writePosition = targetBuffer.position();
+            targetBuffer.putInt(0);
+            targetBuffer.force();
+
+            buffer.force();
+            channel.close();
+            Files.move(compacted, path, ATOMIC_MOVE, REPLACE_EXISTING);
+
+            channel = FileChannel.open(path, READ, WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot compact mutation journal " + path, e);
+        }
+
+        // compacted file has been forced to disk
+        completeWaiters(appended);
+    }
+
+    private void commitLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                synchronized (this) {
+                    if (commitWaiters.isEmpty()) {
+                        wait(Math.max(commitInterval, 1));
+                    }
+                }
+                commit();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commit() {
+        MappedByteBuffer current;
+        long position;
+        synchronized (this) {
+            if (appended == committed) {
+                return;
+            }
+            current = buffer;
+            position = appended;
+        }
+
+        try (Timer.Context ignored = commits.time()) {
+            current.force();
+        }
+
+        synchronized (this) {
+            completeWaiters(position);
+        }
+    }
+
+    private void completeWaiters(final long position) {
+        int completedCount = 0;
+        Iterator<CommitWaiter> waiters = commitWaiters.iterator();
+        while (waiters.hasNext()) {
+            CommitWaiter waiter = waiters.next();
+            if (waiter.position <= position) {
+                waiter.future.complete(null);
+                waiters.remove();
+                completedCount++;
+            }
+        }
+
+        committed = Math.max(committed, position);
+        groupSizes.update(completedCount);
+    }
+
+    private synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    @PreDestroy
+    void close() {
+        if (!enabled) {
+            return;
+        }
+
+        committer.interrupt();
+        synchronized (this) {
+            buffer.force();
+            completeWaiters(appended);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Cannot close mutation journal. Message={}", e.getMessage());
+            }
+        }
+    }
+
+    private static byte[] encode(final Intent intent) {
+        return encode(INTENT_RECORD, intent.kind, intent.entityId, intent.version, output -> {
+            output.writeInt(intent.payload.size());
+            for (Map.Entry<String, Object> attribute : intent.payload.entrySet()) {
+                output.writeUTF(attribute.getKey());
+                writeValue(output, attribute.getValue());
+            }
+        });
+    }
+
+    private static byte[] encode(final Completed completion) {
+        return encode(COMPLETED_RECORD, completion.kind, completion.entityId, completion.version, output -> {
+            output.writeLong(completion.resultId);
+            output.writeLong(completion.resultStageId);
+        });
+    }
+
+    private static byte[] encode(final byte type,
+                                 final Kind kind,
+                                 final long entityId,
+                                 final long version,
+                                 final RecordWriter bodyWriter) {
+        try {
+            ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(64);
+            DataOutputStream body = new DataOutputStream(bodyBytes);
+            body.writeByte(type);
+            body.writeByte(kind.ordinal());
+            body.writeLong(entityId);
+            body.writeLong(version);
+            bodyWriter.write(body);
+            body.flush();
+
+            byte[] bodyArray = bodyBytes.toByteArray();
+            return ByteBuffer.allocate(Integer.BYTES + bodyArray.length + Integer.BYTES)
+                    .putInt(bodyArray.length + Integer.BYTES)
+                    .put(bodyArray)
+                    .putInt(checksum(bodyArray))
+                    .array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeValue(final DataOutputStream output, final Object value) throws IOException {
+        if (value instanceof Number) {
+            output.writeByte(LONG_VALUE);
+            output.writeLong(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN_VALUE);
+            output.writeBoolean((Boolean) value);
+        } else {
+            output.writeByte(STRING_VALUE);
+            output.writeUTF(String.valueOf(value));
+        }
+    }
+
+    private static Map<String, Object> readPayload(final DataInputStream input) throws IOException {
+        int count = input.readInt();
+        Map<String, Object> payload = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String attribute = input.readUTF();
+            byte valueType = input.readByte();
+            if (valueType == LONG_VALUE) {
+                payload.put(attribute, input.readLong());
+            } else if (valueType == BOOLEAN_VALUE) {
+                payload.put(attribute, input.readBoolean());
+            } else {
+                payload.put(attribute, input.readUTF());
+            }
+        }
+        return payload;
+    }
+
+    private static int checksum(final byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    private static String key(final Kind kind, final long entityId, final long version) {
+        return kind + ":" + entityId + ":" + version;
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    private static final class CommitWaiter {
+        private final long position;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        CommitWaiter(final long position) {
+            this.position = position;
+        }
+    }
+
+    /**
+     * Mutation that has been (or is about to be) sent to Base CRM
+     */
+    public static final class Intent {
+        private final Kind kind;
+        private final long entityId;
+        private final long version;
+        private final Map<String, Object> payload;
+
+        Intent(final Kind kind, final long entityId, final long version, final Map<String, Object> payload) {
+            this.kind = kind;
+            this.entityId = entityId;
+            this.version = version;
+            this.payload = payload;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public long getEntityId() {
+            return entityId;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public Map<String, Object> getPayload() {
+            return payload;
+        }
+
+        String getKey() {
+            return key(kind, entityId, version);
+        }
+    }
+
+    /**
+     * Mutation confirmed by Base CRM
+     */
+    public static final class Completed {
+        private final Kind kind;
+        private final long entityId;
+        private final long version;
+        private final long resultId;
+        private final long resultStageId;
+
+        Completed(final Kind kind,
+                  final long entityId,
+                  final long version,
+                  final long resultId,
+                  final long resultStageId) {
+            this.kind = kind;
+            this.entityId = entityId;
+            this.version = version;
+            this.resultId = resultId;
+            this.resultStageId = resultStageId;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public long getEntityId() {
+            return entityId;
+        }
+
+        public long getResultId() {
+            return resultId;
+        }
+
+        public long getResultStageId() {
+            return resultStageId;
+        }
+
+        String getKey() {
+            return key(kind, entityId, version);
+        }
+    }
+}
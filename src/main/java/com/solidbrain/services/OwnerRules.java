@@ -0,0 +1,281 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.getbase.models.User;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.MissingResourceException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Routing rules keyed by user id.
+ *
+ * The configured emails of sales representatives, account managers and the account manager on duty
+ * are resolved to user ids once (on first use, through the users cache of {@link UserService})
+ * and then kept up to date from User sync events,
+ * so deciding on the owner of a contact needs only its owner id and no user lookup.
+ * Resolved rules are saved in the warm cache snapshot, together with a fingerprint of the configured emails
+ * (rules resolved for other emails are discarded on restore).
+ */
+@Slf4j
+@Service
+public class OwnerRules implements SnapshotSection {
+
+    private static final long UNRESOLVED = -1L;
+
+    private UserService userService;
+
+    private Set<String> salesRepresentativesEmails;
+    private Set<String> accountManagersEmails;
+    private String accountManagerOnDutyEmail;
+    private long emailsFingerprint;
+
+    private Timer resolutions;
+
+    private volatile Rules rules;
+
+    private volatile ByteBuffer snapshot;
+
+    @Autowired
+    public OwnerRules(UserService userService,
+                      MetricRegistry metricRegistry,
+                      @Qualifier("salesReps") List<String> salesRepresentativesEmails,
+                      @Qualifier("accountManagers") List<String> accountManagersEmails,
+                      @Qualifier("accountManager") String accountManagerOnDutyEmail) {
+        this.userService = userService;
+
+        this.salesRepresentativesEmails = new HashSet<>(salesRepresentativesEmails);
+        this.accountManagersEmails = new HashSet<>(accountManagersEmails);
+        this.accountManagerOnDutyEmail = accountManagerOnDutyEmail;
+        this.emailsFingerprint = WarmCacheSnapshots.fingerprintOf(new TreeSet<>(salesRepresentativesEmails)
+                + "|" + new TreeSet<>(accountManagersEmails)
+                + "|" + accountManagerOnDutyEmail);
+
+        this.resolutions = metricRegistry.timer(name(OwnerRules.class, "resolutions"));
+        metricRegistry.register(name(OwnerRules.class, "salesRepresentatives"),
+                (Gauge<Integer>) () -> rules != null ? rules.salesRepresentativeIds.size() : 0);
+        metricRegistry.register(name(OwnerRules.class, "accountManagers"),
+                (Gauge<Integer>) () -> rules != null ? rules.accountManagerIds.size() : 0);
+    }
+
+    public boolean isSalesRepresentative(final Long userId) {
+        return userId != null && current().salesRepresentativeIds.contains(userId.longValue());
+    }
+
+    public boolean isAccountManager(final Long userId) {
+        return userId != null && current().accountManagerIds.contains(userId.longValue());
+    }
+
+    public long getAccountManagerOnDutyId() {
+        long userId = current().accountManagerOnDutyId;
+        if (userId == UNRESOLVED) {
+            throw new MissingResourceException("User not found",
+                    "com.getbase.models.User",
+                    accountManagerOnDutyEmail);
+        }
+        return userId;
+    }
+
+    /**
+     * Applies User sync event to the rules. Events delivered before the rules are resolved are covered
+     * by the resolution itself.
+     * @param eventType sync event type (created, updated, deleted)
+     * @param user user delivered by the sync
+     */
+    public void onUserEvent(final String eventType, final User user) {
+        log.debug("User sync eventType={} userId={}", eventType, user.getId());
+        restorePendingSnapshot();
+
+        synchronized (this) {
+            if (rules == null) {
+                return;
+            }
+
+            Rules updated = new Rules(rules);
+            updated.remove(user.getId());
+            if (!eventType.contentEquals("deleted")) {
+                updated.add(user);
+            }
+            rules = updated;
+        }
+    }
+
+    private Rules current() {
+        Rules current = rules;
+        if (current != null) {
+            return current;
+        }
+
+        restorePendingSnapshot();
+        current = rules;
+        return current != null ? current : resolve();
+    }
+
+    private synchronized Rules resolve() {
+        if (rules != null) {
+            return rules;
+        }
+
+        try (Timer.Context ignored = resolutions.time()) {
+            Set<String> emails = new HashSet<>(salesRepresentativesEmails);
+            emails.addAll(accountManagersEmails);
+            emails.add(accountManagerOnDutyEmail);
+
+            // users already cached (e.g. restored from the snapshot) are not looked up again
+            List<CompletableFuture<Optional<User>>> lookups = new ArrayList<>();
+            emails.forEach(email -> lookups.add(userService.getUserByEmailAsync(email)));
+
+            Rules resolved = new Rules();
+            lookups.forEach(lookup -> lookup.join().ifPresent(resolved::add));
+
+            log.info("Resolved owner rules salesRepresentatives={} accountManagers={} accountManagerOnDutyId={}",
+                    resolved.salesRepresentativeIds, resolved.accountManagerIds, resolved.accountManagerOnDutyId);
+
+            if (resolved.accountManagerOnDutyId == UNRESOLVED) {
+                log.warn("Account manager on duty not found email={}", accountManagerOnDutyEmail);
+            }
+
+            rules = resolved;
+            return resolved;
+        }
+    }
+
+    @Override
+    public String getSectionName() {
+        return "ownerRules";
+    }
+
+    @Override
+    public int getSectionVersion() {
+        return 1;
+    }
+
+    @Override
+    public void writeSection(final DataOutputStream out) throws IOException {
+        restorePendingSnapshot();
+
+        Rules current = rules;
+        out.writeLong(emailsFingerprint);
+        out.writeBoolean(current != null);
+        if (current != null) {
+            writeIds(out, current.salesRepresentativeIds);
+            writeIds(out, current.accountManagerIds);
+            out.writeLong(current.accountManagerOnDutyId);
+        }
+    }
+
+    private static void writeIds(final DataOutputStream out, final LongSet ids) throws IOException {
+        out.writeInt(ids.size());
+        for (long id : ids) {
+            out.writeLong(id);
+        }
+    }
+
+    private static void readIds(final ByteBuffer in, final LongSet ids) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            ids.add(in.getLong());
+        }
+    }
+
+    @Override
+    public void restoreSection(final ByteBuffer section) {
+        snapshot = section;
+    }
+
+    private void restorePendingSnapshot() {
+        if (snapshot != null) {
+            restoreSnapshot();
+        }
+    }
+
+    private synchronized void restoreSnapshot() {
+        ByteBuffer section = snapshot;
+        if (section == null) {
+            return;
+        }
+        snapshot = null;
+
+        try {
+            if (section.getLong() != emailsFingerprint) {
+                log.info("Discarding snapshot of owner rules resolved for other emails");
+                return;
+            }
+            if (section.get() == 0 || rules != null) {
+                return;
+            }
+
+            Rules restored = new Rules();
+            readIds(section, restored.salesRepresentativeIds);
+            readIds(section, restored.accountManagerIds);
+            restored.accountManagerOnDutyId = section.getLong();
+
+            rules = restored;
+            log.debug("Restored owner rules salesRepresentatives={} accountManagers={} accountManagerOnDutyId={}",
+                    restored.salesRepresentativeIds, restored.accountManagerIds, restored.accountManagerOnDutyId);
+        } catch (RuntimeException e) {
+            log.warn("Discarding snapshot of owner rules. Message={}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Immutable (once published) view of the rules
+     */
+    private final class Rules {
+        private final LongSet salesRepresentativeIds;
+        private final LongSet accountManagerIds;
+        private long accountManagerOnDutyId;
+
+        Rules() {
+            salesRepresentativeIds = new LongOpenHashSet();
+            accountManagerIds = new LongOpenHashSet();
+            accountManagerOnDutyId = UNRESOLVED;
+        }
+
+        Rules(final Rules other) {
+            salesRepresentativeIds = new LongOpenHashSet(other.salesRepresentativeIds);
+            accountManagerIds = new LongOpenHashSet(other.accountManagerIds);
+            accountManagerOnDutyId = other.accountManagerOnDutyId;
+        }
+
+        void add(final User user) {
+            long userId = user.getId();
+            String email = user.getEmail();
+            if (salesRepresentativesEmails.contains(email)) {
+                salesRepresentativeIds.add(userId);
+            }
+            if (accountManagersEmails.contains(email)) {
+                accountManagerIds.add(userId);
+            }
+            if (accountManagerOnDutyEmail.equals(email)) {
+                accountManagerOnDutyId = userId;
+            }
+        }
+
+        void remove(final long userId) {
+            salesRepresentativeIds.remove(userId);
+            accountManagerIds.remove(userId);
+            if (accountManagerOnDutyId == userId) {
+                accountManagerOnDutyId = UNRESOLVED;
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.solidbrain.services;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * In-memory lookup state which is saved in the warm cache snapshot (see {@link WarmCacheSnapshots})
+ */
+public interface SnapshotSection {
+
+    /**
+     * @return name of the section in the snapshot file
+     */
+    String getSectionName();
+
+    /**
+     * @return version of the section format; sections of other versions are discarded
+     */
+    int getSectionVersion();
+
+    /**
+     * Writes the current state of the section
+     */
+    void writeSection(DataOutputStream out) throws IOException;
+
+    /**
+     * Hands over the section saved in the snapshot. It is expected to be decoded on first use of the state,
+     * events applied afterwards update the restored state.
+     * @param section read-only view of the section (mapped from the snapshot file)
+     */
+    void restoreSection(ByteBuffer section);
+
+    /**
+     * Snapshots are also written periodically, so after a crash the restored state misses the events
+     * applied since the last write. State which is not refreshed on its own must not be restored then.
+     * @return true if the section is restored only from the snapshot written at a clean shutdown
+     */
+    default boolean isRestoredOnlyAfterCleanShutdown() {
+        return false;
+    }
+
+    static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(final ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,255 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.getbase.Client;
+import com.getbase.models.Stage;
+import com.getbase.services.StagesService;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * In-memory catalog of pipeline stages.
+ *
+ * Stages are loaded from Base CRM on first use and then kept up to date from Stage sync events,
+ * so checking the stage of a deal does not cost a round trip per processed event.
+ * A stage unknown to the catalog triggers a reload (at most once per workflow.stages.reload.min.interval,
+ * plus a single forced reload per unknown stage id within the interval, so a brand-new stage is found
+ * right away). A stage still unknown after that is answered as not active (and not won) until the next
+ * reload is due.
+ * The catalog is saved in the warm cache snapshot and restored on first use after a restart.
+ */
+@Slf4j
+@Service
+public class StageCatalog implements SnapshotSection {
+
+    private static final String WON_STAGE_CATEGORY = "won";
+
+    private static final byte ACTIVE_FLAG = 1;
+    private static final byte WON_FLAG = 2;
+
+    private Client baseClient;
+
+    private BaseApiCalls apiCalls;
+
+    private long reloadMinInterval;
+
+    private Counter hits;
+    private Counter misses;
+
+    private volatile Stages stages = new Stages();
+
+    private volatile long lastLoadTime;
+    private volatile long lastUpdateTime;
+
+    private volatile ByteBuffer snapshot;
+
+    // unknown stages the catalog was reloaded for before the reload was due (guarded by this)
+    private final LongSet forcedReloadStageIds = new LongOpenHashSet();
+
+    @Autowired
+    public StageCatalog(Client client,
+                        BaseApiCalls apiCalls,
+                        MetricRegistry metricRegistry,
+                        @Value("${workflow.stages.reload.min.interval}") long reloadMinInterval) {
+        this.baseClient = client;
+        this.apiCalls = apiCalls;
+        this.reloadMinInterval = reloadMinInterval;
+
+        this.hits = metricRegistry.counter(name(StageCatalog.class, "hits"));
+        this.misses = metricRegistry.counter(name(StageCatalog.class, "misses"));
+        metricRegistry.register(name(StageCatalog.class, "staleness"), (Gauge<Long>) this::getStaleness);
+    }
+
+    public boolean isActive(final long stageId) {
+        return lookup(stageId).activeStageIds.contains(stageId);
+    }
+
+    public boolean isWon(final long stageId) {
+        return lookup(stageId).wonStageIds.contains(stageId);
+    }
+
+    /**
+     * Applies Stage sync event to the catalog
+     * @param eventType sync event type (created, updated, deleted)
+     * @param stage stage delivered by the sync
+     */
+    public void onStageEvent(final String eventType, final Stage stage) {
+        log.debug("Stage sync eventType={} stage={}", eventType, stage);
+        restorePendingSnapshot();
+
+        synchronized (this) {
+            Stages updated = new Stages(stages);
+            updated.remove(stage.getId());
+            if (!eventType.contentEquals("deleted")) {
+                updated.add(stage);
+            }
+            stages = updated;
+            lastUpdateTime = System.currentTimeMillis();
+        }
+    }
+
+    private Stages lookup(final long stageId) {
+        restorePendingSnapshot();
+
+        Stages current = stages;
+        if (current.knownStageIds.contains(stageId)) {
+            hits.inc();
+            return current;
+        }
+
+        misses.inc();
+        return reloadIfDue(current, stageId);
+    }
+
+    private synchronized Stages reloadIfDue(final Stages seen, final long stageId) {
+        if (stages != seen) {
+            return stages;
+        }
+
+        long now = System.currentTimeMillis();
+        if (lastLoadTime == 0 || now - lastLoadTime >= reloadMinInterval) {
+            forcedReloadStageIds.clear();
+        } else if (!forcedReloadStageIds.add(stageId)) {
+            log.debug("Unknown stage (id={}) answered as not active until the next reload", stageId);
+            return seen;
+        }
+
+        Stages loaded = new Stages();
+        loadStages(loaded, true);
+        loadStages(loaded, false);
+        log.debug("Loaded stages count={}", loaded.knownStageIds.size());
+
+        stages = loaded;
+        lastLoadTime = now;
+        lastUpdateTime = now;
+
+        return loaded;
+    }
+
+    private void loadStages(final Stages target, final boolean active) {
+        List<Stage> fetched = apiCalls.execute("stages.list", () -> baseClient.stages()
+                .list(new StagesService.SearchCriteria().active(active)));
+
+        fetched.forEach(s -> target.add(s, active));
+    }
+
+    @Override
+    public String getSectionName() {
+        return "stages";
+    }
+
+    @Override
+    public int getSectionVersion() {
+        return 1;
+    }
+
+    @Override
+    public void writeSection(final DataOutputStream out) throws IOException {
+        restorePendingSnapshot();
+
+        Stages current = stages;
+        out.writeInt(current.knownStageIds.size());
+        for (long stageId : current.knownStageIds) {
+            out.writeLong(stageId);
+            out.writeByte((current.activeStageIds.contains(stageId) ? ACTIVE_FLAG : 0)
+                    | (current.wonStageIds.contains(stageId) ? WON_FLAG : 0));
+        }
+    }
+
+    @Override
+    public void restoreSection(final ByteBuffer section) {
+        snapshot = section;
+    }
+
+    private void restorePendingSnapshot() {
+        if (snapshot != null) {
+            restoreSnapshot();
+        }
+    }
+
+    private synchronized void restoreSnapshot() {
+        ByteBuffer section = snapshot;
+        if (section == null) {
+            return;
+        }
+        snapshot = null;
+
+        try {
+            Stages restored = new Stages();
+            int count = section.getInt();
+            for (int i = 0; i < count; i++) {
+                long stageId = section.getLong();
+                byte flags = section.get();
+                restored.add(stageId, (flags & ACTIVE_FLAG) != 0, (flags & WON_FLAG) != 0);
+            }
+
+            stages = restored;
+            lastUpdateTime = System.currentTimeMillis();
+            log.debug("Restored stages count={}", count);
+        } catch (RuntimeException e) {
+            log.warn("Discarding snapshot of stages. Message={}", e.getMessage(), e);
+        }
+    }
+
+    private long getStaleness() {
+        return lastUpdateTime > 0 ? System.currentTimeMillis() - lastUpdateTime : -1;
+    }
+
+    /**
+     * Immutable (once published) view of the stages
+     */
+    private static final class Stages {
+        private final LongSet knownStageIds;
+        private final LongSet activeStageIds;
+        private final LongSet wonStageIds;
+
+        Stages() {
+            knownStageIds = new LongOpenHashSet();
+            activeStageIds = new LongOpenHashSet();
+            wonStageIds = new LongOpenHashSet();
+        }
+
+        Stages(final Stages other) {
+            knownStageIds = new LongOpenHashSet(other.knownStageIds);
+            activeStageIds = new LongOpenHashSet(other.activeStageIds);
+            wonStageIds = new LongOpenHashSet(other.wonStageIds);
+        }
+
+        void add(final Stage stage) {
+            add(stage, Boolean.TRUE.equals(stage.getActive()));
+        }
+
+        void add(final Stage stage, final boolean active) {
+            add(stage.getId(), active, WON_STAGE_CATEGORY.equals(stage.getCategory()));
+        }
+
+        void add(final long stageId, final boolean active, final boolean won) {
+            knownStageIds.add(stageId);
+            if (active) {
+                activeStageIds.add(stageId);
+            }
+            if (won) {
+                wonStageIds.add(stageId);
+            }
+        }
+
+        void remove(final long stageId) {
+            knownStageIds.remove(stageId);
+            activeStageIds.remove(stageId);
+            wonStageIds.remove(stageId);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+
+/**
+ * Captures the traffic of a run for offline replay (see TrafficReplay of the load test):
+ * raw sync pages and the results of all other Base CRM API calls, serialized as JSON in snake case.
+ *
+ * Records (time, endpoint, payload) are written to a gzip-compressed file (workflow.recording.file)
+ * by a background thread, which also serializes the results, so a recorded call costs only a queue offer.
+ * Every run starts a new file: the recording of the previous run is moved aside to a name stamped with
+ * its last modification (e.g. traffic.recording-20161017-101500.gz), a run which did not stop cleanly
+ * leaves a file which is readable up to its last flushed record.
+ * When the writer cannot keep up records are dropped (and counted) instead of slowing down the calls.
+ */
+@Slf4j
+@Service
+public class TrafficRecorder {
+
+    private static final int QUEUE_CAPACITY = 10_000;
+
+    private static final DateTimeFormatter RUN_STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
+            .registerModule(new JodaModule())
+            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private boolean enabled;
+    private Path path;
+
+    private BlockingQueue<Call> calls;
+    private Thread writer;
+    private volatile boolean stopped;
+
+    private Meter recorded;
+    private Counter dropped;
+
+    @Autowired
+    public TrafficRecorder(MetricRegistry metricRegistry,
+                           @Value("${workflow.recording.enabled}") boolean enabled,
+                           @Value("${workflow.recording.file}") String file) {
+        this.enabled = enabled;
+        this.path = Paths.get(file);
+
+        this.recorded = metricRegistry.meter(name(TrafficRecorder.class, "recorded"));
+        this.dropped = metricRegistry.counter(name(TrafficRecorder.class, "dropped"));
+
+        if (enabled) {
+            calls = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            writer = new Thread(this::writeRecords, "traffic-recorder");
+            writer.setDaemon(true);
+            writer.start();
+            log.info("Recording traffic file={}", path);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records result of the call, it is serialized later by the writer (the result is not modified after the call)
+     * @param endpoint name of the called endpoint (e.g. deals.list, sync.fetch)
+     * @param result raw response (byte[]) or model(s) returned by the Base CRM client, null is not recorded
+     */
+    public void record(final String endpoint, final Object result) {
+        if (!enabled || result == null) {
+            return;
+        }
+
+        if (calls.offer(new Call(System.currentTimeMillis(), endpoint, result))) {
+            recorded.mark();
+        } else {
+            dropped.inc();
+        }
+    }
+
+    private void writeRecords() {
+        try {
+            if (path.toAbsolutePath().getParent() != null) {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+            }
+            moveAsidePreviousRun();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(path, CREATE_NEW), 65_536, true)))) {
+                while (!stopped || !calls.isEmpty()) {
+                    Call call = calls.poll(100, TimeUnit.MILLISECONDS);
+                    if (call == null) {
+                        out.flush();
+                        continue;
+                    }
+                    write(out, call);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Cannot record traffic file={} Message={}", path, e.getMessage(), e);
+        }
+    }
+
+    private void write(final DataOutputStream out, final Call call) throws IOException {
+        byte[] payload;
+        try {
+            payload = call.result instanceof byte[] ? (byte[]) call.result : objectMapper.writeValueAsBytes(call.result);
+        } catch (JsonProcessingException e) {
+            log.warn("Cannot record result of endpoint={}. Message={}", call.endpoint, e.getMessage());
+            dropped.inc();
+            return;
+        }
+
+        out.writeLong(call.calledAt);
+        out.writeUTF(call.endpoint);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    private void moveAsidePreviousRun() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        String stamp = RUN_STAMP.format(Files.getLastModifiedTime(path).toInstant().atZone(ZoneId.systemDefault()));
+        Path previousRun = path.resolveSibling(getRunFileName(path.getFileName().toString(), stamp));
+        Files.move(path, previousRun, REPLACE_EXISTING);
+        log.info("Moved recording of the previous run to file={}", previousRun);
+    }
+
+    /**
+     * @return name of the recording of a run, e.g. traffic.recording-20161017-101500.gz for traffic.recording.gz
+     */
+    static String getRunFileName(final String fileName, final String stamp) {
+        int extension = fileName.endsWith(".gz") ? fileName.length() - ".gz".length() : fileName.length();
+        return fileName.substring(0, extension) + "-" + stamp + fileName.substring(extension);
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        stopped = true;
+        if (writer != null) {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    /**
+     * Reads all records of the recording file in order (a record cut off by a crash ends the recording)
+     */
+    public static void read(final Path file, final Consumer<Record> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file), 65_536)))) {
+            while (true) {
+                long recordedAt = in.readLong();
+                String endpoint = in.readUTF();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                consumer.accept(new Record(recordedAt, endpoint, payload));
+            }
+        } catch (EOFException e) {
+            log.debug("End of recording file={}", file);
+        }
+    }
+
+    private static final class Call {
+        private final long calledAt;
+        private final String endpoint;
+        private final Object result;
+
+        Call(final long calledAt, final String endpoint, final Object result) {
+            this.calledAt = calledAt;
+            this.endpoint = endpoint;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Recorded result of a call
+     */
+    public static final class Record {
+        public final long recordedAt;
+        public final String endpoint;
+        public final byte[] payload;
+
+        Record(final long recordedAt, final String endpoint, final byte[] payload) {
+            this.recordedAt = recordedAt;
+            this.endpoint = endpoint;
+            this.payload = payload;
+        }
+    }
+}
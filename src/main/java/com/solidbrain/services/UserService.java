@@ -1,41 +1,216 @@
 package com.solidbrain.services;
 
-import com.getbase.Client;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.getbase.models.Contact;
 import com.getbase.models.User;
-import com.getbase.services.UsersService;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * Created by Krzysztof Wilk on 17/10/2016.
  */
 
+@Slf4j
 @Service
-public class UserService {
+public class UserService implements SnapshotSection {
+
+    private AsyncBaseClient asyncClient;
+
+    private AsyncLoadingCache<Long, User> usersById;
+    private Cache<String, Long> userIdsByEmail;
 
-    private Client baseClient;
+    private Timer loads;
+
+    private volatile ByteBuffer snapshot;
 
     @Autowired
-    public UserService(Client client) {
-        this.baseClient = client;
+    public UserService(AsyncBaseClient asyncClient,
+                       MetricRegistry metricRegistry,
+                       @Value("${workflow.users.cache.max.size}") long cacheMaxSize,
+                       @Value("${workflow.users.cache.ttl}") long cacheTtl) {
+        this.asyncClient = asyncClient;
+
+        // concurrent lookups of the same user share a single load
+        this.usersById = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterWrite(cacheTtl, MILLISECONDS)
+                .recordStats()
+                .buildAsync((userId, executor) -> loadUserById(userId));
+        this.userIdsByEmail = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterWrite(cacheTtl, MILLISECONDS)
+                .recordStats()
+                .build();
+
+        this.loads = metricRegistry.timer(name(UserService.class, "loads"));
+        registerCacheMetrics(metricRegistry, "byId", usersById.synchronous());
+        registerCacheMetrics(metricRegistry, "byEmail", userIdsByEmail);
+    }
+
+    private static void registerCacheMetrics(final MetricRegistry metricRegistry,
+                                             final String cacheName,
+                                             final Cache<?, ?> cache) {
+        metricRegistry.register(name(UserService.class, cacheName, "hitRatio"),
+                (Gauge<Double>) () -> cache.stats().hitRate());
+        metricRegistry.register(name(UserService.class, cacheName, "evictions"),
+                (Gauge<Long>) () -> cache.stats().evictionCount());
+        metricRegistry.register(name(UserService.class, cacheName, "size"),
+                (Gauge<Long>) cache::estimatedSize);
     }
 
-    private User getUserById(final long userId) {
-        return baseClient.users()
-                .get(userId);
+    private CompletableFuture<User> loadUserById(final Long userId) {
+        Timer.Context load = loads.time();
+        return asyncClient.getUser(userId)
+                .whenComplete((user, e) -> {
+                    load.stop();
+                    if (user != null && user.getEmail() != null) {
+                        userIdsByEmail.put(user.getEmail(), user.getId());
+                    }
+                });
     }
 
     Optional<User> getUserByEmail(final String email) {
-        return baseClient.users()
-                .list(new UsersService.SearchCriteria().email(email))
-                .stream()
-                .findFirst();
+        return getUserByEmailAsync(email).join();
+    }
+
+    CompletableFuture<Optional<User>> getUserByEmailAsync(final String email) {
+        restorePendingSnapshot();
+
+        Long userId = userIdsByEmail.getIfPresent(email);
+        if (userId != null) {
+            CompletableFuture<User> cachedUser = usersById.getIfPresent(userId);
+            if (cachedUser != null && cachedUser.isDone() && !cachedUser.isCompletedExceptionally()) {
+                User user = cachedUser.join();
+                if (user != null && email.equals(user.getEmail())) {
+                    return CompletableFuture.completedFuture(Optional.of(user));
+                }
+            }
+        }
+
+        Timer.Context load = loads.time();
+        return asyncClient.findUserByEmail(email)
+                .whenComplete((user, e) -> {
+                    load.stop();
+                    if (user != null) {
+                        user.ifPresent(this::cacheUser);
+                    }
+                });
     }
 
     User getContactOwner(Contact contact) {
-        return getUserById(contact.getOwnerId());
+        return getContactOwnerAsync(contact).join();
+    }
+
+    CompletableFuture<User> getContactOwnerAsync(Contact contact) {
+        restorePendingSnapshot();
+        return usersById.get(contact.getOwnerId());
+    }
+
+    /**
+     * Applies User sync event to the cache
+     * @param eventType sync event type (created, updated, deleted)
+     * @param user user delivered by the sync
+     */
+    public void onUserEvent(final String eventType, final User user) {
+        log.debug("User sync eventType={} userId={}", eventType, user.getId());
+        restorePendingSnapshot();
+
+        User cachedUser = usersById.synchronous().getIfPresent(user.getId());
+        if (cachedUser != null && cachedUser.getEmail() != null && !cachedUser.getEmail().equals(user.getEmail())) {
+            userIdsByEmail.invalidate(cachedUser.getEmail());
+        }
+
+        if (eventType.contentEquals("deleted")) {
+            usersById.synchronous().invalidate(user.getId());
+            if (user.getEmail() != null) {
+                userIdsByEmail.invalidate(user.getEmail());
+            }
+        } else {
+            cacheUser(user);
+        }
+    }
+
+    private void cacheUser(final User user) {
+        usersById.put(user.getId(), CompletableFuture.completedFuture(user));
+        if (user.getEmail() != null) {
+            userIdsByEmail.put(user.getEmail(), user.getId());
+        }
+    }
+
+    @Override
+    public String getSectionName() {
+        return "users";
+    }
+
+    @Override
+    public int getSectionVersion() {
+        return 1;
+    }
+
+    /**
+     * Saves id, email and name of the cached users
+     */
+    @Override
+    public void writeSection(final DataOutputStream out) throws IOException {
+        restorePendingSnapshot();
+
+        List<User> users = new ArrayList<>(usersById.synchronous().asMap().values());
+        out.writeInt(users.size());
+        for (User user : users) {
+            out.writeLong(user.getId());
+            SnapshotSection.writeString(out, user.getEmail());
+            SnapshotSection.writeString(out, user.getName());
+        }
+    }
+
+    @Override
+    public void restoreSection(final ByteBuffer section) {
+        snapshot = section;
+    }
+
+    private void restorePendingSnapshot() {
+        if (snapshot != null) {
+            restoreSnapshot();
+        }
+    }
+
+    private synchronized void restoreSnapshot() {
+        ByteBuffer section = snapshot;
+        if (section == null) {
+            return;
+        }
+        snapshot = null;
+
+        try {
+            int count = section.getInt();
+            for (int i = 0; i < count; i++) {
+                User user = new User();
+                user.setId(section.getLong());
+                user.setEmail(SnapshotSection.readString(section));
+                user.setName(SnapshotSection.readString(section));
+                cacheUser(user);
+            }
+            log.debug("Restored users count={}", count);
+        } catch (RuntimeException e) {
+            log.warn("Discarding snapshot of users. Message={}", e.getMessage(), e);
+        }
     }
 }
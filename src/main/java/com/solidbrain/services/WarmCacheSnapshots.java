@@ -0,0 +1,267 @@
+package com.solidbrain.services;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.solidbrain.config.BaseAccount;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Periodic snapshots of the in-memory lookup state (stages, users, owner rules, deals of contacts),
+ * so that a restarted service starts warm instead of looking everything up in Base CRM again.
+ *
+ * The snapshot is a binary file: a header (format version, creation time, fingerprint of the Base CRM
+ * account and device) followed by a directory of versioned sections. On startup the file is memory-mapped
+ * and every section is handed over to its owner, which decodes it on first use. Snapshots of another format,
+ * account or device, older than workflow.snapshot.max.age, or sections of another version are discarded.
+ * Changes made while the service was down are delivered by the sync and applied on top of the restored state.
+ *
+ * The snapshot written at shutdown is followed by a clean shutdown marker (a file next to the snapshot),
+ * which is removed on startup. Without the marker the snapshot is a periodic one of a crashed run,
+ * so the sections which are restored only after a clean shutdown are discarded.
+ */
+@Slf4j
+@Service
+public class WarmCacheSnapshots {
+
+    private static final int MAGIC = 0x57434D53;
+    private static final int FORMAT_VERSION = 1;
+
+    private List<SnapshotSection> sections;
+
+    private boolean enabled;
+    private Path path;
+    private Path cleanShutdownMarker;
+    private long maxAge;
+    private long fingerprint;
+
+    private volatile long restoredCreatedAt;
+
+    private Timer writes;
+    private Counter restoredSections;
+    private Counter discardedSections;
+
+    @Autowired
+    public WarmCacheSnapshots(List<SnapshotSection> sections,
+                              MetricRegistry metricRegistry,
+                              @Value("${workflow.snapshot.enabled}") boolean enabled,
+                              @Value("${workflow.snapshot.file}") String file,
+                              @Value("${workflow.snapshot.max.age}") long maxAge,
+                              BaseAccount account) {
+        this.sections = sections;
+        this.enabled = enabled;
+        this.path = Paths.get(file);
+        this.cleanShutdownMarker = Paths.get(file + ".clean");
+        this.maxAge = maxAge;
+        this.fingerprint = fingerprintOf(account.getBaseUrl() + "|" + account.getDeviceUuid());
+
+        this.writes = metricRegistry.timer(name(WarmCacheSnapshots.class, "writes"));
+        this.restoredSections = metricRegistry.counter(name(WarmCacheSnapshots.class, "restored"));
+        this.discardedSections = metricRegistry.counter(name(WarmCacheSnapshots.class, "discarded"));
+        metricRegistry.register(name(WarmCacheSnapshots.class, "restoredAge"), (Gauge<Long>) this::getRestoredAge);
+    }
+
+    static long fingerprintOf(final String value) {
+        CRC32 crc = new CRC32();
+        crc.update(value.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * Maps the snapshot file and hands its sections over to their owners
+     */
+    @PostConstruct
+    public void restore() {
+        if (!enabled) {
+            return;
+        }
+
+        boolean cleanShutdown;
+        try {
+            // the marker vouches only for the snapshot it was written with, a crash of this run must not inherit it
+            cleanShutdown = Files.deleteIfExists(cleanShutdownMarker);
+        } catch (IOException e) {
+            log.warn("Cannot remove clean shutdown marker file={} Message={}", cleanShutdownMarker, e.getMessage(), e);
+            return;
+        }
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            // the mapping stays valid after the channel is closed (sections are decoded lazily)
+            restore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), cleanShutdown);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            log.warn("Cannot restore warm cache snapshot file={} Message={}", path, e.getMessage(), e);
+        }
+    }
+
+    private void restore(final ByteBuffer snapshot, final boolean cleanShutdown) {
+        if (snapshot.getInt() != MAGIC || snapshot.getInt() != FORMAT_VERSION) {
+            log.info("Discarding warm cache snapshot of unknown format file={}", path);
+            return;
+        }
+
+        long createdAt = snapshot.getLong();
+        if (snapshot.getLong() != fingerprint) {
+            log.info("Discarding warm cache snapshot of another account or device file={}", path);
+            return;
+        }
+        if (System.currentTimeMillis() - createdAt > maxAge) {
+            log.info("Discarding stale warm cache snapshot file={} createdAt={}", path, createdAt);
+            return;
+        }
+
+        int count = snapshot.getInt();
+        String[] names = new String[count];
+        int[] versions = new int[count];
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = SnapshotSection.readString(snapshot);
+            versions[i] = snapshot.getInt();
+            offsets[i] = snapshot.getInt();
+            lengths[i] = snapshot.getInt();
+        }
+        int dataStart = snapshot.position();
+
+        for (SnapshotSection section : sections) {
+            for (int i = 0; i < count; i++) {
+                if (!section.getSectionName().equals(names[i])) {
+                    continue;
+                }
+                if (section.getSectionVersion() != versions[i]) {
+                    log.info("Discarding warm cache snapshot section={} version={}", names[i], versions[i]);
+                    discardedSections.inc();
+                    continue;
+                }
+                if (!cleanShutdown && section.isRestoredOnlyAfterCleanShutdown()) {
+                    log.info("Discarding warm cache snapshot section={} written before an unclean shutdown", names[i]);
+                    discardedSections.inc();
+                    continue;
+                }
+
+                ByteBuffer data = snapshot.duplicate();
+                data.position(dataStart + offsets[i]);
+                data.limit(dataStart + offsets[i] + lengths[i]);
+                section.restoreSection(data.slice().asReadOnlyBuffer());
+                restoredSections.inc();
+            }
+        }
+
+        restoredCreatedAt = createdAt;
+        log.info("Restored warm cache snapshot file={} createdAt={} sections={} cleanShutdown={}",
+                path, createdAt, count, cleanShutdown);
+    }
+
+    /**
+     * Writes the snapshot to a temporary file which then replaces the previous snapshot
+     */
+    @Scheduled(initialDelayString = "${workflow.snapshot.interval}", fixedDelayString = "${workflow.snapshot.interval}")
+    public void write() {
+        if (enabled) {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * @return true if the snapshot has been written
+     */
+    private boolean writeSnapshot() {
+        try (Timer.Context ignored = writes.time()) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeInt(MAGIC);
+            headerOut.writeInt(FORMAT_VERSION);
+            headerOut.writeLong(System.currentTimeMillis());
+            headerOut.writeLong(fingerprint);
+            headerOut.writeInt(sections.size());
+
+            for (SnapshotSection section : sections) {
+                int offset = data.size();
+                DataOutputStream sectionOut = new DataOutputStream(data);
+                section.writeSection(sectionOut);
+                sectionOut.flush();
+
+                SnapshotSection.writeString(headerOut, section.getSectionName());
+                headerOut.writeInt(section.getSectionVersion());
+                headerOut.writeInt(offset);
+                headerOut.writeInt(data.size() - offset);
+            }
+            headerOut.flush();
+
+            writeFile(header.toByteArray(), data.toByteArray());
+            log.debug("Written warm cache snapshot file={} size={}", path, header.size() + data.size());
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Cannot write warm cache snapshot file={} Message={}", path, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private void writeFile(final byte[] header, final byte[] data) throws IOException {
+        if (path.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+        }
+
+        Path temporary = Paths.get(path.toString() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer[] buffers = { ByteBuffer.wrap(header), ByteBuffer.wrap(data) };
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes the final snapshot and marks it as written at a clean shutdown
+     */
+    @PreDestroy
+    void shutdown() {
+        if (!enabled || !writeSnapshot()) {
+            return;
+        }
+
+        try {
+            Files.write(cleanShutdownMarker, new byte[0]);
+        } catch (IOException e) {
+            log.warn("Cannot write clean shutdown marker file={} Message={}", cleanShutdownMarker, e.getMessage(), e);
+        }
+    }
+
+    private long getRestoredAge() {
+        return restoredCreatedAt > 0 ? System.currentTimeMillis() - restoredCreatedAt : -1;
+    }
+}
@@ -0,0 +1,75 @@
+package com.solidbrain.workflow;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.TriggerContext;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Schedules the next workflow run depending on the outcome of the previous one.
+ *
+ * After a full batch of events the sync is fetched again immediately, after a partial batch
+ * once the minimum interval elapsed. While the feed is empty the interval doubles up to the maximum.
+ */
+@Slf4j
+@Component
+class AdaptivePollingTrigger implements Trigger {
+
+    private long minInterval;
+    private long maxInterval;
+    private int fullBatchSize;
+
+    // delay of the next run (ms), first run starts immediately
+    private volatile long interval;
+
+    private Meter immediateRuns;
+
+    @Autowired
+    AdaptivePollingTrigger(MetricRegistry metricRegistry,
+                           @Value("${workflow.polling.min.interval}") long minInterval,
+                           @Value("${workflow.polling.max.interval}") long maxInterval,
+                           @Value("${workflow.polling.full.batch}") int fullBatchSize) {
+        this.minInterval = Math.max(1L, minInterval);
+        this.maxInterval = Math.max(this.minInterval, maxInterval);
+        this.fullBatchSize = fullBatchSize;
+
+        this.immediateRuns = metricRegistry.meter(name(AdaptivePollingTrigger.class, "immediateRuns"));
+        metricRegistry.register(name(AdaptivePollingTrigger.class, "interval"), (Gauge<Long>) () -> interval);
+    }
+
+    /**
+     * Adapts the interval to the number of sync events fetched by the completed run
+     * @param fetchedEvents number of events fetched
+     */
+    void onRunCompleted(final int fetchedEvents) {
+        if (fetchedEvents >= fullBatchSize) {
+            interval = 0L;
+            immediateRuns.mark();
+        } else if (fetchedEvents > 0) {
+            interval = minInterval;
+        } else {
+            interval = Math.min(maxInterval, Math.max(minInterval, interval * 2));
+        }
+        log.debug("Fetched events={} next run in={} ms", fetchedEvents, interval);
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    @Override
+    public Date nextExecutionTime(final TriggerContext triggerContext) {
+        Date lastCompletionTime = triggerContext.lastCompletionTime();
+        long lastRun = lastCompletionTime != null ? lastCompletionTime.getTime() : System.currentTimeMillis();
+        return new Date(lastRun + interval);
+    }
+}
@@ -0,0 +1,435 @@
+package com.solidbrain.workflow;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.getbase.Client;
+import com.getbase.models.Contact;
+import com.getbase.models.Deal;
+import com.solidbrain.services.BaseApiCalls;
+import com.solidbrain.services.ContactService;
+import com.solidbrain.services.DealService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Re-evaluates all existing contacts and then all deals with the same rules as the sync events
+ * (e.g. after the emails of sales representatives changed or a new account was onboarded).
+ *
+ * Pages of contacts and deals are fetched in id order and their entities processed in parallel
+ * (at most workflow.backfill.concurrency at a time). Page fetches and processed entities are spaced out
+ * to at most workflow.backfill.max.rate per second. A checkpoint (phase, next page and ids of the entities
+ * of the phase that failed) is saved after every completed page, so a stopped or restarted backfill resumes
+ * where it left off. Once the pages of a phase are exhausted its failed entities are fetched and processed
+ * again; the next phase starts only when none of them failed again, otherwise the backfill stops
+ * (and retries them when started again).
+ *
+ * Runs alongside the sync loop: both go through CrmWriter, which writes a mutation of an entity only once
+ * while it is queued or in flight and skips mutations the journal already completed for the same event version.
+ * Starts on startup when workflow.backfill.enabled is set and the checkpoint is not finished,
+ * or on demand through JMX (com.solidbrain:type=Backfill). In a cluster only the fetcher node backfills,
+ * the backfill of the other nodes waits until they become the fetcher.
+ */
+@Slf4j
+@Component
+@ManagedResource(objectName = "com.solidbrain:type=Backfill", description = "Backfill of all contacts and deals")
+public class BackfillRunner implements ApplicationListener<ApplicationReadyEvent> {
+
+    enum Phase {
+        CONTACTS,
+        DEALS,
+        DONE
+    }
+
+    private static final int PAGE_SIZE = 100;
+
+    private static final long FETCHER_CHECK_INTERVAL = 1000L;
+
+    private Client baseClient;
+    private BaseApiCalls apiCalls;
+
+    private ContactService contactService;
+    private DealService dealService;
+    private ClusterNode clusterNode;
+
+    private boolean enabled;
+    private int concurrency;
+    private double maxRate;
+    private Path checkpointFile;
+
+    private volatile Thread runner;
+    private volatile boolean stopped;
+    private volatile Checkpoint checkpoint;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long startedAt;
+
+    private Meter throughput;
+    private Counter failures;
+
+    @Autowired
+    public BackfillRunner(Client client,
+                          BaseApiCalls apiCalls,
+                          ContactService contactService,
+                          DealService dealService,
+                          ClusterNode clusterNode,
+                          MetricRegistry metricRegistry,
+                          @Value("${workflow.backfill.enabled}") boolean enabled,
+                          @Value("${workflow.backfill.concurrency}") int concurrency,
+                          @Value("${workflow.backfill.max.rate}") double maxRate,
+                          @Value("${workflow.backfill.checkpoint.file}") String checkpointFile) {
+        this.baseClient = client;
+        this.apiCalls = apiCalls;
+        this.contactService = contactService;
+        this.dealService = dealService;
+        this.clusterNode = clusterNode;
+        this.enabled = enabled;
+        this.concurrency = Math.max(concurrency, 1);
+        this.maxRate = maxRate;
+        this.checkpointFile = Paths.get(checkpointFile);
+
+        this.throughput = metricRegistry.meter(name(BackfillRunner.class, "processed"));
+        this.failures = metricRegistry.counter(name(BackfillRunner.class, "failed"));
+    }
+
+    @Override
+    public void onApplicationEvent(final ApplicationReadyEvent event) {
+        if (enabled && readCheckpoint().phase != Phase.DONE) {
+            start();
+        }
+    }
+
+    /**
+     * Starts the backfill from the checkpoint, or from the beginning if the previous backfill finished
+     * @return false if the backfill is already running
+     */
+    @ManagedOperation(description = "Starts (or resumes) the backfill")
+    public synchronized boolean start() {
+        if (isRunning()) {
+            return false;
+        }
+
+        Checkpoint start = readCheckpoint();
+        if (start.phase == Phase.DONE) {
+            start = new Checkpoint(Phase.CONTACTS, 1);
+        }
+
+        checkpoint = start;
+        stopped = false;
+        processed.set(0);
+        failed.set(0);
+        startedAt = System.nanoTime();
+
+        Thread thread = new Thread(() -> run(checkpoint), "backfill");
+        thread.setDaemon(true);
+        runner = thread;
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops the backfill once the current page is processed (it resumes from the checkpoint)
+     */
+    @ManagedOperation(description = "Stops the backfill after the current page")
+    public void stop() {
+        stopped = true;
+    }
+
+    @ManagedAttribute(description = "Whether the backfill is running")
+    public boolean isRunning() {
+        Thread thread = runner;
+        return thread != null && thread.isAlive();
+    }
+
+    @ManagedAttribute(description = "Progress and throughput of the backfill")
+    public String getProgress() {
+        Checkpoint current = checkpoint;
+        double elapsed = startedAt > 0 ? (System.nanoTime() - startedAt) / 1e9 : 0.0;
+        return String.format("phase=%s page=%d pendingRetries=%d processed=%d failed=%d rate=%.1f/s elapsed=%.0fs",
+                current != null ? current.phase : readCheckpoint().phase,
+                current != null ? current.page : 0,
+                current != null ? current.failedIds.size() : 0,
+                processed.get(),
+                failed.get(),
+                elapsed > 0 ? processed.get() / elapsed : 0.0,
+                elapsed);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        stop();
+    }
+
+    private void run(final Checkpoint start) {
+        log.info("Starting backfill phase={} page={} concurrency={} maxRate={}",
+                start.phase, start.page, concurrency, maxRate);
+
+        RateLimiter rateLimiter = new RateLimiter(maxRate);
+        Semaphore inFlight = new Semaphore(concurrency);
+        Checkpoint current = start;
+        try {
+            while (current.phase != Phase.DONE && !stopped) {
+                if (!clusterNode.isFetcher()) {
+                    log.debug("Backfill waiting, node={} is not the fetcher", clusterNode.getNodeId());
+                    Thread.sleep(FETCHER_CHECK_INTERVAL);
+                    continue;
+                }
+
+                rateLimiter.acquire();
+                Checkpoint next = current.phase == Phase.CONTACTS
+                        ? processNext(current, this::fetchContacts, this::fetchContactsById, Contact::getId,
+                                this::processContact, rateLimiter, inFlight)
+                        : processNext(current, this::fetchDeals, this::fetchDealsById, Deal::getId,
+                                this::processDeal, rateLimiter, inFlight);
+
+                writeCheckpoint(next);
+                checkpoint = next;
+                log.info("Backfill progress {}", getProgress());
+
+                if (next.phase == current.phase && next.page == current.page) {
+                    log.warn("Backfill stopped, entities failed again phase={} ids={}", next.phase, next.failedIds);
+                    break;
+                }
+                current = next;
+            }
+            log.info("Backfill {} {}", current.phase == Phase.DONE ? "finished" : "stopped", getProgress());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Backfill interrupted {}", getProgress());
+        } catch (RuntimeException e) {
+            log.error("Backfill failed {} Message={}", getProgress(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Processes the next page of the phase or, once its pages are exhausted, the failed entities of the phase
+     * @return checkpoint to continue from (the same page if the failed entities failed again)
+     */
+    private <T> Checkpoint processNext(final Checkpoint current,
+                                       final IntFunction<List<T>> pageFetch,
+                                       final Function<List<Long>, List<T>> idsFetch,
+                                       final Function<T, Long> idOf,
+                                       final Function<T, CompletableFuture<Boolean>> processing,
+                                       final RateLimiter rateLimiter,
+                                       final Semaphore inFlight) throws InterruptedException {
+        List<T> entities = pageFetch.apply(current.page);
+        if (!entities.isEmpty()) {
+            return current.nextPage(processPage(entities, idOf, processing, rateLimiter, inFlight));
+        }
+        if (current.failedIds.isEmpty()) {
+            return current.nextPhase();
+        }
+
+        // entities deleted in the meantime are not returned and so are not retried
+        List<Long> failedAgain = new ArrayList<>();
+        for (int from = 0; from < current.failedIds.size(); from += PAGE_SIZE) {
+            List<Long> ids = current.failedIds.subList(from, Math.min(from + PAGE_SIZE, current.failedIds.size()));
+            if (from > 0) {
+                rateLimiter.acquire();
+            }
+            failedAgain.addAll(processPage(idsFetch.apply(ids), idOf, processing, rateLimiter, inFlight));
+        }
+        return failedAgain.isEmpty() ? current.nextPhase() : current.withFailedIds(failedAgain);
+    }
+
+    /**
+     * Processes entities of the page, at most concurrency of them at a time, and waits for all of them
+     * (so all permits are back before the next page)
+     * @return ids of the entities which failed
+     */
+    private <T> List<Long> processPage(final List<T> entities,
+                                       final Function<T, Long> idOf,
+                                       final Function<T, CompletableFuture<Boolean>> processing,
+                                       final RateLimiter rateLimiter,
+                                       final Semaphore inFlight) throws InterruptedException {
+        List<Long> failedIds = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Boolean>> outcomes = new ArrayList<>(entities.size());
+        for (T entity : entities) {
+            rateLimiter.acquire();
+            inFlight.acquire();
+
+            CompletableFuture<Boolean> outcome;
+            try {
+                outcome = processing.apply(entity);
+            } catch (RuntimeException e) {
+                outcome = new CompletableFuture<>();
+                outcome.completeExceptionally(e);
+            }
+            outcomes.add(outcome.whenComplete((status, e) -> {
+                inFlight.release();
+                processed.incrementAndGet();
+                throughput.mark();
+                if (e != null || !Boolean.TRUE.equals(status)) {
+                    failedIds.add(idOf.apply(entity));
+                    failed.incrementAndGet();
+                    failures.inc();
+                }
+            }));
+        }
+
+        try {
+            CompletableFuture.allOf(outcomes.toArray(new CompletableFuture[outcomes.size()])).get();
+        } catch (ExecutionException e) {
+            log.debug("Backfill page completed with failures. Message={}", e.getMessage());
+        }
+        return new ArrayList<>(failedIds);
+    }
+
+    // forced, entities evaluated since startup are evaluated again with the current rules
+    private CompletableFuture<Boolean> processContact(final Contact contact) {
+        return contactService.processContactAsync("updated", contact, true);
+    }
+
+    private CompletableFuture<Boolean> processDeal(final Deal deal) {
+        return dealService.processDealAsync("updated", deal, true);
+    }
+
+    private List<Contact> fetchContacts(final int page) {
+        return apiCalls.execute("contacts.list", () -> baseClient.contacts()
+                .list(pageParameters(page)));
+    }
+
+    private List<Deal> fetchDeals(final int page) {
+        return apiCalls.execute("deals.list", () -> baseClient.deals()
+                .list(pageParameters(page)));
+    }
+
+    private List<Contact> fetchContactsById(final List<Long> ids) {
+        return apiCalls.execute("contacts.list", () -> baseClient.contacts()
+                .list(idsParameters(ids)));
+    }
+
+    private List<Deal> fetchDealsById(final List<Long> ids) {
+        return apiCalls.execute("deals.list", () -> baseClient.deals()
+                .list(idsParameters(ids)));
+    }
+
+    private static Map<String, Object> pageParameters(final int page) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("page", page);
+        parameters.put("per_page", PAGE_SIZE);
+        parameters.put("sort_by", "id");
+        return parameters;
+    }
+
+    private static Map<String, Object> idsParameters(final List<Long> ids) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("ids", joinIds(ids));
+        parameters.put("per_page", PAGE_SIZE);
+        return parameters;
+    }
+
+    private static String joinIds(final List<Long> ids) {
+        return ids.stream()
+                .map(String::valueOf)
+                .collect(Collectors.joining(","));
+    }
+
+    private Checkpoint readCheckpoint() {
+        if (!Files.exists(checkpointFile)) {
+            return new Checkpoint(Phase.CONTACTS, 1);
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(checkpointFile)) {
+            properties.load(in);
+            String failedIds = properties.getProperty("failed", "");
+            return new Checkpoint(Phase.valueOf(properties.getProperty("phase")),
+                    Integer.parseInt(properties.getProperty("page")),
+                    failedIds.isEmpty()
+                            ? Collections.emptyList()
+                            : Arrays.stream(failedIds.split(",")).map(Long::valueOf).collect(Collectors.toList()));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot read backfill checkpoint file={} Message={}", checkpointFile, e.getMessage());
+            return new Checkpoint(Phase.CONTACTS, 1);
+        }
+    }
+
+    private void writeCheckpoint(final Checkpoint value) {
+        Properties properties = new Properties();
+        properties.setProperty("phase", value.phase.name());
+        properties.setProperty("page", String.valueOf(value.page));
+        properties.setProperty("failed", joinIds(value.failedIds));
+
+        try {
+            if (checkpointFile.toAbsolutePath().getParent() != null) {
+                Files.createDirectories(checkpointFile.toAbsolutePath().getParent());
+            }
+            Path temporary = Paths.get(checkpointFile.toString() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                properties.store(out, "Backfill checkpoint (next page to process, failed entities of the phase)");
+            }
+            Files.move(temporary, checkpointFile, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write backfill checkpoint " + checkpointFile, e);
+        }
+    }
+
+    /**
+     * Next page of the phase to process, with the ids of the entities of the phase which failed so far
+     */
+    static final class Checkpoint {
+        final Phase phase;
+        final int page;
+        final List<Long> failedIds;
+
+        Checkpoint(final Phase phase, final int page) {
+            this(phase, page, Collections.emptyList());
+        }
+
+        Checkpoint(final Phase phase, final int page, final List<Long> failedIds) {
+            this.phase = phase;
+            this.page = page;
+            this.failedIds = Collections.unmodifiableList(failedIds);
+        }
+
+        Checkpoint nextPage(final List<Long> pageFailedIds) {
+            List<Long> ids = new ArrayList<>(failedIds);
+            ids.addAll(pageFailedIds);
+            return new Checkpoint(phase, page + 1, ids);
+        }
+
+        Checkpoint withFailedIds(final List<Long> ids) {
+            return new Checkpoint(phase, page, ids);
+        }
+
+        Checkpoint nextPhase() {
+            return phase == Phase.CONTACTS ? new Checkpoint(Phase.DEALS, 1) : new Checkpoint(Phase.DONE, 0);
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package com.solidbrain.workflow;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+import com.getbase.models.Contact;
+import com.getbase.models.Deal;
+import com.getbase.models.Stage;
+import com.getbase.models.User;
+import com.solidbrain.services.ChangeDetector;
+import com.solidbrain.services.ContactDealIndex;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Membership of the instance in a cluster sharing the sync work (workflow.cluster.enabled).
+ *
+ * Nodes are identified by their address (host:port) and know each other from a static list
+ * (workflow.cluster.peers, the same list may be given to all nodes). A node listens only on the host
+ * of its own address, and every request between nodes carries the shared workflow.cluster.secret;
+ * requests without it are rejected. Every node pings the peers
+ * on its HTTP port every workflow.cluster.heartbeat.interval; a peer not heard from within
+ * workflow.cluster.failure.timeout is considered gone. The live node with the lowest id is the fetcher:
+ * the only one pulling the sync feed. Contact and deal events are partitioned by contact id
+ * with a {@link ConsistentHashRing} of the live nodes and forwarded to their owners, which process them
+ * with their own services and reply with the outcome, so the fetcher acknowledges them as before.
+ * The owner runs the received events on its {@link PartitionedExecutor} lanes keyed by the same contact id,
+ * so events of a contact are processed in order there too.
+ * Stage and user events are broadcast to all live peers and acknowledged only once all of them processed them.
+ * A deal moved to a contact owned by another node is also announced ("dealMoved") to the owner of the contact
+ * it was moved from, so that node drops its stale state of that contact.
+ *
+ * When the membership changes the ring is rebuilt and the local per-contact state (deal index, fingerprints)
+ * is dropped, as the partitions may have been handled by another node in the meantime.
+ * Events which could not be forwarded are not acknowledged, so the sync redelivers them (to the new owner).
+ * During a membership change two nodes may shortly both see themselves as the fetcher; the events they
+ * fetch are processed at least once, as with any redelivery.
+ */
+@Slf4j
+@Component
+class ClusterNode {
+
+    /**
+     * Local processing of the events received from the fetcher
+     */
+    interface EventHandler {
+        CompletableFuture<Boolean> process(String type, String eventType, Object entity);
+    }
+
+    private static final String PING_PATH = "/cluster/ping";
+    private static final String EVENTS_PATH = "/cluster/events";
+    private static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    private static final Map<String, Class<?>> ENTITY_TYPES = new HashMap<>();
+
+    static {
+        ENTITY_TYPES.put("contact", Contact.class);
+        ENTITY_TYPES.put("deal", Deal.class);
+        ENTITY_TYPES.put("dealMoved", Deal.class);
+        ENTITY_TYPES.put("stage", Stage.class);
+        ENTITY_TYPES.put("user", User.class);
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
+            .registerModule(new JodaModule())
+            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private ContactDealIndex contactDealIndex;
+    private ChangeDetector changeDetector;
+    private PartitionedExecutor partitionedExecutor;
+
+    private boolean enabled;
+    private String nodeId;
+    private String secret;
+    private List<String> peers;
+    private int heartbeatInterval;
+    private int failureTimeout;
+    private int eventTimeout;
+    private long startedAt;
+
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private volatile List<String> members;
+    private volatile ConsistentHashRing ring;
+    private volatile EventHandler eventHandler;
+
+    private HttpServer server;
+    private ScheduledExecutorService heartbeat;
+    private ExecutorService sender;
+
+    private Meter forwarded;
+    private Meter received;
+    private Meter broadcasts;
+    private Counter forwardFailures;
+    private Counter rebalances;
+
+    @Autowired
+    ClusterNode(ContactDealIndex contactDealIndex,
+                ChangeDetector changeDetector,
+                PartitionedExecutor partitionedExecutor,
+                MetricRegistry metricRegistry,
+                @Value("${workflow.cluster.enabled}") boolean enabled,
+                @Value("${workflow.cluster.port}") int port,
+                @Value("${workflow.cluster.address}") String address,
+                @Value("${workflow.cluster.secret}") String secret,
+                @Value("${workflow.cluster.peers}") String peers,
+                @Value("${workflow.cluster.heartbeat.interval}") int heartbeatInterval,
+                @Value("${workflow.cluster.failure.timeout}") int failureTimeout,
+                @Value("${workflow.cluster.event.timeout}") int eventTimeout,
+                @Value("${workflow.cluster.threads}") int threads) {
+        this.contactDealIndex = contactDealIndex;
+        this.changeDetector = changeDetector;
+        this.partitionedExecutor = partitionedExecutor;
+        this.enabled = enabled;
+        this.nodeId = address.trim();
+        this.secret = secret;
+        this.peers = Arrays.stream(peers.replaceAll(" ", "").split(","))
+                .filter(peer -> !peer.isEmpty() && !peer.equals(nodeId))
+                .distinct()
+                .collect(toList());
+        this.heartbeatInterval = heartbeatInterval;
+        this.failureTimeout = failureTimeout;
+        this.eventTimeout = eventTimeout;
+
+        this.members = Collections.singletonList(nodeId);
+        this.ring = new ConsistentHashRing(members);
+
+        this.forwarded = metricRegistry.meter(name(ClusterNode.class, "forwarded"));
+        this.received = metricRegistry.meter(name(ClusterNode.class, "received"));
+        this.broadcasts = metricRegistry.meter(name(ClusterNode.class, "broadcasts"));
+        this.forwardFailures = metricRegistry.counter(name(ClusterNode.class, "forwardFailures"));
+        this.rebalances = metricRegistry.counter(name(ClusterNode.class, "rebalances"));
+        metricRegistry.register(name(ClusterNode.class, "members"), (Gauge<Integer>) () -> members.size());
+
+        if (enabled) {
+            if (secret == null || secret.isEmpty()) {
+                throw new IllegalStateException("Shared secret of the cluster (workflow.cluster.secret) is not set");
+            }
+            start(port, threads);
+        }
+    }
+
+    private void start(final int port, final int threads) {
+        String host = nodeId.substring(0, Math.max(nodeId.lastIndexOf(':'), 0));
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen on cluster port " + host + ":" + port, e);
+        }
+        server.createContext(PING_PATH, this::handlePing);
+        server.createContext(EVENTS_PATH, this::handleEvent);
+        server.setExecutor(Executors.newFixedThreadPool(threads, r -> newDaemonThread(r, "cluster-receiver")));
+        server.start();
+
+        sender = Executors.newFixedThreadPool(threads, r -> newDaemonThread(r, "cluster-sender"));
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> newDaemonThread(r, "cluster-heartbeat"));
+        heartbeat.scheduleWithFixedDelay(this::sendHeartbeats, 0, heartbeatInterval, MILLISECONDS);
+
+        startedAt = System.currentTimeMillis();
+        log.info("Cluster node started nodeId={} peers={}", nodeId, peers);
+    }
+
+    private static Thread newDaemonThread(final Runnable runnable, final String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (server != null) {
+            heartbeat.shutdownNow();
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+            sender.shutdownNow();
+        }
+    }
+
+    void setEventHandler(final EventHandler eventHandler) {
+        this.eventHandler = eventHandler;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return live nodes (this one included) ordered by id
+     */
+    List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Checks whether this node should pull the sync feed: the live node with the lowest id.
+     * Right after start the node waits for the peers' heartbeats (failure timeout) before it decides.
+     */
+    boolean isFetcher() {
+        if (!enabled) {
+            return true;
+        }
+
+        return System.currentTimeMillis() - startedAt >= failureTimeout && members.get(0).equals(nodeId);
+    }
+
+    /**
+     * @param partitionKey contact id
+     * @return true if the partition is processed by this node
+     */
+    boolean isLocal(final long partitionKey) {
+        return !enabled || nodeId.equals(ring.ownerOf(partitionKey));
+    }
+
+    /**
+     * @param partitionKey contact id
+     * @return id of the node processing the partition
+     */
+    String ownerOf(final long partitionKey) {
+        return enabled ? ring.ownerOf(partitionKey) : nodeId;
+    }
+
+    /**
+     * Sends the event to the owner of its partition
+     * @return processing result reported by the owner (false if it could not be reached)
+     */
+    CompletableFuture<Boolean> forward(final long partitionKey, final String type, final String eventType, final Object entity) {
+        String owner = ring.ownerOf(partitionKey);
+        byte[] body = serialize(partitionKey, type, eventType, entity);
+        forwarded.mark();
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return Boolean.parseBoolean(post(owner, body));
+            } catch (IOException e) {
+                log.warn("Cannot forward {} event to node={}", type, owner, e);
+                forwardFailures.inc();
+                if (e instanceof ConnectException) {
+                    onPeerFailed(owner);
+                }
+                return false;
+            }
+        }, sender);
+    }
+
+    /**
+     * Sends the event to all live peers
+     * @return true once all of them have processed the event, false if any failed or could not be reached
+     */
+    CompletableFuture<Boolean> broadcast(final String type, final String eventType, final Object entity) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        return sendToAll(members.stream()
+                .filter(member -> !member.equals(nodeId))
+                .collect(toList()), type, eventType, entity);
+    }
+
+    /**
+     * Sends the event to all live peers except the owner of the partition
+     * @return true once all of them have processed the event, false if any failed or could not be reached
+     */
+    CompletableFuture<Boolean> broadcastExceptOwner(final long partitionKey,
+                                                    final String type,
+                                                    final String eventType,
+                                                    final Object entity) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        String owner = ring.ownerOf(partitionKey);
+        return sendToAll(members.stream()
+                .filter(member -> !member.equals(nodeId) && !member.equals(owner))
+                .collect(toList()), type, eventType, entity);
+    }
+
+    private CompletableFuture<Boolean> sendToAll(final List<String> nodes,
+                                                 final String type,
+                                                 final String eventType,
+                                                 final Object entity) {
+        byte[] body = serialize(null, type, eventType, entity);
+        List<CompletableFuture<Boolean>> results = nodes.stream()
+                .map(node -> {
+                    broadcasts.mark();
+                    return CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return Boolean.parseBoolean(post(node, body));
+                        } catch (IOException e) {
+                            log.warn("Cannot broadcast {} event to node={}", type, node, e);
+                            if (e instanceof ConnectException) {
+                                onPeerFailed(node);
+                            }
+                            return false;
+                        }
+                    }, sender);
+                })
+                .collect(toList());
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()]))
+                .thenApply(ignored -> results.stream().allMatch(CompletableFuture::join));
+    }
+
+    private byte[] serialize(final Long partitionKey, final String type, final String eventType, final Object entity) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        if (partitionKey != null) {
+            event.put("partition_key", partitionKey);
+        }
+        event.put("type", type);
+        event.put("event_type", eventType);
+        event.put("data", entity);
+        try {
+            return objectMapper.writeValueAsBytes(event);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String post(final String node, final byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + node + EVENTS_PATH).openConnection();
+        try {
+            connection.setConnectTimeout(heartbeatInterval);
+            connection.setReadTimeout(eventTimeout);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty(SECRET_HEADER, secret);
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response status=" + status + " of node=" + node);
+            }
+            try (InputStream in = connection.getInputStream()) {
+                return readAll(in).trim();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void sendHeartbeats() {
+        try {
+            for (String peer : peers) {
+                if (ping(peer)) {
+                    lastSeen.put(peer, System.currentTimeMillis());
+                }
+            }
+            updateMembership();
+        } catch (RuntimeException e) {
+            log.error("Cluster heartbeat failed", e);
+        }
+    }
+
+    private boolean ping(final String peer) {
+        try {
+            URL url = new URL("http://" + peer + PING_PATH + "?from=" + URLEncoder.encode(nodeId, "UTF-8"));
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setConnectTimeout(heartbeatInterval);
+                connection.setReadTimeout(heartbeatInterval);
+                connection.setRequestProperty(SECRET_HEADER, secret);
+                return connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            log.debug("Node not responding node={}", peer);
+            return false;
+        }
+    }
+
+    private void onPeerFailed(final String peer) {
+        lastSeen.remove(peer);
+        updateMembership();
+    }
+
+    /**
+     * Rebuilds the ring if the set of live nodes has changed
+     */
+    private synchronized void updateMembership() {
+        long now = System.currentTimeMillis();
+        TreeSet<String> live = new TreeSet<>();
+        live.add(nodeId);
+        peers.stream()
+                .filter(peer -> now - lastSeen.getOrDefault(peer, Long.MIN_VALUE / 2) <= failureTimeout)
+                .forEach(live::add);
+
+        List<String> liveMembers = Collections.unmodifiableList(new ArrayList<>(live));
+        if (liveMembers.equals(members)) {
+            return;
+        }
+
+        ring = new ConsistentHashRing(liveMembers);
+        members = liveMembers;
+        rebalances.inc();
+
+        contactDealIndex.clear();
+        changeDetector.forgetAll();
+
+        log.info("Cluster membership changed members={} fetcher={}", liveMembers, liveMembers.get(0));
+    }
+
+    private void handlePing(final HttpExchange exchange) throws IOException {
+        try {
+            if (!isAuthorized(exchange)) {
+                respond(exchange, HttpURLConnection.HTTP_FORBIDDEN, "");
+                return;
+            }
+
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null && query.startsWith("from=")) {
+                String from = URLDecoder.decode(query.substring("from=".length()), "UTF-8");
+                if (peers.contains(from)) {
+                    lastSeen.put(from, System.currentTimeMillis());
+                }
+            }
+            respond(exchange, HttpURLConnection.HTTP_OK, nodeId);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleEvent(final HttpExchange exchange) throws IOException {
+        try {
+            if (!isAuthorized(exchange)) {
+                respond(exchange, HttpURLConnection.HTTP_FORBIDDEN, "");
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, HttpURLConnection.HTTP_BAD_METHOD, "");
+                return;
+            }
+
+            JsonNode event = objectMapper.readTree(exchange.getRequestBody());
+            String type = event.path("type").asText();
+            Class<?> entityClass = ENTITY_TYPES.get(type);
+            EventHandler handler = eventHandler;
+            if (entityClass == null || handler == null) {
+                respond(exchange, entityClass == null ? HttpURLConnection.HTTP_BAD_REQUEST : HttpURLConnection.HTTP_UNAVAILABLE, "");
+                return;
+            }
+
+            received.mark();
+            Object entity = objectMapper.treeToValue(event.path("data"), entityClass);
+            String eventType = event.path("event_type").asText();
+            boolean succeeded;
+            try {
+                // forwarded (partitioned) events wait for their turn on the lane of their contact
+                CompletableFuture<Boolean> result = event.has("partition_key")
+                        ? partitionedExecutor.submit(event.path("partition_key").asLong(),
+                                () -> handler.process(type, eventType, entity))
+                        : handler.process(type, eventType, entity);
+                succeeded = Boolean.TRUE.equals(result.join());
+            } catch (RuntimeException e) {
+                log.error("Processing of forwarded {} event failed", type, e);
+                succeeded = false;
+            }
+            respond(exchange, HttpURLConnection.HTTP_OK, Boolean.toString(succeeded));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean isAuthorized(final HttpExchange exchange) {
+        String presented = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+        // constant time comparison, the secret cannot be guessed from response times
+        return presented != null && MessageDigest.isEqual(
+                presented.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static String readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,74 @@
+package com.solidbrain.workflow;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+import static com.solidbrain.services.Hashing.mix;
+
+/**
+ * Immutable consistent hash ring of cluster nodes.
+ *
+ * Every node is placed on the ring at a number of virtual points, a partition key (contact id) belongs
+ * to the node of the first point at or after its hash. When a node joins or leaves only the keys
+ * of its own points move, the rest of the partitions stay where they are.
+ */
+final class ConsistentHashRing {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final long[] points;
+    private final String[] owners;
+
+    ConsistentHashRing(final Collection<String> nodes) {
+        TreeSet<String> sortedNodes = new TreeSet<>(nodes);
+        long[] unsortedPoints = new long[sortedNodes.size() * VIRTUAL_NODES];
+        String[] unsortedOwners = new String[unsortedPoints.length];
+
+        int i = 0;
+        for (String node : sortedNodes) {
+            for (int virtualNode = 0; virtualNode < VIRTUAL_NODES; virtualNode++) {
+                unsortedPoints[i] = hash(node + "#" + virtualNode);
+                unsortedOwners[i] = node;
+                i++;
+            }
+        }
+
+        Integer[] order = new Integer[unsortedPoints.length];
+        Arrays.setAll(order, index -> index);
+        Arrays.sort(order, (a, b) -> Long.compare(unsortedPoints[a], unsortedPoints[b]));
+
+        this.points = new long[order.length];
+        this.owners = new String[order.length];
+        for (int j = 0; j < order.length; j++) {
+            points[j] = unsortedPoints[order[j]];
+            owners[j] = unsortedOwners[order[j]];
+        }
+    }
+
+    /**
+     * @param partitionKey contact id
+     * @return node owning the partition, null if the ring is empty
+     */
+    String ownerOf(final long partitionKey) {
+        if (points.length == 0) {
+            return null;
+        }
+
+        int index = Arrays.binarySearch(points, mix(partitionKey));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    private static long hash(final String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+}
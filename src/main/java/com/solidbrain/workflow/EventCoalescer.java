@@ -0,0 +1,131 @@
+package com.solidbrain.workflow;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Collapses repeated sync events of the same entity into its latest state.
+ *
+ * Events are buffered per entity for the whole workflow run (or for the configured time window)
+ * and only the latest one is evaluated. A batch holding workflow.coalescing.max.pending entities is flushed
+ * early, so a run delivering the whole account (first sync of a device) is not buffered in memory at once.
+ * Ack keys of all collapsed events are kept with it, so they are acknowledged only after the latest state
+ * has been processed.
+ */
+@Slf4j
+@Component
+class EventCoalescer {
+
+    private boolean enabled;
+
+    private long window;
+
+    private int maxPending;
+
+    private Meter received;
+    private Meter coalesced;
+
+    @Autowired
+    EventCoalescer(MetricRegistry metricRegistry,
+                   @Value("${workflow.coalescing.enabled}") boolean enabled,
+                   @Value("${workflow.coalescing.window}") long window,
+                   @Value("${workflow.coalescing.max.pending}") int maxPending) {
+        this.enabled = enabled;
+        this.window = window;
+        this.maxPending = Math.max(maxPending, 1);
+
+        this.received = metricRegistry.meter(name(EventCoalescer.class, "received"));
+        this.coalesced = metricRegistry.meter(name(EventCoalescer.class, "coalesced"));
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Events buffered during a single workflow run (not thread-safe, used by the sync fetch only)
+     */
+    final class Batch {
+        private final Map<String, PendingEvent> events = new LinkedHashMap<>();
+
+        private long firstEventTime;
+
+        /**
+         * Buffers the event replacing the pending event of the same entity
+         * @param entityKey entity type and id
+         * @param ackKey sync ack key of the event
+         * @param partitionKey key deciding the processing lane (contact id)
+         * @param processing event processing
+         */
+        void add(final String entityKey,
+                 final String ackKey,
+                 final long partitionKey,
+                 final Supplier<CompletableFuture<Boolean>> processing) {
+            received.mark();
+            if (events.isEmpty()) {
+                firstEventTime = System.currentTimeMillis();
+            }
+
+            List<String> ackKeys = new ArrayList<>();
+            PendingEvent previous = events.remove(entityKey);
+            if (previous != null) {
+                ackKeys.addAll(previous.ackKeys);
+                coalesced.mark();
+                log.debug("Coalescing event of entity={}", entityKey);
+            }
+            ackKeys.add(ackKey);
+
+            events.put(entityKey, new PendingEvent(ackKeys, partitionKey, processing));
+        }
+
+        /**
+         * @return true if the window has elapsed or the batch is full
+         */
+        boolean isFlushDue() {
+            if (events.isEmpty()) {
+                return false;
+            }
+            return events.size() >= maxPending || window > 0 && System.currentTimeMillis() - firstEventTime >= window;
+        }
+
+        /**
+         * @return latest events of all buffered entities (in order of their latest arrival)
+         */
+        List<PendingEvent> drain() {
+            List<PendingEvent> drained = new ArrayList<>(events.values());
+            events.clear();
+            return drained;
+        }
+    }
+
+    static final class PendingEvent {
+        final List<String> ackKeys;
+        final long partitionKey;
+        final Supplier<CompletableFuture<Boolean>> processing;
+
+        PendingEvent(final List<String> ackKeys,
+                     final long partitionKey,
+                     final Supplier<CompletableFuture<Boolean>> processing) {
+            this.ackKeys = ackKeys;
+            this.partitionKey = partitionKey;
+            this.processing = processing;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.solidbrain.workflow;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Runs workflow events on a fixed number of single-threaded lanes.
+ *
+ * Events are assigned to lanes by a hash of their partition key (contact id), so events of the same
+ * contact are processed in order while different contacts are processed in parallel. A lane takes
+ * the next event only once the result of the previous one has completed (its lookups and writes included).
+ * Each lane has a bounded queue; submitting to a full lane blocks the caller (the sync fetch).
+ * On shutdown the events still queued are failed, so nobody waits for them forever.
+ */
+@Slf4j
+@Component
+class PartitionedExecutor {
+
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final Lane[] lanes;
+
+    private volatile boolean stopped;
+
+    @Autowired
+    PartitionedExecutor(MetricRegistry metricRegistry,
+                        @Value("${workflow.concurrency.lanes}") int lanesCount,
+                        @Value("${workflow.concurrency.queue.capacity}") int queueCapacity) {
+        this.lanes = new Lane[Math.max(lanesCount, 1)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i, queueCapacity, metricRegistry.meter(name(PartitionedExecutor.class, "lanes", String.valueOf(i), "processed")));
+        }
+
+        metricRegistry.register(name(PartitionedExecutor.class, "queueDepth"), (Gauge<Integer>) this::getQueueDepth);
+        log.info("Workflow lanes={} queueCapacity={}", lanes.length, queueCapacity);
+    }
+
+    /**
+     * @return true if events are processed on more than one lane
+     */
+    boolean isConcurrent() {
+        return lanes.length > 1;
+    }
+
+    /**
+     * Queues the task on the lane of the partition key, blocking while that lane is full
+     * @param partitionKey key deciding the lane (contact id)
+     * @param task event processing (the lane moves on once its result completes)
+     * @return result of the task
+     */
+    CompletableFuture<Boolean> submit(final long partitionKey, final Supplier<CompletableFuture<Boolean>> task) {
+        Lane lane = lanes[Math.floorMod(Long.hashCode(partitionKey * HASH_MULTIPLIER), lanes.length)];
+
+        Task queued = new Task(task);
+        if (stopped) {
+            queued.cancel();
+            return queued.result;
+        }
+
+        try {
+            lane.queue.put(queued);
+            if (stopped) {
+                lane.cancelPending();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued.result.completeExceptionally(e);
+        }
+
+        return queued.result;
+    }
+
+    private int getQueueDepth() {
+        return Arrays.stream(lanes)
+                .mapToInt(l -> l.queue.size())
+                .sum();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        stopped = true;
+        Arrays.stream(lanes).forEach(l -> l.thread.interrupt());
+        Arrays.stream(lanes).forEach(Lane::cancelPending);
+    }
+
+    /**
+     * Event processing together with its result
+     */
+    private static final class Task implements Runnable {
+        private final Supplier<CompletableFuture<Boolean>> processing;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Task(final Supplier<CompletableFuture<Boolean>> processing) {
+            this.processing = processing;
+        }
+
+        @Override
+        public void run() {
+            try {
+                processing.get().whenComplete((status, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(e);
+                    } else {
+                        result.complete(status);
+                    }
+                });
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        void cancel() {
+            result.completeExceptionally(new IllegalStateException("Workflow lanes have been shut down"));
+        }
+
+        void awaitCompletion() throws InterruptedException {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                log.debug("Workflow event failed. Message={}", e.getCause().getMessage());
+            }
+        }
+    }
+
+    private final class Lane implements Runnable {
+        private final BlockingQueue<Task> queue;
+        private final Meter processed;
+        private final Thread thread;
+
+        Lane(final int number, final int queueCapacity, final Meter processed) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.processed = processed;
+
+            this.thread = new Thread(this, "workflow-lane-" + number);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        void cancelPending() {
+            List<Task> pending = new ArrayList<>();
+            queue.drainTo(pending);
+            pending.forEach(Task::cancel);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped && !Thread.currentThread().isInterrupted()) {
+                    Task task = queue.take();
+                    task.run();
+                    task.awaitCompletion();
+                    processed.mark();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
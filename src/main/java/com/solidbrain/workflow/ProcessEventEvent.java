@@ -0,0 +1,30 @@
+package com.solidbrain.workflow;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of the processing of a contact or deal sync event, from its start
+ * (after coalescing and queueing on a lane) to the completion of its lookups and writes
+ */
+@Name("com.solidbrain.ProcessEvent")
+@Label("Process Sync Event")
+@Category({ "Self Training", "Workflow" })
+@StackTrace(false)
+class ProcessEventEvent extends Event {
+
+    @Label("Entity Type")
+    String entityType;
+
+    @Label("Entity Id")
+    long entityId;
+
+    @Label("Event Type")
+    String eventType;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
@@ -0,0 +1,38 @@
+package com.solidbrain.workflow;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out requests evenly so that at most the given number of them start per second.
+ * A rate of 0 (or less) means no limit.
+ */
+final class RateLimiter {
+
+    private final long intervalNanos;
+
+    private long nextFreeSlot = System.nanoTime();
+
+    RateLimiter(final double permitsPerSecond) {
+        this.intervalNanos = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0L;
+    }
+
+    /**
+     * Blocks until the next request may start
+     */
+    void acquire() throws InterruptedException {
+        if (intervalNanos == 0L) {
+            return;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            wait = Math.max(0L, nextFreeSlot - now);
+            nextFreeSlot = Math.max(nextFreeSlot, now) + intervalNanos;
+        }
+
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,587 @@
+package com.solidbrain.workflow;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+import com.getbase.exceptions.ConnectionException;
+import com.getbase.exceptions.RateLimitException;
+import com.getbase.exceptions.RequestException;
+import com.getbase.exceptions.ServerException;
+import com.solidbrain.config.BaseAccount;
+import com.solidbrain.services.BaseApiCalls;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Sync feed consumption which binds only the entity types somebody subscribed to.
+ *
+ * The Sync library deserializes every item of a fetched page into its model object, even the types
+ * which are only subscribed to be acknowledged. Here the page is read as raw bytes and scanned with
+ * a streaming parser: the data of an item is bound to its model only if its type is subscribed,
+ * otherwise it is skipped over and its event acknowledged as it is.
+ *
+ * Skipped (not bound) events and bytes are recorded per run (SelectiveSync.skipped.*).
+ *
+ * Fetching is pipelined: while a page is processed, the following pages (at most workflow.sync.prefetch.pages)
+ * are fetched in the background. Pages are still processed one by one in the order of the queue.
+ * Acknowledgements are sent in batches of workflow.sync.ack.batch.size keys, in the background as well,
+ * and only for the events already processed (at-least-once).
+ */
+@Slf4j
+@Component
+class SelectiveSync {
+
+    private static final String DEFAULT_QUEUE = "main";
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
+            .registerModule(new JodaModule())
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private BaseApiCalls apiCalls;
+    private SyncAcknowledger syncAcknowledger;
+
+    private boolean enabled;
+    private String baseUrl;
+    private String accessToken;
+    private String deviceUuid;
+    private int connectTimeout;
+    private int readTimeout;
+    private int prefetchPages;
+    private int ackBatchSize;
+
+    private ExecutorService prefetcher;
+    private ExecutorService acknowledger;
+
+    private Meter boundEvents;
+    private Meter boundBytes;
+    private Meter skippedEvents;
+    private Meter skippedBytes;
+    private Histogram skippedEventsPerRun;
+    private Histogram skippedBytesPerRun;
+    private Timer pageWaits;
+    private Histogram ackBatches;
+
+    @Autowired
+    SelectiveSync(BaseApiCalls apiCalls,
+                  SyncAcknowledger syncAcknowledger,
+                  MetricRegistry metricRegistry,
+                  @Value("${workflow.sync.selective.enabled}") boolean enabled,
+                  BaseAccount account,
+                  @Value("${workflow.http.connect.timeout}") int connectTimeout,
+                  @Value("${workflow.http.read.timeout}") int readTimeout,
+                  @Value("${workflow.sync.prefetch.pages}") int prefetchPages,
+                  @Value("${workflow.sync.ack.batch.size}") int ackBatchSize) {
+        this.apiCalls = apiCalls;
+        this.syncAcknowledger = syncAcknowledger;
+        this.enabled = enabled;
+        this.baseUrl = account.getBaseUrl();
+        this.accessToken = account.getAccessToken();
+        this.deviceUuid = account.getDeviceUuid();
+        this.connectTimeout = connectTimeout * 1000;
+        this.readTimeout = readTimeout * 1000;
+        this.prefetchPages = prefetchPages;
+        this.ackBatchSize = Math.max(ackBatchSize, 1);
+
+        this.prefetcher = Executors.newSingleThreadExecutor(r -> newDaemonThread(r, "sync-prefetcher"));
+        this.acknowledger = Executors.newSingleThreadExecutor(r -> newDaemonThread(r, "sync-acknowledger"));
+
+        this.boundEvents = metricRegistry.meter(name(SelectiveSync.class, "bound", "events"));
+        this.boundBytes = metricRegistry.meter(name(SelectiveSync.class, "bound", "bytes"));
+        this.skippedEvents = metricRegistry.meter(name(SelectiveSync.class, "skipped", "events"));
+        this.skippedBytes = metricRegistry.meter(name(SelectiveSync.class, "skipped", "bytes"));
+        this.skippedEventsPerRun = metricRegistry.histogram(name(SelectiveSync.class, "skipped", "eventsPerRun"));
+        this.skippedBytesPerRun = metricRegistry.histogram(name(SelectiveSync.class, "skipped", "bytesPerRun"));
+        this.pageWaits = metricRegistry.timer(name(SelectiveSync.class, "pageWaits"));
+        this.ackBatches = metricRegistry.histogram(name(SelectiveSync.class, "ackBatchSize"));
+    }
+
+    private static Thread newDaemonThread(final Runnable runnable, final String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        prefetcher.shutdownNow();
+        acknowledger.shutdown();
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return new set of subscriptions, fetched with {@link Subscriptions#fetch()}
+     */
+    Subscriptions subscriptions() {
+        return new Subscriptions();
+    }
+
+    /**
+     * Callbacks per sync entity type (e.g. contact, deal) of a single fetch
+     */
+    final class Subscriptions {
+        private final Map<String, Subscription<?>> byType = new HashMap<>();
+
+        <T> Subscriptions subscribe(final Class<T> modelType, final BiFunction<SyncEventMeta, T, Boolean> callback) {
+            byType.put(getSyncType(modelType), new Subscription<>(modelType, callback));
+            return this;
+        }
+
+        /**
+         * Starts sync session and fetches its queue until it is drained. Events of subscribed types are
+         * acknowledged when their callback returns true, events of other types are always acknowledged.
+         * Returns once all the acknowledgements have been sent.
+         * @return number of fetched events of types with no subscription
+         */
+        int fetch() {
+            String queue = startSession();
+            if (queue == null) {
+                return 0;
+            }
+
+            RunStats stats = new RunStats();
+            Pages pages = new Pages(queue);
+            Acknowledgements acknowledgements = new Acknowledgements();
+            try {
+                List<RawEvent> page;
+                while (!(page = pages.next()).isEmpty()) {
+                    for (RawEvent event : page) {
+                        if (process(event, stats) && event.meta.ackKey != null) {
+                            acknowledgements.add(event.meta.ackKey);
+                        }
+                    }
+                }
+            } finally {
+                pages.close();
+                acknowledgements.flush();
+                skippedEventsPerRun.update(stats.skippedEvents);
+                skippedBytesPerRun.update(stats.skippedBytes);
+            }
+            return stats.skippedEvents;
+        }
+
+        private boolean process(final RawEvent event, final RunStats stats) {
+            Subscription<?> subscription = byType.get(event.type);
+            if (subscription == null) {
+                stats.skippedEvents++;
+                stats.skippedBytes += event.dataLength;
+                skippedEvents.mark();
+                skippedBytes.mark(event.dataLength);
+                return true;
+            }
+
+            boundEvents.mark();
+            boundBytes.mark(event.dataLength);
+            return subscription.accept(event);
+        }
+    }
+
+    /**
+     * Pages of the queue in order, fetched ahead by the prefetcher (or on demand if prefetching is off).
+     * The fetch of the next page starts as soon as there is room for it, so at most prefetchPages pages
+     * are fetched but not processed yet.
+     */
+    private final class Pages {
+        private final String queue;
+        private final BlockingQueue<Object> fetched;
+        private volatile boolean closed;
+
+        Pages(final String queue) {
+            this.queue = queue;
+            this.fetched = prefetchPages > 0 ? new ArrayBlockingQueue<>(prefetchPages) : null;
+            if (fetched != null) {
+                prefetcher.execute(this::prefetch);
+            }
+        }
+
+        private void prefetch() {
+            try {
+                List<RawEvent> page;
+                do {
+                    page = fetchPage(queue);
+                } while (offer(page) && !page.isEmpty());
+            } catch (RuntimeException e) {
+                offer(e);
+            }
+        }
+
+        private boolean offer(final Object item) {
+            try {
+                while (!closed) {
+                    if (fetched.offer(item, 100, MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<RawEvent> next() {
+            if (fetched == null) {
+                return fetchPage(queue);
+            }
+
+            Object item;
+            try (Timer.Context ignored = pageWaits.time()) {
+                item = fetched.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for sync page", e);
+            }
+
+            if (item instanceof RuntimeException) {
+                throw (RuntimeException) item;
+            }
+            return (List<RawEvent>) item;
+        }
+
+        /**
+         * Stops prefetching. Pages fetched but not processed are dropped, their events are not acknowledged
+         * and will be delivered again.
+         */
+        void close() {
+            closed = true;
+            if (fetched != null) {
+                fetched.clear();
+            }
+        }
+    }
+
+    /**
+     * Ack keys of processed events, sent in batches in the background
+     */
+    private final class Acknowledgements {
+        private final List<CompletableFuture<Void>> sent = new ArrayList<>();
+        private List<String> pending = new ArrayList<>();
+
+        void add(final String ackKey) {
+            pending.add(ackKey);
+            if (pending.size() >= ackBatchSize) {
+                send();
+            }
+        }
+
+        private void send() {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            List<String> ackKeys = pending;
+            pending = new ArrayList<>();
+            ackBatches.update(ackKeys.size());
+            sent.add(CompletableFuture.runAsync(() -> syncAcknowledger.acknowledgeKeys(ackKeys), acknowledger));
+        }
+
+        /**
+         * Sends the remaining keys and waits for all the batches. Events of failed batches are delivered again.
+         */
+        void flush() {
+            send();
+            for (CompletableFuture<Void> batch : sent) {
+                try {
+                    batch.join();
+                } catch (Exception e) {
+                    log.error("Cannot acknowledge sync events. Message={}", e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private final class Subscription<T> {
+        private final Class<T> modelType;
+        private final BiFunction<SyncEventMeta, T, Boolean> callback;
+
+        Subscription(final Class<T> modelType, final BiFunction<SyncEventMeta, T, Boolean> callback) {
+            this.modelType = modelType;
+            this.callback = callback;
+        }
+
+        boolean accept(final RawEvent event) {
+            T model;
+            try {
+                model = objectMapper.readValue(event.page, event.dataOffset, event.dataLength, modelType);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot bind sync event of type " + event.type, e);
+            }
+            return Boolean.TRUE.equals(callback.apply(event.meta, model));
+        }
+    }
+
+    /**
+     * Sync event as fetched: its metadata and the position of its data within the page
+     */
+    static final class RawEvent {
+        private final String type;
+        private final SyncEventMeta meta;
+        private final byte[] page;
+        private final int dataOffset;
+        private final int dataLength;
+
+        RawEvent(final String type, final SyncEventMeta meta, final byte[] page, final int dataOffset, final int dataLength) {
+            this.type = type;
+            this.meta = meta;
+            this.page = page;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+    }
+
+    private static final class RunStats {
+        private int skippedEvents;
+        private long skippedBytes;
+    }
+
+    /**
+     * @return name of the queue of the started session, null if there is nothing to synchronize
+     */
+    private String startSession() {
+        byte[] response = apiCalls.execute("sync.start", () -> request("POST", "/v2/sync/start"));
+        if (response == null) {
+            return null;
+        }
+
+        try {
+            Map<?, ?> session = (Map<?, ?>) objectMapper.readValue(response, Map.class).get("data");
+            List<?> queues = (List<?>) session.get("queues");
+            String queueName = DEFAULT_QUEUE;
+            if (queues != null && !queues.isEmpty()) {
+                Object name = ((Map<?, ?>) ((Map<?, ?>) queues.get(0)).get("data")).get("name");
+                queueName = name != null ? name.toString() : DEFAULT_QUEUE;
+            }
+            log.debug("Started sync session id={} queue={}", session.get("id"), queueName);
+            return "/v2/sync/" + session.get("id") + "/queues/" + queueName;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read sync session", e);
+        }
+    }
+
+    private List<RawEvent> fetchPage(final String queue) {
+        byte[] response = apiCalls.execute("sync.fetch", () -> request("GET", queue));
+        if (response == null) {
+            return new ArrayList<>();
+        }
+
+        try {
+            return parsePage(response);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read sync queue page", e);
+        }
+    }
+
+    /**
+     * Scans the page without binding anything but the metadata: data objects are skipped over,
+     * only their position is kept
+     */
+    List<RawEvent> parsePage(final byte[] page) throws IOException {
+        List<RawEvent> events = new ArrayList<>();
+        try (JsonParser parser = jsonFactory.createParser(page)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("items".equals(field) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        events.add(parseItem(parser, page));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return events;
+    }
+
+    private static RawEvent parseItem(final JsonParser parser, final byte[] page) throws IOException {
+        String type = null;
+        String eventType = null;
+        String ackKey = null;
+        int dataOffset = 0;
+        int dataLength = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("data".equals(field) && value == JsonToken.START_OBJECT) {
+                dataOffset = (int) parser.getTokenLocation().getByteOffset();
+                parser.skipChildren();
+                dataLength = (int) parser.getCurrentLocation().getByteOffset() - dataOffset;
+            } else if ("meta".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String metaField = parser.getCurrentName();
+                    JsonToken metaValue = parser.nextToken();
+                    if ("type".equals(metaField)) {
+                        type = parser.getValueAsString();
+                    } else if ("sync".equals(metaField) && metaValue == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String syncField = parser.getCurrentName();
+                            parser.nextToken();
+                            if ("event_type".equals(syncField)) {
+                                eventType = parser.getValueAsString();
+                            } else if ("ack_key".equals(syncField)) {
+                                ackKey = parser.getValueAsString();
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return new RawEvent(type, new SyncEventMeta(eventType, ackKey), page, dataOffset, dataLength);
+    }
+
+    private static void expect(final JsonToken actual, final JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected token " + actual + ", expected " + expected);
+        }
+    }
+
+    /**
+     * @return response body, null if there is no content (204)
+     */
+    private byte[] request(final String method, final String path) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setRequestProperty("Authorization", "Bearer " + accessToken);
+            connection.setRequestProperty("X-Basecrm-Device-UUID", deviceUuid);
+            connection.setRequestProperty("Accept", "application/json");
+
+            int status = connection.getResponseCode();
+            reportQuota(connection, status);
+            if (status == HttpURLConnection.HTTP_NO_CONTENT) {
+                drain(connection.getInputStream());
+                return null;
+            }
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                InputStream error = connection.getErrorStream();
+                byte[] errorBody = error != null ? drain(error) : new byte[0];
+                log.debug("Sync request failed. method={} path={} status={}", method, path, status);
+                throw toBaseException(status, errorBody);
+            }
+
+            try (InputStream body = connection.getInputStream()) {
+                return readAll(body);
+            }
+        } catch (IOException e) {
+            log.debug("Sync request failed. method={} path={} message={}", method, path, e.getMessage());
+            throw new ConnectionException(e);
+        }
+    }
+
+    /**
+     * Maps a failed response the way the Base CRM client does, so that the API call limiter and retries
+     * see the same exceptions (and outcomes) for sync requests as for the other calls
+     */
+    private RuntimeException toBaseException(final int status, final byte[] errorBody) {
+        String logref = getLogref(errorBody);
+        if (status == HTTP_TOO_MANY_REQUESTS) {
+            return new RateLimitException(status, logref, Collections.emptyList());
+        } else if (status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            return new ServerException(status, logref, Collections.emptyList());
+        }
+        return new RequestException(status, logref, Collections.emptyList());
+    }
+
+    private String getLogref(final byte[] errorBody) {
+        try {
+            return errorBody.length > 0 ? objectMapper.readTree(errorBody).path("meta").path("logref").asText(null) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Passes the remaining quota of requests (X-RateLimit-Remaining, none when throttled) to the API call limiter
+     */
+    private void reportQuota(final HttpURLConnection connection, final int status) {
+        if (status == HTTP_TOO_MANY_REQUESTS) {
+            apiCalls.reportQuota(0L);
+            return;
+        }
+
+        String remaining = connection.getHeaderField("X-RateLimit-Remaining");
+        if (remaining != null) {
+            try {
+                apiCalls.reportQuota(Long.parseLong(remaining.trim()));
+            } catch (NumberFormatException e) {
+                log.debug("Unexpected X-RateLimit-Remaining={}", remaining);
+            }
+        }
+    }
+
+    // fully read responses let the keep-alive connection be reused
+    private static byte[] drain(final InputStream stream) throws IOException {
+        try (InputStream ignored = stream) {
+            return readAll(stream);
+        }
+    }
+
+    private static byte[] readAll(final InputStream stream) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = stream.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Sync type of the model (e.g. AssociatedContact - associated_contact)
+     */
+    static String getSyncType(final Class<?> modelType) {
+        return modelType.getSimpleName()
+                .replaceAll("([a-z0-9])([A-Z])", "$1_$2")
+                .toLowerCase();
+    }
+}
@@ -0,0 +1,104 @@
+package com.solidbrain.workflow;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.getbase.Client;
+import com.solidbrain.config.BaseAccount;
+import com.solidbrain.services.BaseApiCalls;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Acknowledges sync events whose processing completed after their sync callback returned.
+ *
+ * Deferred events are not acknowledged by the Sync callback, so Base CRM delivers them again
+ * unless they are acknowledged here once processed successfully (at-least-once processing).
+ */
+@Slf4j
+@Component
+class SyncAcknowledger {
+
+    private static final int MAX_ACK_KEYS_PER_REQUEST = 100;
+
+    private Client baseClient;
+
+    private BaseApiCalls apiCalls;
+
+    private String deviceUuid;
+
+    private Meter acknowledged;
+    private Meter failed;
+
+    @Autowired
+    SyncAcknowledger(Client client,
+                     BaseApiCalls apiCalls,
+                     MetricRegistry metricRegistry,
+                     BaseAccount account) {
+        this.baseClient = client;
+        this.apiCalls = apiCalls;
+        this.deviceUuid = account.getDeviceUuid();
+
+        this.acknowledged = metricRegistry.meter(name(SyncAcknowledger.class, "acknowledged"));
+        this.failed = metricRegistry.meter(name(SyncAcknowledger.class, "failed"));
+    }
+
+    /**
+     * Waits for all deferred events and acknowledges the ones processed successfully
+     * @param events deferred events of the current run
+     */
+    void acknowledge(final List<DeferredEvent> events) {
+        List<String> ackKeys = new ArrayList<>();
+        for (DeferredEvent event : events) {
+            if (isProcessed(event)) {
+                ackKeys.addAll(event.ackKeys);
+            } else {
+                failed.mark();
+            }
+        }
+        log.debug("Acknowledging deferred events count={}", ackKeys.size());
+
+        acknowledgeKeys(ackKeys);
+    }
+
+    /**
+     * Acknowledges the events, at most 100 per request
+     * @param ackKeys ack keys of the processed events
+     */
+    void acknowledgeKeys(final List<String> ackKeys) {
+        for (int i = 0; i < ackKeys.size(); i += MAX_ACK_KEYS_PER_REQUEST) {
+            List<String> chunk = ackKeys.subList(i, Math.min(i + MAX_ACK_KEYS_PER_REQUEST, ackKeys.size()));
+            apiCalls.run("sync.ack", () -> baseClient.sync()
+                    .ack(deviceUuid, chunk));
+            acknowledged.mark(chunk.size());
+        }
+    }
+
+    private static boolean isProcessed(final DeferredEvent event) {
+        try {
+            return event.outcome.join();
+        } catch (Exception e) {
+            log.error("Deferred event failed. ackKeys={} Message={}", event.ackKeys, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Sync event (or coalesced events of one entity) processed outside of its sync callback
+     */
+    static final class DeferredEvent {
+        private final List<String> ackKeys;
+        private final CompletableFuture<Boolean> outcome;
+
+        DeferredEvent(final List<String> ackKeys, final CompletableFuture<Boolean> outcome) {
+            this.ackKeys = ackKeys;
+            this.outcome = outcome;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.solidbrain.workflow;
+
+import com.getbase.sync.Meta;
+
+/**
+ * Sync metadata of a single event, independent of the way the sync feed is consumed
+ * (Base CRM Sync library or {@link SelectiveSync})
+ */
+final class SyncEventMeta {
+    final String eventType;
+    final String ackKey;
+
+    SyncEventMeta(final String eventType, final String ackKey) {
+        this.eventType = eventType;
+        this.ackKey = ackKey;
+    }
+
+    static SyncEventMeta of(final Meta meta) {
+        return new SyncEventMeta(meta.getSync().getEventType(), meta.getSync().getAckKey());
+    }
+}
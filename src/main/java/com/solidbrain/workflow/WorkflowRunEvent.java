@@ -0,0 +1,23 @@
+package com.solidbrain.workflow;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a single run of the workflow (sync fetch, processing and acknowledgement)
+ */
+@Name("com.solidbrain.WorkflowRun")
+@Label("Workflow Run")
+@Category({ "Self Training", "Workflow" })
+@StackTrace(false)
+class WorkflowRunEvent extends Event {
+
+    @Label("Fetched Events")
+    int fetchedEvents;
+
+    @Label("Selective Sync")
+    boolean selectiveSync;
+}
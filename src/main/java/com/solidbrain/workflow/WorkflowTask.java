@@ -1,66 +1,420 @@
 package com.solidbrain.workflow;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.getbase.models.*;
 import com.getbase.sync.Sync;
+import com.solidbrain.services.ChangeDetector;
 import com.solidbrain.services.ContactService;
 import com.solidbrain.services.DealService;
+import com.solidbrain.services.OwnerRules;
+import com.solidbrain.services.StageCatalog;
+import com.solidbrain.services.UserService;
+import com.solidbrain.workflow.EventCoalescer.PendingEvent;
+import com.solidbrain.workflow.SyncAcknowledger.DeferredEvent;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
 import lombok.extern.slf4j.Slf4j;
 
+import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
 /**
  * Created by Krzysztof Wilk on 06/09/16.
  */
 @Component
 @Slf4j
-class WorkflowTask {
+class WorkflowTask implements SchedulingConfigurer {
     private Sync sync;
 
     private DealService dealService;
     private ContactService contactService;
 
+    private StageCatalog stageCatalog;
+    private UserService userService;
+    private OwnerRules ownerRules;
+    private ChangeDetector changeDetector;
+
+    private PartitionedExecutor partitionedExecutor;
+    private EventCoalescer eventCoalescer;
+    private SyncAcknowledger syncAcknowledger;
+    private SelectiveSync selectiveSync;
+    private AdaptivePollingTrigger pollingTrigger;
+    private ClusterNode clusterNode;
+
+    private Histogram syncLag;
+    private Histogram eventsPerRun;
+    private Meter events;
+
+    // events fetched by the current run (runs are not concurrent)
+    private int fetchedEvents;
+
+    // in a cluster: contacts of the active deals routed by this (fetcher) node
+    private final Long2LongOpenHashMap contactsOfRoutedDeals = new Long2LongOpenHashMap();
+
     @Autowired
     public WorkflowTask(Sync sync,
                         ContactService contactService,
-                        DealService dealService) {
+                        DealService dealService,
+                        StageCatalog stageCatalog,
+                        UserService userService,
+                        OwnerRules ownerRules,
+                        ChangeDetector changeDetector,
+                        PartitionedExecutor partitionedExecutor,
+                        EventCoalescer eventCoalescer,
+                        SyncAcknowledger syncAcknowledger,
+                        SelectiveSync selectiveSync,
+                        AdaptivePollingTrigger pollingTrigger,
+                        ClusterNode clusterNode,
+                        MetricRegistry metricRegistry) {
 
         this.sync = sync;
         this.contactService = contactService;
         this.dealService = dealService;
+        this.stageCatalog = stageCatalog;
+        this.userService = userService;
+        this.ownerRules = ownerRules;
+        this.changeDetector = changeDetector;
+        this.partitionedExecutor = partitionedExecutor;
+        this.eventCoalescer = eventCoalescer;
+        this.syncAcknowledger = syncAcknowledger;
+        this.selectiveSync = selectiveSync;
+        this.pollingTrigger = pollingTrigger;
+        this.clusterNode = clusterNode;
+        clusterNode.setEventHandler(this::processForwarded);
+
+        this.syncLag = metricRegistry.histogram(name(WorkflowTask.class, "syncLag"));
+        this.eventsPerRun = metricRegistry.histogram(name(WorkflowTask.class, "eventsPerRun"));
+        this.events = metricRegistry.meter(name(WorkflowTask.class, "events"));
+    }
+
+    @Override
+    public void configureTasks(final ScheduledTaskRegistrar taskRegistrar) {
+        taskRegistrar.addTriggerTask(this::runWorkflow, pollingTrigger);
     }
 
     /**
-     * Main workflow loop
+     * Main workflow loop, scheduled by {@link AdaptivePollingTrigger}.
+     * Every run is recorded as {@link WorkflowRunEvent} (when Flight Recorder is on).
+     * In a cluster only the fetcher node runs it, the others process the events forwarded to them.
      */
-    @Scheduled(fixedDelayString = "${workflow.loop.interval}")
     public void runWorkflow() {
+        if (!clusterNode.isFetcher()) {
+            log.debug("Skipping workflow run, node={} is not the fetcher", clusterNode.getNodeId());
+            pollingTrigger.onRunCompleted(0);
+            return;
+        }
+
         log.info("Starting workflow run");
 
+        WorkflowRunEvent runEvent = new WorkflowRunEvent();
+        runEvent.begin();
+
+        fetchedEvents = 0;
+        try {
+            List<DeferredEvent> deferredEvents = new ArrayList<>();
+            EventCoalescer.Batch batch = eventCoalescer.newBatch();
+
+            if (selectiveSync.isEnabled()) {
+                // only the handled types are bound, the others are acknowledged as fetched
+                fetchedEvents += selectiveSync.subscriptions()
+                        .subscribe(Contact.class, (meta, contact) -> onContact(meta, contact, batch, deferredEvents))
+                        .subscribe(Deal.class, (meta, deal) -> onDeal(meta, deal, batch, deferredEvents))
+                        .subscribe(Stage.class, this::onStage)
+                        .subscribe(User.class, this::onUser)
+                        .fetch();
+            } else {
+                fetchWithSyncLibrary(batch, deferredEvents);
+            }
+
+            flush(batch, deferredEvents);
+            syncAcknowledger.acknowledge(deferredEvents);
+        } finally {
+            eventsPerRun.update(fetchedEvents);
+            events.mark(fetchedEvents);
+            pollingTrigger.onRunCompleted(fetchedEvents);
+
+            runEvent.end();
+            if (runEvent.shouldCommit()) {
+                runEvent.fetchedEvents = fetchedEvents;
+                runEvent.selectiveSync = selectiveSync.isEnabled();
+                runEvent.commit();
+            }
+        }
+    }
+
+    private void fetchWithSyncLibrary(final EventCoalescer.Batch batch, final List<DeferredEvent> deferredEvents) {
         // Workaround: https://gist.github.com/michal-mally/73ea265718a0d29aac350dd81528414f
-        sync.subscribe(Account.class, (meta, account) -> true)
-                .subscribe(Address.class, (meta, address) -> true)
-                .subscribe(AssociatedContact.class, (meta, associatedContact) -> true)
-                .subscribe(Contact.class, (meta, contact) ->  processContact(meta.getSync().getEventType(), contact))
-                .subscribe(Deal.class, (meta, deal) -> processDeal(meta.getSync().getEventType(), deal))
-                .subscribe(LossReason.class, (meta, lossReason) -> true)
-                .subscribe(Note.class, (meta, note) -> true)
-                .subscribe(Pipeline.class, (meta, pipeline) -> true)
-                .subscribe(Source.class, (meta, source) -> true)
-                .subscribe(Stage.class, (meta, stage) -> true)
-                .subscribe(Tag.class, (meta, tag) -> true)
-                .subscribe(Task.class, (meta, task) -> true)
-                .subscribe(User.class, (meta, user) -> true)
-                .subscribe(Lead.class, (meta, lead) -> true)
+        sync.subscribe(Account.class, (meta, account) -> skip())
+                .subscribe(Address.class, (meta, address) -> skip())
+                .subscribe(AssociatedContact.class, (meta, associatedContact) -> skip())
+                .subscribe(Contact.class, (meta, contact) -> onContact(SyncEventMeta.of(meta), contact, batch, deferredEvents))
+                .subscribe(Deal.class, (meta, deal) -> onDeal(SyncEventMeta.of(meta), deal, batch, deferredEvents))
+                .subscribe(LossReason.class, (meta, lossReason) -> skip())
+                .subscribe(Note.class, (meta, note) -> skip())
+                .subscribe(Pipeline.class, (meta, pipeline) -> skip())
+                .subscribe(Source.class, (meta, source) -> skip())
+                .subscribe(Stage.class, (meta, stage) -> onStage(SyncEventMeta.of(meta), stage))
+                .subscribe(Tag.class, (meta, tag) -> skip())
+                .subscribe(Task.class, (meta, task) -> skip())
+                .subscribe(User.class, (meta, user) -> onUser(SyncEventMeta.of(meta), user))
+                .subscribe(Lead.class, (meta, lead) -> skip())
                 .fetch();
     }
 
-    boolean processContact(String eventType, Contact contact) {
-        return contactService.processContact(eventType, contact);
+    private boolean onContact(final SyncEventMeta meta,
+                              final Contact contact,
+                              final EventCoalescer.Batch batch,
+                              final List<DeferredEvent> deferredEvents) {
+        return dispatch(meta, "contact:" + contact.getId(), contact.getId(), batch, deferredEvents,
+                () -> recordSyncLag(contact.getUpdatedAt(), traced("contact", contact.getId(), meta.eventType,
+                        () -> processContact(meta.eventType, contact))));
+    }
+
+    private boolean onDeal(final SyncEventMeta meta,
+                           final Deal deal,
+                           final EventCoalescer.Batch batch,
+                           final List<DeferredEvent> deferredEvents) {
+        return dispatch(meta, "deal:" + deal.getId(), getPartitionKey(deal), batch, deferredEvents,
+                () -> recordSyncLag(deal.getUpdatedAt(), traced("deal", deal.getId(), meta.eventType,
+                        () -> processDeal(meta.eventType, deal))));
+    }
+
+    private boolean onStage(final SyncEventMeta meta, final Stage stage) {
+        fetchedEvents++;
+        return processStage(meta.eventType, stage);
+    }
+
+    private boolean onUser(final SyncEventMeta meta, final User user) {
+        fetchedEvents++;
+        return processUser(meta.eventType, user);
+    }
+
+    private boolean skip() {
+        fetchedEvents++;
+        return true;
+    }
+
+    /**
+     * Processes the event in place or defers it: buffers it for coalescing
+     * or, in concurrent mode, queues it on the lane of its contact
+     * @return sync callback result (false for deferred events, acknowledged at the end of the run)
+     */
+    private boolean dispatch(final SyncEventMeta meta,
+                             final String entityKey,
+                             final long partitionKey,
+                             final EventCoalescer.Batch batch,
+                             final List<DeferredEvent> deferredEvents,
+                             final Supplier<CompletableFuture<Boolean>> processing) {
+        fetchedEvents++;
+        String ackKey = meta.ackKey;
+
+        if (eventCoalescer.isEnabled()) {
+            batch.add(entityKey, ackKey, partitionKey, processing);
+            if (batch.isFlushDue()) {
+                flush(batch, deferredEvents);
+            }
+            return false;
+        }
+
+        if (!partitionedExecutor.isConcurrent()) {
+            return processing.get().join();
+        }
+
+        deferredEvents.add(new DeferredEvent(Collections.singletonList(ackKey),
+                partitionedExecutor.submit(partitionKey, processing)));
+        return false;
+    }
+
+    private void flush(final EventCoalescer.Batch batch, final List<DeferredEvent> deferredEvents) {
+        for (PendingEvent event : batch.drain()) {
+            deferredEvents.add(new DeferredEvent(event.ackKeys, submit(event.partitionKey, event.processing)));
+        }
+    }
+
+    private CompletableFuture<Boolean> submit(final long partitionKey, final Supplier<CompletableFuture<Boolean>> processing) {
+        if (partitionedExecutor.isConcurrent()) {
+            return partitionedExecutor.submit(partitionKey, processing);
+        }
+
+        // one event at a time, as on a single lane
+        CompletableFuture<Boolean> result = processing.get();
+        result.handle((status, e) -> status).join();
+        return result;
+    }
+
+    /**
+     * Records time from the modification of the entity to the end of processing of its sync event
+     */
+    private CompletableFuture<Boolean> recordSyncLag(final DateTime updatedAt, final CompletableFuture<Boolean> processing) {
+        if (updatedAt == null) {
+            return processing;
+        }
+
+        return processing.whenComplete((status, e) -> syncLag.update(System.currentTimeMillis() - updatedAt.getMillis()));
+    }
+
+    /**
+     * Records the processing as {@link ProcessEventEvent} (when Flight Recorder is on)
+     */
+    private static CompletableFuture<Boolean> traced(final String entityType,
+                                                     final long entityId,
+                                                     final String eventType,
+                                                     final Supplier<CompletableFuture<Boolean>> processing) {
+        ProcessEventEvent event = new ProcessEventEvent();
+        if (!event.isEnabled()) {
+            return processing.get();
+        }
+
+        event.begin();
+        return processing.get().whenComplete((status, e) -> {
+            event.end();
+            if (event.shouldCommit()) {
+                event.entityType = entityType;
+                event.entityId = entityId;
+                event.eventType = eventType;
+                event.succeeded = e == null && Boolean.TRUE.equals(status);
+                event.commit();
+            }
+        });
+    }
+
+    private static long getPartitionKey(final Deal deal) {
+        return deal.getContactId() != null ? deal.getContactId() : deal.getId();
+    }
+
+    /**
+     * Processes the event received from the fetcher node of the cluster
+     */
+    private CompletableFuture<Boolean> processForwarded(final String type, final String eventType, final Object entity) {
+        switch (type) {
+            case "contact":
+                return contactService.processContactAsync(eventType, (Contact) entity);
+            case "deal":
+                return processDealLocally(eventType, (Deal) entity);
+            case "dealMoved":
+                return CompletableFuture.completedFuture(dealService.onDealMoved((Deal) entity));
+            case "stage":
+                return CompletableFuture.completedFuture(processStageLocally(eventType, (Stage) entity));
+            case "user":
+                return CompletableFuture.completedFuture(processUserLocally(eventType, (User) entity));
+            default:
+                throw new IllegalArgumentException("Unsupported entity type=" + type);
+        }
+    }
+
+    CompletableFuture<Boolean> processContact(String eventType, Contact contact) {
+        if (!clusterNode.isLocal(contact.getId())) {
+            return clusterNode.forward(contact.getId(), "contact", eventType, contact);
+        }
+        return contactService.processContactAsync(eventType, contact);
+    }
+
+    CompletableFuture<Boolean> processDeal(String eventType, Deal deal) {
+        long partitionKey = getPartitionKey(deal);
+        if (!clusterNode.isEnabled()) {
+            return processDealLocally(eventType, deal);
+        }
+
+        CompletableFuture<Boolean> processing = clusterNode.isLocal(partitionKey)
+                ? processDealLocally(eventType, deal)
+                : clusterNode.forward(partitionKey, "deal", eventType, deal);
+        return processing.thenCombine(notifyDealMoved(eventType, deal, partitionKey), Boolean::logicalAnd)
+                .thenApply(status -> {
+                    if (status) {
+                        trackContactOfDeal(eventType, deal);
+                    }
+                    return status;
+                });
+    }
+
+    /**
+     * The owner of the deal's new contact cannot know the contact the deal was moved from, so the node owning
+     * that contact is told to forget the deal (its index and evaluation of the contact). Contacts of active deals
+     * are remembered from the routed events; for a deal not routed before all other nodes are told.
+     */
+    private CompletableFuture<Boolean> notifyDealMoved(final String eventType,
+                                                       final Deal deal,
+                                                       final long partitionKey) {
+        if (eventType.contentEquals("created")) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        Long previousContactId;
+        synchronized (contactsOfRoutedDeals) {
+            previousContactId = contactsOfRoutedDeals.containsKey(deal.getId())
+                    ? contactsOfRoutedDeals.get(deal.getId())
+                    : null;
+        }
+
+        if (previousContactId == null) {
+            boolean processedLocally = clusterNode.isLocal(partitionKey) || dealService.onDealMoved(deal);
+            return clusterNode.broadcastExceptOwner(partitionKey, "dealMoved", eventType, deal)
+                    .thenApply(notified -> notified && processedLocally);
+        }
+
+        String previousOwner = clusterNode.ownerOf(previousContactId);
+        if (previousOwner.equals(clusterNode.ownerOf(partitionKey))) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (clusterNode.isLocal(previousContactId)) {
+            return CompletableFuture.completedFuture(dealService.onDealMoved(deal));
+        }
+        return clusterNode.forward(previousContactId, "dealMoved", eventType, deal);
+    }
+
+    private void trackContactOfDeal(final String eventType, final Deal deal) {
+        boolean active = !eventType.contentEquals("deleted")
+                && deal.getContactId() != null
+                && deal.getStageId() != null
+                && stageCatalog.isActive(deal.getStageId());
+
+        synchronized (contactsOfRoutedDeals) {
+            if (active) {
+                contactsOfRoutedDeals.put(deal.getId(), deal.getContactId().longValue());
+            } else {
+                contactsOfRoutedDeals.remove(deal.getId());
+            }
+        }
+    }
+
+    boolean processStage(String eventType, Stage stage) {
+        CompletableFuture<Boolean> broadcast = clusterNode.broadcast("stage", eventType, stage);
+        boolean processed = processStageLocally(eventType, stage);
+        return broadcast.join() && processed;
+    }
+
+    boolean processUser(String eventType, User user) {
+        CompletableFuture<Boolean> broadcast = clusterNode.broadcast("user", eventType, user);
+        boolean processed = processUserLocally(eventType, user);
+        return broadcast.join() && processed;
+    }
+
+    private CompletableFuture<Boolean> processDealLocally(final String eventType, final Deal deal) {
+        return dealService.processDealAsync(eventType, deal);
+    }
+
+    private boolean processStageLocally(final String eventType, final Stage stage) {
+        stageCatalog.onStageEvent(eventType, stage);
+        changeDetector.forgetAll();
+        return true;
     }
 
-    boolean processDeal(String eventType, Deal deal) {
-        return dealService.processDeal(eventType, deal);
+    private boolean processUserLocally(final String eventType, final User user) {
+        userService.onUserEvent(eventType, user);
+        ownerRules.onUserEvent(eventType, user);
+        changeDetector.forgetAll();
+        return true;
     }
 }
@@ -6,6 +6,7 @@ VERSION=0.0.2-SNAPSHOT
 # Passing variables here due to https://github.com/Transmode/gradle-docker/issues/91
 docker run --name self-training \
                 -p 8080:8080 -d -e BASE_CRM_TOKEN=${BASE_CRM_TOKEN} \
+                -v self-training-data:/app/data \
                 -e DEVICE_UUID=${DEVICE_UUID} \
                 -e workflow_sales_representatives_emails=${workflow_sales_representatives_emails} \
                 -e workflow_account_managers_emails=${workflow_sales_representatives_emails} \
@@ -1,9 +1,12 @@
 package com.solidbrain.services
 
+import com.codahale.metrics.MetricRegistry
+import com.getbase.Client
 import com.getbase.models.Contact
 import com.getbase.models.Deal
 import com.getbase.models.Stage
 import com.getbase.models.User
+import com.getbase.services.UsersService
 import groovy.util.logging.Slf4j
 import spock.lang.Shared
 import spock.lang.Specification
@@ -55,12 +58,56 @@ abstract class AbstractSpec extends Specification {
         log.debug("salesRepresentativesEmails={}", salesRepresentativesEmails)
     }
 
+    def createTrafficRecorder() {
+        new TrafficRecorder(new MetricRegistry(), false, "")
+    }
+
+    def createBaseApiCalls() {
+        new BaseApiCalls(new MetricRegistry(), createTrafficRecorder(), 10)
+    }
+
+    def createAsyncBaseClient(Client client) {
+        new AsyncBaseClient(client, createBaseApiCalls(), new MetricRegistry(), 2, 10)
+    }
+
+    def createUserService(Client client) {
+        new UserService(createAsyncBaseClient(client), new MetricRegistry(), 100L, 60_000L)
+    }
+
+    def createOwnerRules(Client client) {
+        new OwnerRules(createUserService(client), new MetricRegistry(), salesRepresentativesEmails, accountManagersEmails, accountManagerOnDutyEmail)
+    }
+
+    def usersWithEmail(List<User> users) {
+        return { UsersService.SearchCriteria criteria -> users.findAll { it.email == criteria.toQueryParams().email } }
+    }
+
+    def createStageCatalog(Client client) {
+        new StageCatalog(client, createBaseApiCalls(), new MetricRegistry(), 0L)
+    }
+
+    def createContactDealIndex(StageCatalog stageCatalog = createStageCatalog(Stub(Client))) {
+        new ContactDealIndex(stageCatalog, new MetricRegistry())
+    }
+
+    def createMutationJournal() {
+        new MutationJournal(new MetricRegistry(), false, "", 0, 0L, 0)
+    }
+
+    def createCrmWriter(Client client) {
+        new CrmWriter(client, createBaseApiCalls(), createMutationJournal(), createContactDealIndex(), new MetricRegistry(), 1, 0L, 1, 0, 0L)
+    }
+
+    def createChangeDetector() {
+        new ChangeDetector(new MetricRegistry(), true, 1024)
+    }
+
     def getSampleStage(Map parameters) {
         new Stage(id: 1L, category: parameters.category)
     }
 
     def getSampleContactsOwner(Map parameters) {
-        new User(id: 465L,
+        new User(id: parameters.id ?: 465L,
                 email: parameters.email)
     }
 
@@ -0,0 +1,109 @@
+package com.solidbrain.services
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.exceptions.RateLimitException
+import spock.lang.IgnoreIf
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Unit tests of the per endpoint and outcome latency of Base CRM API calls
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class BaseApiCallsSpec extends AbstractSpec {
+
+    def "should time calls per endpoint and outcome"() {
+        given:
+        def registry = new MetricRegistry()
+        def apiCalls = new BaseApiCalls(registry, createTrafficRecorder(), 10)
+
+        when:
+        def result = apiCalls.execute("deals.list", { [] })
+        apiCalls.execute("deals.list", { throw Stub(RateLimitException) })
+
+        then:
+        thrown(RateLimitException)
+        result == []
+        registry.timer("com.solidbrain.services.BaseApiCalls.deals.list.success").count == 1
+        registry.timer("com.solidbrain.services.BaseApiCalls.deals.list.rateLimited").count == 1
+        registry.timer("com.solidbrain.services.BaseApiCalls.limiter.leases").count == 2
+        registry.gauges["com.solidbrain.services.BaseApiCalls.limiter.leased"].value == 0
+        registry.timer("com.solidbrain.services.BaseApiCalls.pool.leases").count == 2
+        registry.gauges["com.solidbrain.services.BaseApiCalls.pool.size"].value == 10
+        registry.gauges["com.solidbrain.services.BaseApiCalls.pool.utilisation"].value == 0.0d
+    }
+
+    def "should halve concurrency limit when throttled and grow it back with successful calls"() {
+        given:
+        def registry = new MetricRegistry()
+        def apiCalls = new BaseApiCalls(registry, createTrafficRecorder(), 8)
+        def limit = { registry.gauges["com.solidbrain.services.BaseApiCalls.limiter.limit"].value }
+
+        when:
+        apiCalls.execute("contacts.update", { throw Stub(RateLimitException) })
+
+        then:
+        thrown(RateLimitException)
+        limit() == 4
+        registry.meter("com.solidbrain.services.BaseApiCalls.limiter.rejections").count == 1
+
+        when:
+        20.times { apiCalls.execute("deals.list", { [] }) }
+
+        then:
+        limit() > 4
+
+        when:
+        apiCalls.reportQuota(0L)
+
+        then:
+        limit() == 1
+    }
+
+    def "should let waiting writes in before waiting reads"() {
+        given:
+        def limiter = new AdaptiveLimiter(1)
+        def started = new CopyOnWriteArrayList()
+        limiter.acquire(false)
+
+        when:
+        def read = Thread.start { limiter.acquire(false); started << "read"; limiter.release(false, false) }
+        new PollingConditions(timeout: 5).eventually { assert limiter.waiting == 1 }
+        def write = Thread.start { limiter.acquire(true); started << "write"; limiter.release(false, false) }
+        new PollingConditions(timeout: 5).eventually { assert limiter.waiting == 2 }
+        limiter.release(false, false)
+        [read, write]*.join(5000)
+
+        then:
+        started == ["write", "read"]
+    }
+
+    def "should record flight recorder event of every call"() {
+        given:
+        def apiCalls = new BaseApiCalls(new MetricRegistry(), createTrafficRecorder(), 2)
+        def file = Files.createTempFile("api-calls", ".jfr")
+        def recording = new Recording()
+        recording.enable("com.solidbrain.ApiCall")
+
+        when:
+        recording.start()
+        apiCalls.execute("sync.fetch", { new byte[10] })
+        apiCalls.execute("deals.list", { [1, 2, 3] })
+        recording.stop()
+        recording.dump(file)
+
+        then:
+        def events = RecordingFile.readAllEvents(file).findAll { it.eventType.name == "com.solidbrain.ApiCall" }
+        events.collect { [it.getString("endpoint"), it.getLong("payloadSize"), it.getInt("items")] } ==
+                [["sync.fetch", 10L, -1], ["deals.list", -1L, 3]]
+        events.every { it.getString("outcome") == "success" }
+
+        cleanup:
+        recording.close()
+        Files.deleteIfExists(file)
+    }
+}
@@ -0,0 +1,68 @@
+package com.solidbrain.services
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.models.Contact
+import com.getbase.models.Deal
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+/**
+ * Unit tests of the field-level change detection
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class ChangeDetectorSpec extends Specification {
+
+    def "should detect updates of contacts which change no rule-relevant field"() {
+        given:
+        def registry = new MetricRegistry()
+        def changeDetector = new ChangeDetector(registry, true, 1024)
+        changeDetector.recordEvaluated(new Contact(id: 1L, isOrganization: true, ownerId: 10L, name: "Company"))
+
+        expect:
+        changeDetector.isUnchanged(new Contact(id: 1L, isOrganization: true, ownerId: 10L, name: "Renamed"))
+        !changeDetector.isUnchanged(new Contact(id: 1L, isOrganization: true, ownerId: 11L))
+        !changeDetector.isUnchanged(new Contact(id: 1L, isOrganization: false, ownerId: 10L))
+        !changeDetector.isUnchanged(new Contact(id: 2L, isOrganization: true, ownerId: 10L))
+        registry.meter("com.solidbrain.services.ChangeDetector.contacts.skipped").count == 1
+        registry.meter("com.solidbrain.services.ChangeDetector.contacts.evaluated").count == 3
+    }
+
+    def "should forget evaluations of contacts whose deals changed and after the rules changed"() {
+        given:
+        def changeDetector = new ChangeDetector(new MetricRegistry(), true, 1024)
+        def contact = new Contact(id: 1L, isOrganization: true, ownerId: 10L)
+        def deal = new Deal(id: 2L, contactId: 3L, stageId: 4L)
+        changeDetector.recordEvaluated(contact)
+        changeDetector.recordEvaluated(deal)
+
+        when:
+        changeDetector.forgetContact(1L)
+
+        then:
+        !changeDetector.isUnchanged(contact)
+        changeDetector.isUnchanged(deal)
+
+        when:
+        changeDetector.recordEvaluated(contact)
+        changeDetector.forgetAll()
+
+        then:
+        !changeDetector.isUnchanged(contact)
+        !changeDetector.isUnchanged(deal)
+    }
+
+    def "should evict an entity colliding with another one in the bounded table"() {
+        given:
+        def changeDetector = new ChangeDetector(new MetricRegistry(), true, 1)
+        def first = new Deal(id: 1L, contactId: 3L, stageId: 4L)
+        def second = new Deal(id: 2L, contactId: 3L, stageId: 4L)
+
+        when:
+        changeDetector.recordEvaluated(first)
+        changeDetector.recordEvaluated(second)
+
+        then:
+        !changeDetector.isUnchanged(first)
+        changeDetector.isUnchanged(second)
+    }
+}
@@ -0,0 +1,93 @@
+package com.solidbrain.services
+
+import com.getbase.Client
+import com.getbase.models.Deal
+import com.getbase.models.Stage
+import spock.lang.IgnoreIf
+
+/**
+ * Unit tests of the contact to deals index
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class ContactDealIndexSpec extends AbstractSpec {
+
+    private static final long WON_STAGE_ID = 99L
+
+    def "should track deals of a warm contact from sync events"() {
+        given:
+        def index = createContactDealIndex(createStageCatalogOf(10L, 20L, 30L))
+
+        when:
+        index.load(123L, [new Deal(id: 1L, contactId: 123L, stageId: 10L)])
+        index.onDealEvent("created", new Deal(id: 2L, contactId: 123L, stageId: 20L))
+        index.onDealEvent("updated", new Deal(id: 1L, contactId: 123L, stageId: 30L))
+        index.onDealEvent("deleted", new Deal(id: 2L))
+
+        then:
+        index.isWarm(123L)
+        index.getStageIds(123L) as List == [30L]
+    }
+
+    def "should move deal between warm contacts"() {
+        given:
+        def index = createContactDealIndex(createStageCatalogOf(10L, 20L))
+        index.load(123L, [])
+        index.load(456L, [])
+
+        when:
+        def created = index.onDealEvent("created", new Deal(id: 1L, contactId: 123L, stageId: 10L))
+        def updated = index.onDealEvent("updated", new Deal(id: 1L, contactId: 123L, stageId: 20L))
+        def moved = index.onDealEvent("updated", new Deal(id: 1L, contactId: 456L, stageId: 10L))
+
+        then:
+        created == null
+        updated == null
+        moved == 123L
+        index.getStageIds(123L).length == 0
+        index.getStageIds(456L) as List == [10L]
+    }
+
+    def "should keep only active deals of warm contacts"() {
+        given:
+        def index = createContactDealIndex(createStageCatalogOf(10L))
+        index.load(123L, [new Deal(id: 1L, contactId: 123L, stageId: 10L),
+                          new Deal(id: 2L, contactId: 123L, stageId: WON_STAGE_ID),
+                          new Deal(id: 3L, contactId: 123L)])
+
+        when:
+        def loaded = index.getStageIds(123L) as List
+        index.onDealEvent("updated", new Deal(id: 1L, contactId: 123L, stageId: WON_STAGE_ID))
+        index.onDealEvent("created", new Deal(id: 4L, contactId: 456L, stageId: 10L))
+
+        then:
+        loaded == [10L]
+        index.getStageIds(123L).length == 0
+        !index.isWarm(456L)
+        index.getStageIds(456L).length == 0
+    }
+
+    def "should drop a deal moved to a contact processed elsewhere"() {
+        given:
+        def index = createContactDealIndex(createStageCatalogOf(10L))
+        index.load(123L, [new Deal(id: 1L, contactId: 123L, stageId: 10L)])
+
+        when:
+        def sameContact = index.onDealMoved(1L, 123L)
+        def moved = index.onDealMoved(1L, 456L)
+        def movedAgain = index.onDealMoved(1L, 456L)
+
+        then:
+        sameContact == null
+        moved == 123L
+        movedAgain == null
+        index.isWarm(123L)
+        index.getStageIds(123L).length == 0
+    }
+
+    def createStageCatalogOf(long... activeStageIds) {
+        def stageCatalog = createStageCatalog(Stub(Client))
+        activeStageIds.each { stageCatalog.onStageEvent("created", new Stage(id: it, category: "incoming", active: true)) }
+        stageCatalog.onStageEvent("created", new Stage(id: WON_STAGE_ID, category: "won", active: false))
+        stageCatalog
+    }
+}
@@ -1,5 +1,6 @@
 package com.solidbrain.services
 
+import com.codahale.metrics.MetricRegistry
 import com.getbase.Client
 import com.getbase.services.DealsService
 import com.getbase.services.StagesService
@@ -18,8 +19,7 @@ class ContactServiceSpec extends AbstractSpec {
     def "should create deal if the newly created contact is a company and the owner of the newly created contact is a sales representative"() {
         given:
         def client = Stub(Client)
-        def userService = new UserService(client)
-        def contactService = new ContactService(client, dealNameDateFormat, salesRepresentativesEmails, userService)
+        def contactService = new ContactService(createAsyncBaseClient(client), dealNameDateFormat, createOwnerRules(client), createStageCatalog(client), createContactDealIndex(), createCrmWriter(client), createChangeDetector(), new MetricRegistry())
 
         and:
         def contact = getSampleContact(isOrganization:  true)
@@ -27,7 +27,7 @@ class ContactServiceSpec extends AbstractSpec {
 
         and:
         def usersService = Stub(UsersService)
-        usersService.get(owner.id) >> owner
+        usersService.list(_ as UsersService.SearchCriteria) >> [owner]
         client.users() >> usersService
         def stagesService = Stub(StagesService)
         stagesService.list(!null) >> []
@@ -50,8 +50,7 @@ class ContactServiceSpec extends AbstractSpec {
     def "should not create deal if contact does not meet criteria"() {
         given:
         def client = Stub(Client)
-        def userService = new UserService(client)
-        def contactService = new ContactService(client, dealNameDateFormat, salesRepresentativesEmails, userService)
+        def contactService = new ContactService(createAsyncBaseClient(client), dealNameDateFormat, createOwnerRules(client), createStageCatalog(client), createContactDealIndex(), createCrmWriter(client), createChangeDetector(), new MetricRegistry())
 
         and:
         def contact = getSampleContact(isOrganization: isOrganization)
@@ -59,7 +58,7 @@ class ContactServiceSpec extends AbstractSpec {
 
         and:
         def usersService = Stub(UsersService)
-        usersService.get(owner.id) >> owner
+        usersService.list(_ as UsersService.SearchCriteria) >> [owner]
         client.users() >> usersService
         def stagesService = Stub(StagesService)
         stagesService.list(!null) >> []
@@ -98,15 +97,14 @@ class ContactServiceSpec extends AbstractSpec {
     def "should fail if processing contact throws exception"() {
         given:
         def client = Stub(Client)
-        def userService = new UserService(client)
-        def contactService = new ContactService(client, dealNameDateFormat, salesRepresentativesEmails, userService)
+        def contactService = new ContactService(createAsyncBaseClient(client), dealNameDateFormat, createOwnerRules(client), createStageCatalog(client), createContactDealIndex(), createCrmWriter(client), createChangeDetector(), new MetricRegistry())
 
         and:
         def contact = getSampleContact(isOrganization: true)
 
         and:
         def usersService = Stub(UsersService)
-        usersService.get(_) >> { throw new Exception("Cannot process contact (id=" + contact.id + ". Message=null")}
+        usersService.list(_) >> { throw new Exception("Cannot process contact (id=" + contact.id + ". Message=null")}
         client.users() >> usersService
 
         when:
@@ -123,8 +121,7 @@ class ContactServiceSpec extends AbstractSpec {
     def "should fail if processing deal throws exception"() {
         given:
         def client = Stub(Client)
-        def userService = Stub(UserService)
-        def dealService = new DealService(client, accountManagersEmails, accountManagerOnDutyEmail, userService)
+        def dealService = new DealService(createAsyncBaseClient(client), createOwnerRules(client), createStageCatalog(client), createContactDealIndex(), createCrmWriter(client), createChangeDetector(), new MetricRegistry())
 
         and:
         def deal = getSampleDeal()
@@ -148,8 +145,7 @@ class ContactServiceSpec extends AbstractSpec {
     def "should use default deal name suffix if invalid date format specified"() {
         given:
         def client = Stub(Client)
-        def userService = Stub(UserService)
-        def contactService = new ContactService(client, "INVALID-FORMAT", salesRepresentativesEmails, userService)
+        def contactService = new ContactService(createAsyncBaseClient(client), "INVALID-FORMAT", createOwnerRules(client), createStageCatalog(client), createContactDealIndex(), createCrmWriter(client), createChangeDetector(), new MetricRegistry())
 
         and:
         def dealsService = Mock(DealsService)
@@ -0,0 +1,206 @@
+package com.solidbrain.services
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.Client
+import com.getbase.exceptions.ConnectionException
+import com.getbase.models.Contact
+import com.getbase.models.Deal
+import com.getbase.services.ContactsService
+import com.getbase.services.DealsService
+import spock.lang.IgnoreIf
+
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Unit tests of the asynchronous write stage
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class CrmWriterSpec extends AbstractSpec {
+
+    def "should deduplicate writes of the same entity queued while others are in flight"() {
+        given:
+        def client = Stub(Client)
+        def crmWriter = new CrmWriter(client, createBaseApiCalls(), createMutationJournal(), createContactDealIndex(), new MetricRegistry(), 10, 50L, 2, 0, 0L)
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+
+        and:
+        def dealsService = Mock(DealsService)
+        client.deals() >> dealsService
+        def contactsService = Mock(ContactsService)
+        client.contacts() >> contactsService
+
+        when:
+        def inFlight = crmWriter.updateContact(999L, [name: "In flight"], 1L)
+        started.await(5, TimeUnit.SECONDS)
+        def firstDeal = crmWriter.createDeal(getSampleDeal(), 1L)
+        def secondDeal = crmWriter.createDeal(getSampleDeal(), 1L)
+        def firstUpdate = crmWriter.updateContact(123L, [owner_id: 1L], 1L)
+        def secondUpdate = crmWriter.updateContact(123L, [name: "Renamed"], 2L)
+        release.countDown()
+        inFlight.join()
+        firstDeal.join()
+        secondUpdate.join()
+
+        then:
+        1 * contactsService.update(999L, _) >> {
+            started.countDown()
+            release.await()
+            new Contact(id: 999L)
+        }
+        1 * dealsService.create(_) >> getSampleDeal()
+        1 * contactsService.update(123L, [owner_id: 1L, name: "Renamed"]) >> new Contact(id: 123L)
+        firstDeal.is(secondDeal)
+        firstUpdate.is(secondUpdate)
+
+        cleanup:
+        crmWriter.shutdown()
+    }
+
+    def "should write right away when nothing else is in flight and batch the writes queued meanwhile"() {
+        given:
+        def client = Stub(Client)
+        def defaults = new Properties()
+        getClass().getResourceAsStream("/application.properties").withStream { defaults.load(it) }
+        def journalFile = Files.createTempFile("mutations", ".journal")
+        def journal = new MutationJournal(new MetricRegistry(), true, journalFile.toString(),
+                defaults["workflow.journal.size"] as int, defaults["workflow.journal.commit.interval"] as long,
+                defaults["workflow.journal.completed.max"] as int)
+        def registry = new MetricRegistry()
+        // default properties, except for a flush interval no write could wait for
+        def crmWriter = new CrmWriter(client, createBaseApiCalls(), journal, createContactDealIndex(), registry,
+                defaults["workflow.writes.batch.size"] as int, TimeUnit.HOURS.toMillis(1),
+                defaults["workflow.writes.threads"] as int, defaults["workflow.writes.retries"] as int,
+                defaults["workflow.writes.retry.backoff"] as long)
+        def batchSizes = registry.histogram("com.solidbrain.services.CrmWriter.batchSize")
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+
+        and:
+        def written = Collections.synchronizedList([])
+        def contactsService = Stub(ContactsService)
+        contactsService.update(_, _) >> { id, attributes ->
+            if (id == 100L) {
+                started.countDown()
+                release.await()
+            }
+            written << id
+            new Contact(id: id)
+        }
+        client.contacts() >> contactsService
+
+        when: "events are processed one by one, as in the serial workflow"
+        (1..5).each { i -> crmWriter.updateContact(i as long, [name: "Contact $i".toString()], i as long).join() }
+
+        then: "every write is flushed on its own"
+        written == [1L, 2L, 3L, 4L, 5L]
+        batchSizes.count == 5
+        batchSizes.snapshot.max == 1
+
+        when: "writes are queued while another one is in flight"
+        def inFlight = crmWriter.updateContact(100L, [name: "In flight"], 1L)
+        started.await(5, TimeUnit.SECONDS)
+        def queued = (6..8).collect { i -> crmWriter.updateContact(i as long, [name: "Contact $i".toString()], i as long) }
+        release.countDown()
+        inFlight.join()
+        queued*.join()
+
+        then: "they are flushed together once it is written"
+        written[5] == 100L
+        written.drop(6) as Set == [6L, 7L, 8L] as Set
+        batchSizes.count == 7
+        batchSizes.snapshot.max == 3
+
+        cleanup:
+        crmWriter.shutdown()
+        journal.close()
+        Files.deleteIfExists(journalFile)
+    }
+
+    def "should look the deal up before retrying a creation which may have reached Base CRM"() {
+        given:
+        def client = Stub(Client)
+        def crmWriter = new CrmWriter(client, createBaseApiCalls(), createMutationJournal(), createContactDealIndex(), new MetricRegistry(), 1, 0L, 1, 1, 1L)
+
+        and:
+        def dealsService = Mock(DealsService)
+        client.deals() >> dealsService
+
+        when:
+        def deal = crmWriter.createDeal(getSampleDeal(), 1L).join()
+
+        then:
+        1 * dealsService.create(_) >> { throw new ConnectionException(new SocketTimeoutException("Read timed out")) }
+        1 * dealsService.list(_) >> [getSampleDeal()]
+        deal.name == getSampleDeal().name
+
+        cleanup:
+        crmWriter.shutdown()
+    }
+
+    def "should retry a deal creation refused before sending without a lookup"() {
+        given:
+        def client = Stub(Client)
+        def crmWriter = new CrmWriter(client, createBaseApiCalls(), createMutationJournal(), createContactDealIndex(), new MetricRegistry(), 1, 0L, 1, 1, 1L)
+
+        and:
+        def dealsService = Mock(DealsService)
+        client.deals() >> dealsService
+
+        when:
+        crmWriter.createDeal(getSampleDeal(), 1L).join()
+
+        then:
+        1 * dealsService.create(_) >> { throw new ConnectionException(new ConnectException("Connection refused")) }
+        1 * dealsService.create(_) >> getSampleDeal()
+        0 * dealsService.list(_)
+
+        cleanup:
+        crmWriter.shutdown()
+    }
+
+    def "should keep a journaled write pending when Base CRM is unreachable during recovery"() {
+        given:
+        def client = Stub(Client)
+        def journalFile = Files.createTempFile("mutations", ".journal")
+        def journal = new MutationJournal(new MetricRegistry(), true, journalFile.toString(), 4096, 1L, 5)
+        journal.recordIntent(MutationJournal.Kind.CREATE_DEAL, 123L, 1L, [name: getSampleDeal().name]).join()
+        def crmWriter = new CrmWriter(client, createBaseApiCalls(), journal, createContactDealIndex(), new MetricRegistry(), 1, 0L, 1, 0, 0L)
+
+        and:
+        def dealsService = Stub(DealsService)
+        dealsService.list(_) >> { throw new ConnectionException(new ConnectException("Connection refused")) }
+        client.deals() >> dealsService
+
+        when:
+        crmWriter.recoverPending()
+
+        then:
+        noExceptionThrown()
+        journal.getPendingIntents()*.entityId == [123L]
+
+        cleanup:
+        crmWriter.shutdown()
+        journal.close()
+        Files.deleteIfExists(journalFile)
+    }
+
+    def "should report failed write"() {
+        given:
+        def client = Stub(Client)
+        def crmWriter = createCrmWriter(client)
+
+        and:
+        def dealsService = Stub(DealsService)
+        dealsService.create(_ as Deal) >> { throw new IllegalStateException("Cannot create deal") }
+        client.deals() >> dealsService
+
+        when:
+        crmWriter.createDeal(getSampleDeal(), 1L).join()
+
+        then:
+        thrown(Exception)
+    }
+}
@@ -1,6 +1,9 @@
 package com.solidbrain.services
 
+import com.codahale.metrics.MetricRegistry
 import com.getbase.Client
+import com.getbase.models.Contact
+import com.getbase.models.Deal
 import com.getbase.services.ContactsService
 import com.getbase.services.DealsService
 import com.getbase.services.StagesService
@@ -16,20 +19,18 @@ class DealServiceSpec extends AbstractSpec {
     def "should assign contact related to won deal to account manager on duty"() {
         given:
         def client = Stub(Client)
-        def userService = new UserService(client)
-        def dealService = new DealService(client, accountManagersEmails, accountManagerOnDutyEmail, userService)
+        def dealService = new DealService(createAsyncBaseClient(client), createOwnerRules(client), createStageCatalog(client), createContactDealIndex(), createCrmWriter(client), createChangeDetector(), new MetricRegistry())
 
         and:
         def contact = getSampleContact(isOrganization: true)
         def deal = getSampleDeal()
         def owner = getSampleContactsOwner(email: salesRepresentativesEmails[0])
         def wonStage = getSampleStage(category: "won")
-        def accountManagerOnDuty = getSampleContactsOwner(email: accountManagerOnDutyEmail)
+        def accountManagerOnDuty = getSampleContactsOwner(id: 466L, email: accountManagerOnDutyEmail)
 
         and:
         def usersService = Stub(UsersService)
-        usersService.get(owner.id) >> owner
-        usersService.list(_ as UsersService.SearchCriteria) >> [owner]
+        usersService.list(_ as UsersService.SearchCriteria) >> [owner, accountManagerOnDuty]
         client.users() >> usersService
         def stagesService = Stub(StagesService)
         stagesService.list(!null) >> [wonStage]
@@ -56,8 +57,7 @@ class DealServiceSpec extends AbstractSpec {
     def "should not assign contact related to won deal to account manager on duty"() {
         given:
         def client = Stub(Client)
-        def userService = new UserService(client)
-        def dealService = new DealService(client, accountManagersEmails, accountManagerOnDutyEmail, userService)
+        def dealService = new DealService(createAsyncBaseClient(client), createOwnerRules(client), createStageCatalog(client), createContactDealIndex(), createCrmWriter(client), createChangeDetector(), new MetricRegistry())
 
         and:
         def contact = getSampleContact(isOrganization: true)
@@ -67,7 +67,6 @@ class DealServiceSpec extends AbstractSpec {
 
         and:
         def usersService = Stub(UsersService)
-        usersService.get(owner.id) >> owner
         usersService.list(_ as UsersService.SearchCriteria) >> [owner]
         client.users() >> usersService
         def stagesService = Stub(StagesService)
@@ -100,4 +99,61 @@ class DealServiceSpec extends AbstractSpec {
         "invalid"       | sampleOtherUserEmail              | "updated"
         "invalid"       | sampleOtherUserEmail              | "non-existing"
     }
+
+    def "should evaluate an unchanged deal again when forced"() {
+        given:
+        def client = Stub(Client)
+        def changeDetector = createChangeDetector()
+        def dealService = new DealService(createAsyncBaseClient(client), createOwnerRules(client), createStageCatalog(client), createContactDealIndex(), createCrmWriter(client), changeDetector, new MetricRegistry())
+
+        and:
+        def contact = getSampleContact(isOrganization: true)
+        def deal = getSampleDeal()
+        def usersService = Stub(UsersService)
+        usersService.list(_ as UsersService.SearchCriteria) >> []
+        client.users() >> usersService
+        def stagesService = Stub(StagesService)
+        stagesService.list(!null) >> [getSampleStage(category: "won")]
+        client.stages() >> stagesService
+        def contactsService = Mock(ContactsService)
+        client.contacts() >> contactsService
+        changeDetector.recordEvaluated(deal)
+
+        when:
+        dealService.processDealAsync("updated", deal).join()
+
+        then:
+        0 * contactsService.get(_)
+
+        when:
+        dealService.processDealAsync("updated", deal, true).join()
+
+        then:
+        1 * contactsService.get(contact.id) >> contact
+    }
+
+    def "should forget evaluation of the contact a deal was moved from"() {
+        given:
+        def client = Stub(Client)
+        def changeDetector = createChangeDetector()
+        def stageCatalog = createStageCatalog(client)
+        def contactDealIndex = createContactDealIndex(stageCatalog)
+        def dealService = new DealService(createAsyncBaseClient(client), createOwnerRules(client), stageCatalog, contactDealIndex, createCrmWriter(client), changeDetector, new MetricRegistry())
+
+        and:
+        def previousContact = new Contact(id: 999L, isOrganization: true, ownerId: 465L)
+        def deal = getSampleDeal()
+        def stagesService = Stub(StagesService)
+        stagesService.list(!null) >> [getSampleStage(category: "incoming")]
+        client.stages() >> stagesService
+        contactDealIndex.load(previousContact.id, [new Deal(id: deal.id, contactId: previousContact.id, stageId: deal.stageId)])
+        changeDetector.recordEvaluated(previousContact)
+
+        when:
+        dealService.processDealAsync("updated", deal).join()
+
+        then:
+        !changeDetector.isUnchanged(previousContact)
+        contactDealIndex.getStageIds(previousContact.id).length == 0
+    }
 }
@@ -0,0 +1,64 @@
+package com.solidbrain.services
+
+import com.codahale.metrics.MetricRegistry
+import spock.lang.IgnoreIf
+
+import java.nio.file.Files
+
+/**
+ * Unit tests of the write-ahead journal of CRM mutations
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class MutationJournalSpec extends AbstractSpec {
+
+    def "should replay pending and completed mutations after reopening"() {
+        given:
+        def file = Files.createTempFile("mutations", ".journal")
+        def journal = openJournal(file.toString())
+
+        when:
+        journal.recordIntent(MutationJournal.Kind.CREATE_DEAL, 123L, 1L, [name: "Deal", owner_id: 7L]).join()
+        journal.recordIntent(MutationJournal.Kind.UPDATE_CONTACT, 456L, 2L, [owner_id: 8L]).join()
+        journal.recordCompleted(MutationJournal.Kind.UPDATE_CONTACT, 456L, 2L, 456L, 0L)
+        journal.close()
+        def reopened = openJournal(file.toString())
+
+        then:
+        reopened.pendingIntents*.entityId == [123L]
+        reopened.pendingIntents[0].payload == [name: "Deal", owner_id: 7L]
+        reopened.getCompleted(MutationJournal.Kind.UPDATE_CONTACT, 456L, 2L).isPresent()
+        !reopened.getCompleted(MutationJournal.Kind.UPDATE_CONTACT, 456L, 3L).isPresent()
+
+        cleanup:
+        reopened?.close()
+        Files.deleteIfExists(file)
+    }
+
+    def "should keep pending mutations when compacting"() {
+        given:
+        def file = Files.createTempFile("mutations", ".journal")
+        def journal = openJournal(file.toString(), 512)
+
+        when:
+        journal.recordIntent(MutationJournal.Kind.CREATE_DEAL, 1L, 1L, [name: "Pending"]).join()
+        (2L..40L).each {
+            journal.recordIntent(MutationJournal.Kind.UPDATE_CONTACT, it, 1L, [owner_id: 8L]).join()
+            journal.recordCompleted(MutationJournal.Kind.UPDATE_CONTACT, it, 1L, it, 0L)
+        }
+        journal.close()
+        def reopened = openJournal(file.toString(), 512)
+
+        then:
+        reopened.pendingIntents*.entityId == [1L]
+        reopened.getCompleted(MutationJournal.Kind.UPDATE_CONTACT, 40L, 1L).isPresent()
+
+        cleanup:
+        reopened?.close()
+        Files.deleteIfExists(file)
+        Files.deleteIfExists(file.resolveSibling(file.fileName.toString() + ".compacted"))
+    }
+
+    private static openJournal(String file, int size = 4096) {
+        new MutationJournal(new MetricRegistry(), true, file, size, 1L, 5)
+    }
+}
@@ -0,0 +1,96 @@
+package com.solidbrain.services
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.Client
+import com.getbase.models.User
+import com.getbase.services.UsersService
+import spock.lang.IgnoreIf
+
+/**
+ * Unit tests of the routing rules keyed by user id
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class OwnerRulesSpec extends AbstractSpec {
+
+    def "should resolve emails to user ids once"() {
+        given:
+        def client = Stub(Client)
+        def ownerRules = createOwnerRules(client)
+
+        and:
+        def usersService = Mock(UsersService)
+        client.users() >> usersService
+
+        when:
+        def salesRepresentative = ownerRules.isSalesRepresentative(1L)
+        def accountManager = ownerRules.isAccountManager(2L)
+        def otherUser = ownerRules.isSalesRepresentative(3L) || ownerRules.isAccountManager(3L)
+        def accountManagerOnDutyId = ownerRules.getAccountManagerOnDutyId()
+
+        then:
+        (1.._) * usersService.list(_ as UsersService.SearchCriteria) >> usersWithEmail([
+                new User(id: 1L, email: salesRepresentativesEmails[0]),
+                new User(id: 2L, email: accountManagersEmails[0]),
+                new User(id: 3L, email: sampleOtherUserEmail),
+                new User(id: 4L, email: accountManagerOnDutyEmail)])
+        salesRepresentative
+        accountManager
+        !otherUser
+        accountManagerOnDutyId == 4L
+    }
+
+    def "should apply user sync events without resolving again"() {
+        given:
+        def client = Stub(Client)
+        def ownerRules = createOwnerRules(client)
+
+        and:
+        def usersService = Mock(UsersService)
+        client.users() >> usersService
+
+        when:
+        ownerRules.isSalesRepresentative(1L)
+        ownerRules.onUserEvent("updated", new User(id: 1L, email: sampleOtherUserEmail))
+        ownerRules.onUserEvent("created", new User(id: 5L, email: salesRepresentativesEmails[0]))
+        ownerRules.onUserEvent("deleted", new User(id: 4L, email: accountManagerOnDutyEmail))
+
+        then:
+        (1.._) * usersService.list(_ as UsersService.SearchCriteria) >> usersWithEmail([
+                new User(id: 1L, email: salesRepresentativesEmails[0]),
+                new User(id: 4L, email: accountManagerOnDutyEmail)])
+        !ownerRules.isSalesRepresentative(1L)
+        ownerRules.isSalesRepresentative(5L)
+
+        when:
+        ownerRules.getAccountManagerOnDutyId()
+
+        then:
+        thrown(MissingResourceException)
+        0 * usersService.list(_)
+    }
+
+    def "should resolve emails of cached users without looking them up"() {
+        given:
+        def client = Stub(Client)
+        def userService = createUserService(client)
+        def ownerRules = new OwnerRules(userService, new MetricRegistry(),
+                salesRepresentativesEmails, accountManagersEmails, accountManagerOnDutyEmail)
+
+        and:
+        def usersService = Mock(UsersService)
+        client.users() >> usersService
+
+        and:
+        def emails = (salesRepresentativesEmails + accountManagersEmails + accountManagerOnDutyEmail).unique()
+        emails.eachWithIndex { email, i -> userService.onUserEvent("created", new User(id: 10L + i, email: email)) }
+
+        when:
+        def salesRepresentative = ownerRules.isSalesRepresentative(10L + emails.indexOf(salesRepresentativesEmails[0]))
+        def accountManagerOnDutyId = ownerRules.getAccountManagerOnDutyId()
+
+        then:
+        0 * usersService._
+        salesRepresentative
+        accountManagerOnDutyId == 10L + emails.indexOf(accountManagerOnDutyEmail)
+    }
+}
@@ -0,0 +1,112 @@
+package com.solidbrain.services
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.Client
+import com.getbase.models.Stage
+import com.getbase.services.StagesService
+import spock.lang.IgnoreIf
+
+/**
+ * Unit tests of the in-memory stage catalog
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class StageCatalogSpec extends AbstractSpec {
+
+    def "should load stages once and answer lookups from memory"() {
+        given:
+        def client = Stub(Client)
+        def registry = new MetricRegistry()
+        def stageCatalog = new StageCatalog(client, createBaseApiCalls(), registry, 60_000L)
+
+        and:
+        def stagesService = Mock(StagesService)
+        client.stages() >> stagesService
+
+        when:
+        def firstActive = stageCatalog.isActive(1L)
+        def firstWon = stageCatalog.isWon(2L)
+        def secondActive = stageCatalog.isActive(2L)
+
+        then:
+        1 * stagesService.list({ it != null }) >> [new Stage(id: 1L, category: "incoming", active: true)]
+        1 * stagesService.list({ it != null }) >> [new Stage(id: 2L, category: "won", active: false)]
+        firstActive
+        firstWon
+        !secondActive
+        registry.counter("com.solidbrain.services.StageCatalog.misses").count == 1
+        registry.counter("com.solidbrain.services.StageCatalog.hits").count == 2
+    }
+
+    def "should apply stage sync events without reloading"() {
+        given:
+        def client = Stub(Client)
+        def stageCatalog = new StageCatalog(client, createBaseApiCalls(), new MetricRegistry(), 60_000L)
+
+        and:
+        def stagesService = Mock(StagesService)
+        client.stages() >> stagesService
+
+        when:
+        stageCatalog.onStageEvent("created", new Stage(id: 3L, category: "won", active: false))
+        def won = stageCatalog.isWon(3L)
+        stageCatalog.onStageEvent("deleted", new Stage(id: 3L))
+
+        then:
+        0 * stagesService.list(_)
+        won
+    }
+
+    def "should reload once for a stage unknown within the reload interval"() {
+        given:
+        def client = Stub(Client)
+        def stageCatalog = new StageCatalog(client, createBaseApiCalls(), new MetricRegistry(), 60_000L)
+
+        and:
+        def stagesService = Mock(StagesService)
+        client.stages() >> stagesService
+
+        when:
+        def active = stageCatalog.isActive(1L)
+        def newStageActive = stageCatalog.isActive(5L)
+
+        then:
+        4 * stagesService.list({ it != null }) >>> [[new Stage(id: 1L, category: "incoming", active: true)], [],
+                                                   [new Stage(id: 5L, category: "incoming", active: true)], []]
+        active
+        newStageActive
+    }
+
+    def "should answer not active for a stage still unknown until the next reload is due"() {
+        given:
+        def client = Stub(Client)
+        def stageCatalog = new StageCatalog(client, createBaseApiCalls(), new MetricRegistry(), 60_000L)
+
+        and:
+        def stagesService = Mock(StagesService)
+        client.stages() >> stagesService
+
+        when:
+        stageCatalog.isActive(1L)
+        def unknownActive = stageCatalog.isActive(5L)
+        def unknownWon = stageCatalog.isWon(5L)
+
+        then:
+        4 * stagesService.list({ it != null }) >>> [[new Stage(id: 1L, category: "incoming", active: true)], [], [], []]
+        !unknownActive
+        !unknownWon
+    }
+
+    def "should answer not active for a stage unknown after a reload"() {
+        given:
+        def client = Stub(Client)
+        def stageCatalog = new StageCatalog(client, createBaseApiCalls(), new MetricRegistry(), 0L)
+
+        and:
+        def stagesService = Stub(StagesService)
+        client.stages() >> stagesService
+        stagesService.list(_) >> []
+
+        expect:
+        !stageCatalog.isActive(5L)
+    }
+}
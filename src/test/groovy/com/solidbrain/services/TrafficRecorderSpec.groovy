@@ -0,0 +1,88 @@
+package com.solidbrain.services
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.models.Contact
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+
+import static java.util.concurrent.TimeUnit.SECONDS
+import static org.awaitility.Awaitility.await
+
+/**
+ * Unit tests of the traffic recording
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class TrafficRecorderSpec extends Specification {
+
+    def "should record raw responses and models of every run to its own file"() {
+        given:
+        def directory = Files.createTempDirectory("traffic")
+        def file = directory.resolve("traffic.recording.gz")
+        def page = '{"items":[]}'
+
+        when:
+        def firstRun = new TrafficRecorder(new MetricRegistry(), true, file.toString())
+        firstRun.record("sync.fetch", page.getBytes(StandardCharsets.UTF_8))
+        firstRun.shutdown()
+
+        and:
+        def secondRun = new TrafficRecorder(new MetricRegistry(), true, file.toString())
+        secondRun.record("contacts.get", new Contact(id: 1L, ownerId: 2L, isOrganization: true))
+        secondRun.record("contacts.get", null)
+        secondRun.shutdown()
+
+        and:
+        def records = []
+        TrafficRecorder.read(file, { records << it })
+        def previousRun = directory.toFile().listFiles().find { it.name != file.fileName.toString() }.toPath()
+        def previousRecords = []
+        TrafficRecorder.read(previousRun, { previousRecords << it })
+
+        then:
+        records*.endpoint == ["contacts.get"]
+        new String(records[0].payload, StandardCharsets.UTF_8).contains('"owner_id":2')
+        previousRun.fileName.toString() ==~ /traffic\.recording-\d{8}-\d{6}\.gz/
+        previousRecords*.endpoint == ["sync.fetch"]
+        new String(previousRecords[0].payload, StandardCharsets.UTF_8) == page
+
+        cleanup:
+        directory.toFile().deleteDir()
+    }
+
+    def "should read the recording of a run which did not stop cleanly up to its last flushed record"() {
+        given:
+        def directory = Files.createTempDirectory("traffic")
+        def file = directory.resolve("traffic.recording.gz")
+        def crashedRun = new TrafficRecorder(new MetricRegistry(), true, file.toString())
+
+        when:
+        crashedRun.record("sync.fetch", '{"items":[]}'.getBytes(StandardCharsets.UTF_8))
+        await().atMost(5, SECONDS).until { readEndpoints(file) == ["sync.fetch"] }
+        def nextRun = new TrafficRecorder(new MetricRegistry(), true, file.toString())
+        nextRun.shutdown()
+
+        then:
+        readEndpoints(directory.toFile().listFiles().find { it.name != file.fileName.toString() }.toPath()) == ["sync.fetch"]
+
+        cleanup:
+        crashedRun?.shutdown()
+        directory.toFile().deleteDir()
+    }
+
+    def "should stamp the name of the recording of a run"() {
+        expect:
+        TrafficRecorder.getRunFileName("traffic.recording.gz", "20161017-101500") == "traffic.recording-20161017-101500.gz"
+        TrafficRecorder.getRunFileName("traffic.recording", "20161017-101500") == "traffic.recording-20161017-101500"
+    }
+
+    private static List<String> readEndpoints(path) {
+        def endpoints = []
+        if (Files.exists(path)) {
+            TrafficRecorder.read(path, { endpoints << it.endpoint })
+        }
+        endpoints
+    }
+}
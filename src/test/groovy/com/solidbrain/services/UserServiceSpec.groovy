@@ -0,0 +1,64 @@
+package com.solidbrain.services
+
+import com.getbase.Client
+import com.getbase.models.User
+import com.getbase.services.UsersService
+import spock.lang.IgnoreIf
+
+/**
+ * Unit tests of the users cache
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class UserServiceSpec extends AbstractSpec {
+
+    def "should fetch contact's owner only once"() {
+        given:
+        def client = Stub(Client)
+        def userService = createUserService(client)
+
+        and:
+        def contact = getSampleContact(isOrganization: true)
+        def owner = getSampleContactsOwner(email: salesRepresentativesEmails[0])
+
+        and:
+        def usersService = Mock(UsersService)
+        client.users() >> usersService
+
+        when:
+        def firstOwner = userService.getContactOwner(contact)
+        def secondOwner = userService.getContactOwner(contact)
+        def ownerByEmail = userService.getUserByEmail(owner.email)
+
+        then:
+        1 * usersService.get(owner.id) >> owner
+        0 * usersService.list(_)
+        firstOwner == owner
+        secondOwner == owner
+        ownerByEmail.get() == owner
+    }
+
+    def "should apply user sync events to the cache"() {
+        given:
+        def client = Stub(Client)
+        def userService = createUserService(client)
+
+        and:
+        def owner = getSampleContactsOwner(email: salesRepresentativesEmails[0])
+        def renamedOwner = new User(id: owner.id, email: sampleOtherUserEmail)
+
+        and:
+        def usersService = Mock(UsersService)
+        client.users() >> usersService
+
+        when:
+        userService.onUserEvent("created", owner)
+        userService.onUserEvent("updated", renamedOwner)
+        def ownerByNewEmail = userService.getUserByEmail(sampleOtherUserEmail)
+        def ownerByOldEmail = userService.getUserByEmail(owner.email)
+
+        then:
+        1 * usersService.list(_ as UsersService.SearchCriteria) >> []
+        ownerByNewEmail.get() == renamedOwner
+        !ownerByOldEmail.isPresent()
+    }
+}
@@ -0,0 +1,156 @@
+package com.solidbrain.services
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.Client
+import com.getbase.models.Deal
+import com.getbase.models.Stage
+import com.getbase.models.User
+import com.getbase.services.UsersService
+import com.solidbrain.config.BaseAccount
+import spock.lang.IgnoreIf
+
+import java.nio.file.Files
+import java.nio.file.Paths
+
+/**
+ * Unit tests of the warm cache snapshots
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class WarmCacheSnapshotsSpec extends AbstractSpec {
+
+    def "should restore lookup state written by the previous run without calling Base CRM"() {
+        given:
+        def file = Files.createTempFile("warm-cache", ".snapshot")
+
+        and:
+        def client = Stub(Client)
+        def usersService = Stub(UsersService)
+        usersService.list(_ as UsersService.SearchCriteria) >> usersWithEmail([new User(id: 1L, email: salesRepresentativesEmails[0]),
+                                                                               new User(id: 2L, email: accountManagerOnDutyEmail)])
+        client.users() >> usersService
+        def stageCatalog = createStageCatalog(client)
+        def ownerRules = createOwnerRules(client)
+        def contactDealIndex = createContactDealIndex(stageCatalog)
+
+        and:
+        stageCatalog.onStageEvent("created", new Stage(id: 10L, category: "incoming", active: true))
+        stageCatalog.onStageEvent("created", new Stage(id: 20L, category: "won", active: false))
+        ownerRules.isSalesRepresentative(1L)
+        contactDealIndex.load(123L, [new Deal(id: 567L, contactId: 123L, stageId: 10L)])
+
+        and:
+        createSnapshots([stageCatalog, ownerRules, contactDealIndex], file.toString(), 60_000L, "device").shutdown()
+
+        when:
+        def restartedClient = Mock(Client)
+        def restoredCatalog = createStageCatalog(restartedClient)
+        def restoredRules = createOwnerRules(restartedClient)
+        def restoredIndex = createContactDealIndex()
+        createSnapshots([restoredCatalog, restoredRules, restoredIndex], file.toString(), 60_000L, "device").restore()
+
+        then:
+        restoredCatalog.isActive(10L)
+        restoredCatalog.isWon(20L)
+        restoredRules.isSalesRepresentative(1L)
+        restoredRules.getAccountManagerOnDutyId() == 2L
+        restoredIndex.isWarm(123L)
+        restoredIndex.getStageIds(123L) == [10L] as long[]
+        0 * restartedClient._
+
+        cleanup:
+        Files.deleteIfExists(file)
+        Files.deleteIfExists(Paths.get(file.toString() + ".clean"))
+    }
+
+    def "should restore deals of contacts only from the snapshot written at a clean shutdown"() {
+        given:
+        def file = Files.createTempFile("warm-cache", ".snapshot")
+        def stageCatalog = createStageCatalog(Stub(Client))
+        def contactDealIndex = createContactDealIndex(stageCatalog)
+        stageCatalog.onStageEvent("created", new Stage(id: 10L, category: "incoming", active: true))
+        contactDealIndex.load(123L, [new Deal(id: 567L, contactId: 123L, stageId: 10L)])
+        def snapshots = createSnapshots([stageCatalog, contactDealIndex], file.toString(), 60_000L, "device")
+
+        when: "the service crashes after a periodic snapshot"
+        snapshots.write()
+        def restoredCatalog = createStageCatalog(Mock(Client))
+        def restoredIndex = createContactDealIndex()
+        createSnapshots([restoredCatalog, restoredIndex], file.toString(), 60_000L, "device").restore()
+
+        then:
+        restoredCatalog.isActive(10L)
+        !restoredIndex.isWarm(123L)
+
+        when: "the service is shut down cleanly"
+        snapshots.shutdown()
+        restoredIndex = createContactDealIndex()
+        createSnapshots([createStageCatalog(Mock(Client)), restoredIndex], file.toString(), 60_000L, "device").restore()
+
+        then:
+        restoredIndex.isWarm(123L)
+
+        when: "the restarted service crashes before its next snapshot"
+        restoredIndex = createContactDealIndex()
+        createSnapshots([createStageCatalog(Mock(Client)), restoredIndex], file.toString(), 60_000L, "device").restore()
+
+        then:
+        !restoredIndex.isWarm(123L)
+
+        cleanup:
+        Files.deleteIfExists(file)
+        Files.deleteIfExists(Paths.get(file.toString() + ".clean"))
+    }
+
+    def "should discard snapshot of another device or older than the maximum age"() {
+        given:
+        def file = Files.createTempFile("warm-cache", ".snapshot")
+        def contactDealIndex = createContactDealIndex()
+        contactDealIndex.load(123L, [])
+        createSnapshots([contactDealIndex], file.toString(), 60_000L, "device").write()
+
+        when:
+        def restoredIndex = createContactDealIndex()
+        createSnapshots([restoredIndex], file.toString(), maxAge, deviceUuid).restore()
+
+        then:
+        !restoredIndex.isWarm(123L)
+
+        cleanup:
+        Files.deleteIfExists(file)
+
+        where:
+        maxAge  | deviceUuid
+        60_000L | "other-device"
+        -1L     | "device"
+    }
+
+    def "should discard owner rules resolved for other emails"() {
+        given:
+        def file = Files.createTempFile("warm-cache", ".snapshot")
+        def client = Stub(Client)
+        def usersService = Stub(UsersService)
+        usersService.list(_ as UsersService.SearchCriteria) >> usersWithEmail([new User(id: 1L, email: salesRepresentativesEmails[0])])
+        client.users() >> usersService
+        def ownerRules = createOwnerRules(client)
+        ownerRules.isSalesRepresentative(1L)
+        createSnapshots([ownerRules], file.toString(), 60_000L, "device").write()
+
+        when:
+        def restartedClient = Stub(Client)
+        restartedClient.users() >> Stub(UsersService)
+        def restoredRules = new OwnerRules(createUserService(restartedClient), new MetricRegistry(),
+                [sampleOtherUserEmail], accountManagersEmails, accountManagerOnDutyEmail)
+        createSnapshots([restoredRules], file.toString(), 60_000L, "device").restore()
+
+        then:
+        !restoredRules.isSalesRepresentative(1L)
+
+        cleanup:
+        Files.deleteIfExists(file)
+    }
+
+    def createSnapshots(List<SnapshotSection> sections, String file, long maxAge, String deviceUuid) {
+        new WarmCacheSnapshots(sections, new MetricRegistry(), true, file, maxAge,
+                new BaseAccount("http://localhost", "token", deviceUuid))
+    }
+}
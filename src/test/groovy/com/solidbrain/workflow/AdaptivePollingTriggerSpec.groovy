@@ -0,0 +1,38 @@
+package com.solidbrain.workflow
+
+import com.codahale.metrics.MetricRegistry
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+/**
+ * Unit tests of the adaptive sync polling interval
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class AdaptivePollingTriggerSpec extends Specification {
+
+    def "should fetch immediately after full batch and back off exponentially on empty feed"() {
+        given:
+        def trigger = new AdaptivePollingTrigger(new MetricRegistry(), 100L, 1000L, 100)
+
+        when:
+        def intervals = [150, 0, 0, 0, 0, 0, 0, 0, 100].collect { fetchedEvents ->
+            trigger.onRunCompleted(fetchedEvents)
+            trigger.interval
+        }
+
+        then:
+        intervals == [0L, 100L, 200L, 400L, 800L, 1000L, 1000L, 1000L, 0L]
+    }
+
+    def "should use minimum interval after partial batch"() {
+        given:
+        def trigger = new AdaptivePollingTrigger(new MetricRegistry(), 100L, 1000L, 100)
+
+        when:
+        (1..5).each { trigger.onRunCompleted(0) }
+        trigger.onRunCompleted(10)
+
+        then:
+        trigger.interval == 100L
+    }
+}
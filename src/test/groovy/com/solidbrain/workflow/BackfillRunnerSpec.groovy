@@ -0,0 +1,155 @@
+package com.solidbrain.workflow
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.Client
+import com.getbase.models.Contact
+import com.getbase.models.Deal
+import com.getbase.services.ContactsService
+import com.getbase.services.DealsService
+import com.solidbrain.services.BaseApiCalls
+import com.solidbrain.services.ContactService
+import com.solidbrain.services.DealService
+import com.solidbrain.services.TrafficRecorder
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.nio.file.Files
+
+import static java.util.concurrent.CompletableFuture.completedFuture
+
+/**
+ * Unit tests of the backfill of contacts and deals
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class BackfillRunnerSpec extends Specification {
+
+    def "should process all contacts and then all deals and resume from the checkpoint"() {
+        given:
+        def checkpoint = Files.createTempFile("backfill", ".checkpoint")
+        Files.delete(checkpoint)
+
+        and:
+        def contactsService = Stub(ContactsService)
+        contactsService.list({ it.page == 1 } as Map) >> [new Contact(id: 1L), new Contact(id: 2L)]
+        contactsService.list({ it.page == 2 } as Map) >> []
+        contactsService.list({ it.ids == "2" } as Map) >> [new Contact(id: 2L)]
+        def dealsService = Stub(DealsService)
+        dealsService.list({ it.page == 1 } as Map) >> [new Deal(id: 3L, contactId: 1L)]
+        dealsService.list({ it.page == 2 } as Map) >> []
+        def client = Stub(Client)
+        client.contacts() >> contactsService
+        client.deals() >> dealsService
+
+        and:
+        def contactService = Mock(ContactService)
+        def dealService = Mock(DealService)
+        def registry = new MetricRegistry()
+        def apiCalls = new BaseApiCalls(registry, new TrafficRecorder(registry, false, ""), 2)
+        def backfill = new BackfillRunner(client, apiCalls, contactService, dealService, createFetcher(),
+                registry, false, 2, 0, checkpoint.toString())
+
+        when:
+        backfill.start()
+        new PollingConditions(timeout: 5).eventually {
+            assert !backfill.running
+        }
+
+        then:
+        1 * contactService.processContactAsync("updated", { it.id == 1L }, true) >> completedFuture(true)
+        2 * contactService.processContactAsync("updated", { it.id == 2L }, true) >>> [completedFuture(false),
+                                                                                      completedFuture(true)]
+        1 * dealService.processDealAsync("updated", { it.id == 3L }, true) >> completedFuture(true)
+        backfill.progress.startsWith("phase=DONE")
+        registry.meter("com.solidbrain.workflow.BackfillRunner.processed").count == 4
+        registry.counter("com.solidbrain.workflow.BackfillRunner.failed").count == 1
+        Files.readAllLines(checkpoint).contains("phase=DONE")
+
+        cleanup:
+        Files.deleteIfExists(checkpoint)
+    }
+
+    def "should keep the failed entities in the checkpoint and stop before the next phase if they fail again"() {
+        given:
+        def checkpoint = Files.createTempFile("backfill", ".checkpoint")
+        Files.delete(checkpoint)
+
+        and:
+        def contactsService = Stub(ContactsService)
+        contactsService.list({ it.page == 1 } as Map) >> [new Contact(id: 1L), new Contact(id: 2L)]
+        contactsService.list({ it.page == 2 } as Map) >> []
+        contactsService.list({ it.ids == "2" } as Map) >> [new Contact(id: 2L)]
+        def client = Stub(Client)
+        client.contacts() >> contactsService
+
+        and:
+        def contactService = Mock(ContactService)
+        def dealService = Mock(DealService)
+        def registry = new MetricRegistry()
+        def apiCalls = new BaseApiCalls(registry, new TrafficRecorder(registry, false, ""), 2)
+        def backfill = new BackfillRunner(client, apiCalls, contactService, dealService, createFetcher(),
+                registry, false, 2, 0, checkpoint.toString())
+
+        when:
+        backfill.start()
+        new PollingConditions(timeout: 5).eventually {
+            assert !backfill.running
+        }
+
+        then:
+        1 * contactService.processContactAsync("updated", { it.id == 1L }, true) >> completedFuture(true)
+        2 * contactService.processContactAsync("updated", { it.id == 2L }, true) >> completedFuture(false)
+        0 * dealService._
+        backfill.progress.startsWith("phase=CONTACTS page=2 pendingRetries=1")
+        Files.readAllLines(checkpoint).containsAll(["phase=CONTACTS", "page=2", "failed=2"])
+
+        cleanup:
+        Files.deleteIfExists(checkpoint)
+    }
+
+    def "should not backfill on a node which is not the fetcher"() {
+        given:
+        def checkpoint = Files.createTempFile("backfill", ".checkpoint")
+        Files.delete(checkpoint)
+
+        and:
+        def client = Mock(Client)
+        def clusterNode = Stub(ClusterNode)
+        clusterNode.isFetcher() >> false
+        def registry = new MetricRegistry()
+        def apiCalls = new BaseApiCalls(registry, new TrafficRecorder(registry, false, ""), 2)
+        def backfill = new BackfillRunner(client, apiCalls, Mock(ContactService), Mock(DealService), clusterNode,
+                registry, false, 2, 0, checkpoint.toString())
+
+        when:
+        backfill.start()
+        sleep(200)
+
+        then:
+        backfill.running
+        0 * client._
+
+        cleanup:
+        backfill.stop()
+        Files.deleteIfExists(checkpoint)
+    }
+
+    def "should space out requests to the maximum rate"() {
+        given:
+        def rateLimiter = new RateLimiter(100)
+
+        when:
+        def start = System.nanoTime()
+        11.times { rateLimiter.acquire() }
+        def elapsed = (System.nanoTime() - start) / 1_000_000
+
+        then:
+        elapsed >= 90
+    }
+
+    def createFetcher() {
+        def clusterNode = Stub(ClusterNode)
+        clusterNode.isFetcher() >> true
+        clusterNode
+    }
+}
@@ -0,0 +1,191 @@
+package com.solidbrain.workflow
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.models.Contact
+import com.getbase.models.Stage
+import com.solidbrain.services.ChangeDetector
+import com.solidbrain.services.ContactDealIndex
+import com.solidbrain.services.StageCatalog
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.atomic.AtomicInteger
+
+import static java.util.concurrent.TimeUnit.SECONDS
+import static org.awaitility.Awaitility.await
+
+/**
+ * Unit tests of the cluster membership and partitioning of events
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class ClusterNodeSpec extends Specification {
+
+    def "should move only the partitions of a joining node"() {
+        given:
+        def twoNodes = new ConsistentHashRing(["localhost:9101", "localhost:9102"])
+        def threeNodes = new ConsistentHashRing(["localhost:9101", "localhost:9102", "localhost:9103"])
+        def keys = (1L..30_000L)
+
+        when:
+        def moved = keys.findAll { twoNodes.ownerOf(it) != threeNodes.ownerOf(it) }
+        def owned = keys.countBy { threeNodes.ownerOf(it) }
+
+        then:
+        moved.every { threeNodes.ownerOf(it) == "localhost:9103" }
+        owned.values().every { it > 6_000 && it < 14_000 }
+        new ConsistentHashRing([]).ownerOf(1L) == null
+    }
+
+    def "should elect the fetcher, forward events to the owner and rebalance when a node leaves"() {
+        given:
+        // the fetcher is the node with the lowest id (address)
+        def ports = [freePort(), freePort()].sort { "localhost:$it".toString() }
+        def peers = ports.collect { "localhost:$it" }.join(",")
+        def first = createNode(ports[0], peers)
+        def second = createNode(ports[1], peers)
+        def processed = []
+        second.setEventHandler({ type, eventType, entity ->
+            processed << entity.id
+            CompletableFuture.completedFuture(true)
+        } as ClusterNode.EventHandler)
+
+        when:
+        await().atMost(5, SECONDS).until { first.members.size() == 2 && second.members.size() == 2 && first.isFetcher() }
+        def remoteContactId = (1L..1_000L).find { !first.isLocal(it) }
+
+        then:
+        !second.isFetcher()
+        second.isLocal(remoteContactId)
+        first.forward(remoteContactId, "contact", "updated", new Contact(id: remoteContactId, name: "Some Company")).join()
+        processed == [remoteContactId]
+
+        when:
+        second.shutdown()
+
+        then:
+        await().atMost(5, SECONDS).until { first.members == [first.nodeId] }
+        first.isLocal(remoteContactId)
+
+        cleanup:
+        first?.shutdown()
+        second?.shutdown()
+    }
+
+    def "should process received events of a contact one at a time"() {
+        given:
+        def ports = [freePort(), freePort()].sort { "localhost:$it".toString() }
+        def peers = ports.collect { "localhost:$it" }.join(",")
+        def first = createNode(ports[0], peers)
+        def second = createNode(ports[1], peers)
+        def running = new AtomicInteger()
+        def overlapping = new AtomicInteger()
+        second.setEventHandler({ type, eventType, entity ->
+            if (running.incrementAndGet() > 1) {
+                overlapping.incrementAndGet()
+            }
+            // the result completes later, on another thread
+            CompletableFuture.supplyAsync {
+                sleep(50)
+                running.decrementAndGet()
+                true
+            }
+        } as ClusterNode.EventHandler)
+
+        when:
+        await().atMost(5, SECONDS).until { first.members.size() == 2 && second.members.size() == 2 }
+        def remoteContactId = (1L..1_000L).find { !first.isLocal(it) }
+        def results = (1..4).collect {
+            first.forward(remoteContactId, "contact", "updated", new Contact(id: remoteContactId, name: "Company $it"))
+        }
+
+        then:
+        results*.join().every()
+        overlapping.get() == 0
+
+        cleanup:
+        first?.shutdown()
+        second?.shutdown()
+    }
+
+    def "should acknowledge a broadcast only once all live peers processed it"() {
+        given:
+        def ports = [freePort(), freePort()].sort { "localhost:$it".toString() }
+        def peers = ports.collect { "localhost:$it" }.join(",")
+        def first = createNode(ports[0], peers)
+        def second = createNode(ports[1], peers)
+        second.setEventHandler({ type, eventType, entity ->
+            CompletableFuture.completedFuture(processed)
+        } as ClusterNode.EventHandler)
+
+        when:
+        await().atMost(5, SECONDS).until { first.members.size() == 2 }
+
+        then:
+        first.broadcast("stage", "updated", new Stage(id: 1L, category: "won")).join() == processed
+
+        cleanup:
+        first?.shutdown()
+        second?.shutdown()
+
+        where:
+        processed << [true, false]
+    }
+
+    def "should reject requests of nodes without the shared secret"() {
+        given:
+        def port = freePort()
+        def node = createNode(port, "localhost:$port")
+
+        when:
+        def connection = (HttpURLConnection) new URL("http://localhost:$port/cluster/ping?from=localhost:1").openConnection()
+        if (secret) {
+            connection.setRequestProperty("X-Cluster-Secret", secret)
+        }
+
+        then:
+        connection.responseCode == status
+
+        cleanup:
+        connection?.disconnect()
+        node?.shutdown()
+
+        where:
+        secret   | status
+        null     | 403
+        "other"  | 403
+        "secret" | 200
+    }
+
+    def "should refuse to start without the shared secret"() {
+        when:
+        def metricRegistry = new MetricRegistry()
+        new ClusterNode(createContactDealIndex(metricRegistry), new ChangeDetector(metricRegistry, true, 1024),
+                new PartitionedExecutor(metricRegistry, 2, 10), metricRegistry,
+                true, freePort(), "localhost:9101", "", "", 100, 500, 5_000, 4)
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    private static ClusterNode createNode(int port, String peers) {
+        def metricRegistry = new MetricRegistry()
+        new ClusterNode(createContactDealIndex(metricRegistry), new ChangeDetector(metricRegistry, true, 1024),
+                new PartitionedExecutor(metricRegistry, 2, 10), metricRegistry,
+                true, port, "localhost:$port", "secret", peers, 100, 500, 5_000, 4)
+    }
+
+    private static ContactDealIndex createContactDealIndex(MetricRegistry metricRegistry) {
+        // the node only clears the index, stages are never looked up
+        new ContactDealIndex(new StageCatalog(null, null, metricRegistry, 0L), metricRegistry)
+    }
+
+    private static int freePort() {
+        def socket = new ServerSocket(0)
+        try {
+            socket.localPort
+        } finally {
+            socket.close()
+        }
+    }
+}
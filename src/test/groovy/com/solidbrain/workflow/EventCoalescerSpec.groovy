@@ -0,0 +1,51 @@
+package com.solidbrain.workflow
+
+import com.codahale.metrics.MetricRegistry
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+import static java.util.concurrent.CompletableFuture.completedFuture
+
+/**
+ * Unit tests of the intra-run event coalescing
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class EventCoalescerSpec extends Specification {
+
+    def "should keep only the latest event of an entity with all its ack keys"() {
+        given:
+        def registry = new MetricRegistry()
+        def batch = new EventCoalescer(registry, true, 0L, 100).newBatch()
+
+        when:
+        batch.add("contact:1", "ack-1", 1L, { completedFuture(false) })
+        batch.add("deal:2", "ack-2", 1L, { completedFuture(true) })
+        batch.add("contact:1", "ack-3", 1L, { completedFuture(true) })
+        def events = batch.drain()
+
+        then:
+        events*.ackKeys == [["ack-2"], ["ack-1", "ack-3"]]
+        events*.processing*.get()*.join() == [true, true]
+        registry.meter("com.solidbrain.workflow.EventCoalescer.coalesced").count == 1
+        batch.drain().isEmpty()
+    }
+
+    def "should be due for a flush once the batch is full"() {
+        given:
+        def batch = new EventCoalescer(new MetricRegistry(), true, 0L, 2).newBatch()
+
+        when:
+        batch.add("contact:1", "ack-1", 1L, { completedFuture(true) })
+        def dueAfterFirst = batch.isFlushDue()
+        batch.add("contact:1", "ack-2", 1L, { completedFuture(true) })
+        def dueAfterCoalesced = batch.isFlushDue()
+        batch.add("contact:2", "ack-3", 2L, { completedFuture(true) })
+
+        then:
+        !dueAfterFirst
+        !dueAfterCoalesced
+        batch.isFlushDue()
+        batch.drain().size() == 2
+        !batch.isFlushDue()
+    }
+}
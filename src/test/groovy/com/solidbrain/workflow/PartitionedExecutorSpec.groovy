@@ -0,0 +1,116 @@
+package com.solidbrain.workflow
+
+import com.codahale.metrics.MetricRegistry
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Unit tests of the partitioned (per contact) event processing
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class PartitionedExecutorSpec extends Specification {
+
+    def "should keep order of events of the same partition"() {
+        given:
+        def executor = new PartitionedExecutor(new MetricRegistry(), 4, 10)
+        def processed = new ConcurrentHashMap<Long, List<Integer>>()
+
+        when:
+        def results = (0..<200).collect { i ->
+            long contactId = i % 7
+            executor.submit(contactId, {
+                processed.computeIfAbsent(contactId, { new CopyOnWriteArrayList<Integer>() }).add(i)
+                CompletableFuture.completedFuture(true)
+            })
+        }
+        CompletableFuture.allOf(results as CompletableFuture[]).join()
+
+        then:
+        executor.isConcurrent()
+        results.every { it.join() }
+        processed.every { contactId, events -> events == events.sort(false) }
+        processed.values().sum { it.size() } == 200
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "should start the next event of a partition only once the result of the previous one completed"() {
+        given:
+        def executor = new PartitionedExecutor(new MetricRegistry(), 1, 10)
+        def firstResult = new CompletableFuture<Boolean>()
+        def secondStarted = new CountDownLatch(1)
+
+        when:
+        def first = executor.submit(1L, { firstResult })
+        def second = executor.submit(1L, {
+            secondStarted.countDown()
+            CompletableFuture.completedFuture(true)
+        })
+
+        then:
+        !secondStarted.await(200, TimeUnit.MILLISECONDS)
+        !second.isDone()
+
+        when:
+        firstResult.complete(true)
+
+        then:
+        second.get(5, TimeUnit.SECONDS)
+        first.join()
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "should report failure of a task"() {
+        given:
+        def executor = new PartitionedExecutor(new MetricRegistry(), 2, 10)
+
+        when:
+        executor.submit(1L, { throw new IllegalStateException("failure") }).join()
+
+        then:
+        thrown(Exception)
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "should fail events still queued at shutdown"() {
+        given:
+        def executor = new PartitionedExecutor(new MetricRegistry(), 2, 10)
+        def started = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+
+        when:
+        executor.submit(1L, {
+            started.countDown()
+            release.await()
+            CompletableFuture.completedFuture(true)
+        })
+        def queued = executor.submit(1L, { CompletableFuture.completedFuture(true) })
+        started.await(5, TimeUnit.SECONDS)
+        executor.shutdown()
+
+        and:
+        queued.get(5, TimeUnit.SECONDS)
+
+        then:
+        def e = thrown(ExecutionException)
+        e.cause instanceof IllegalStateException
+
+        when:
+        executor.submit(2L, { CompletableFuture.completedFuture(true) }).join()
+
+        then:
+        thrown(Exception)
+    }
+}
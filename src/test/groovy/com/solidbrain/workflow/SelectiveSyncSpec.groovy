@@ -0,0 +1,164 @@
+package com.solidbrain.workflow
+
+import com.codahale.metrics.MetricRegistry
+import com.getbase.exceptions.ConnectionException
+import com.getbase.exceptions.RateLimitException
+import com.getbase.exceptions.RequestException
+import com.getbase.exceptions.ServerException
+import com.getbase.models.AssociatedContact
+import com.getbase.models.Contact
+import com.solidbrain.config.BaseAccount
+import com.solidbrain.services.BaseApiCalls
+import com.solidbrain.services.TrafficRecorder
+import com.sun.net.httpserver.HttpServer
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Unit tests of the selective sync feed consumption
+ */
+@IgnoreIf({ properties["integrationTest"] == "true" })
+class SelectiveSyncSpec extends Specification {
+
+    def "should read sync metadata and locate data without binding it"() {
+        given:
+        def apiCalls = new BaseApiCalls(new MetricRegistry(), new TrafficRecorder(new MetricRegistry(), false, ""), 1)
+        def selectiveSync = new SelectiveSync(apiCalls, null,
+                new MetricRegistry(), true,
+                new BaseAccount("http://localhost", "token", "device"), 1, 1, 0, 100)
+        def contactData = '{"id":1,"name":"Company","tags":["a","b"],"custom_fields":{"x":{"y":1}}}'
+        def page = ('{"items":[' +
+                '{"data":' + contactData + ',"meta":{"type":"contact","sync":{"event_type":"created","ack_key":"Contact-1","revision":1}}},' +
+                '{"meta":{"type":"note","sync":{"event_type":"updated","ack_key":"Note-2"}},"data":{"id":2,"content":"text"}}' +
+                '],"meta":{"type":"collection","count":2}}').getBytes(StandardCharsets.UTF_8)
+
+        when:
+        def events = selectiveSync.parsePage(page)
+
+        then:
+        events.size() == 2
+        events[0].type == "contact"
+        events[0].meta.eventType == "created"
+        events[0].meta.ackKey == "Contact-1"
+        new String(page, events[0].dataOffset, events[0].dataLength, StandardCharsets.UTF_8) == contactData
+        events[1].type == "note"
+        events[1].meta.ackKey == "Note-2"
+        new String(page, events[1].dataOffset, events[1].dataLength, StandardCharsets.UTF_8) == '{"id":2,"content":"text"}'
+    }
+
+    def "should map model classes to sync types"() {
+        expect:
+        SelectiveSync.getSyncType(Contact) == "contact"
+        SelectiveSync.getSyncType(AssociatedContact) == "associated_contact"
+    }
+
+    def "should process prefetched pages in order and acknowledge processed events in batches"() {
+        given:
+        def server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+        def fetchedPages = new AtomicInteger()
+        server.createContext("/v2/sync/start") { exchange ->
+            respond(exchange, 201, '{"data":{"id":"session","queues":[{"data":{"name":"main"}}]}}')
+        }
+        server.createContext("/v2/sync/session/queues/main") { exchange ->
+            def page = fetchedPages.incrementAndGet()
+            if (page > 3) {
+                respond(exchange, 204, null)
+            } else {
+                def items = (1..2).collect { i ->
+                    def id = page * 10 + i
+                    '{"data":{"id":' + id + '},"meta":{"type":"contact","sync":{"event_type":"created","ack_key":"Contact-' + id + '"}}}'
+                }
+                respond(exchange, 200, '{"items":[' + items.join(",") + ']}')
+            }
+        }
+        server.start()
+
+        and:
+        def syncAcknowledger = Mock(SyncAcknowledger)
+        def apiCalls = new BaseApiCalls(new MetricRegistry(), new TrafficRecorder(new MetricRegistry(), false, ""), 2)
+        def selectiveSync = new SelectiveSync(apiCalls, syncAcknowledger,
+                new MetricRegistry(), true,
+                new BaseAccount("http://localhost:" + server.address.port, "token", "device"), 5, 5, 2, 4)
+        def processed = []
+
+        when:
+        selectiveSync.subscriptions()
+                .subscribe(Contact, { meta, contact -> processed << contact.id; contact.id != 22L })
+                .fetch()
+
+        then:
+        processed == [11L, 12L, 21L, 22L, 31L, 32L]
+        1 * syncAcknowledger.acknowledgeKeys(["Contact-11", "Contact-12", "Contact-21", "Contact-31"])
+        1 * syncAcknowledger.acknowledgeKeys(["Contact-32"])
+
+        cleanup:
+        server?.stop(0)
+        selectiveSync?.shutdown()
+    }
+
+    def "should fail sync requests with the exceptions of the Base CRM client"() {
+        given:
+        def server = HttpServer.create(new InetSocketAddress("localhost", 0), 0)
+        server.createContext("/v2/sync/start") { exchange ->
+            respond(exchange, status, '{"errors":[],"meta":{"type":"errors","logref":"abc"}}')
+        }
+        server.start()
+
+        and:
+        def apiCalls = new BaseApiCalls(new MetricRegistry(), new TrafficRecorder(new MetricRegistry(), false, ""), 1)
+        def selectiveSync = new SelectiveSync(apiCalls, Mock(SyncAcknowledger),
+                new MetricRegistry(), true,
+                new BaseAccount("http://localhost:" + server.address.port, "token", "device"), 5, 5, 0, 4)
+
+        when:
+        selectiveSync.subscriptions()
+                .subscribe(Contact, { meta, contact -> true })
+                .fetch()
+
+        then:
+        def e = thrown(RuntimeException)
+        exception.isInstance(e)
+
+        cleanup:
+        server?.stop(0)
+        selectiveSync?.shutdown()
+
+        where:
+        status | exception
+        429    | RateLimitException
+        503    | ServerException
+        401    | RequestException
+    }
+
+    def "should fail sync requests which cannot reach Base CRM with a connection exception"() {
+        given:
+        def apiCalls = new BaseApiCalls(new MetricRegistry(), new TrafficRecorder(new MetricRegistry(), false, ""), 1)
+        def port = new ServerSocket(0).withCloseable { it.localPort }
+        def selectiveSync = new SelectiveSync(apiCalls, Mock(SyncAcknowledger),
+                new MetricRegistry(), true,
+                new BaseAccount("http://localhost:" + port, "token", "device"), 5, 5, 0, 4)
+
+        when:
+        selectiveSync.subscriptions()
+                .subscribe(Contact, { meta, contact -> true })
+                .fetch()
+
+        then:
+        thrown(ConnectionException)
+
+        cleanup:
+        selectiveSync?.shutdown()
+    }
+
+    private static void respond(exchange, int status, String body) {
+        def bytes = body?.getBytes(StandardCharsets.UTF_8)
+        exchange.sendResponseHeaders(status, bytes ? bytes.length : -1)
+        if (bytes) {
+            exchange.responseBody.write(bytes)
+        }
+        exchange.close()
+    }
+}